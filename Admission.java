@@ -0,0 +1,65 @@
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limite d'admission d'un type de transfert sur le serveur principal.
+ *
+ * Au plus {@code maxActive} transferts sont servis en même temps. Les
+ * suivants attendent une place, sans que leur flux soit lu, tant qu'ils sont
+ * moins de {@code queueDepth} à attendre et pendant au plus
+ * {@code maxWaitMillis} ms. Au-delà, le transfert est refusé et le client
+ * reçoit une réponse {@link #BUSY} : il réessaie plus tard au lieu d'occuper
+ * un thread et des tampons du serveur.
+ */
+public class Admission {
+    public static final String BUSY = "OCCUPE";
+
+    private final String kind;
+    private final Semaphore slots;
+    private final int queueDepth;
+    private final long maxWaitMillis;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    public Admission(String kind, int maxActive, int queueDepth, long maxWaitMillis) {
+        this.kind = kind;
+        this.slots = new Semaphore(maxActive, true);
+        this.queueDepth = queueDepth;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /** Prend une place, en attendant si besoin. Renvoie faux si le transfert est refusé. */
+    public boolean enter() throws InterruptedIOException {
+        if (slots.tryAcquire()) {
+            return true;
+        }
+        if (waiting.incrementAndGet() > queueDepth) {
+            waiting.decrementAndGet();
+            return false;
+        }
+        try {
+            return slots.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Attente d'admission interrompue");
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    /** Rend la place prise par {@link #enter()}. */
+    public void leave() {
+        slots.release();
+    }
+
+    /** Vrai si un nouveau transfert serait refusé sans attendre. */
+    public boolean isFull() {
+        return slots.availablePermits() == 0 && waiting.get() >= queueDepth;
+    }
+
+    /** Réponse envoyée au client refusé. */
+    public String busyMessage() {
+        return BUSY + " : limite des " + kind + " en cours atteinte, réessayez plus tard.";
+    }
+}
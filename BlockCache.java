@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+
+/**
+ * Cache des plages de fragments lues par le serveur principal.
+ *
+ * Les plages déjà vérifiées avec leurs sommes de contrôle sont gardées en
+ * mémoire dans la limite de {@code cache.max_mb} Mo ; les moins récemment lues
+ * sont évincées en premier. Plusieurs téléchargements qui demandent la même
+ * plage au même moment se partagent une seule lecture sur les sous-serveurs.
+ *
+ * Une plage est rattachée à l'entrée du catalogue de son fragment : un
+ * fichier renvoyé a de nouvelles entrées et ne peut pas servir d'anciennes
+ * données. {@link #invalidate(String)} libère aussitôt la place d'un fichier
+ * supprimé ou remplacé.
+ */
+public class BlockCache {
+    private static final long MAX_BYTES = ConfigLoader.getInt("cache.max_mb", 256) * 1024L * 1024L;
+
+    // Ordre d'accès : le premier élément est le moins récemment lu (accès sous BLOCKS)
+    private static final LinkedHashMap<Key, byte[]> BLOCKS = new LinkedHashMap<>(16, 0.75f, true);
+    private static final Map<Key, CompletableFuture<byte[]>> LOADING = new ConcurrentHashMap<>();
+    private static long cachedBytes;
+
+    private BlockCache() {
+    }
+
+    public interface Loader {
+        byte[] load() throws IOException;
+    }
+
+    /**
+     * La plage {@code [offset, offset + length)} du fragment, depuis le cache
+     * ou, à défaut, lue par {@code loader}. Les données renvoyées sont
+     * partagées et ne doivent pas être modifiées.
+     */
+    public static byte[] get(MetadataCatalog.FragmentEntry fragment, long offset, int length, Loader loader)
+            throws IOException {
+        if (MAX_BYTES <= 0) {
+            return loader.load();
+        }
+
+        Key key = new Key(fragment, offset, length);
+        byte[] data = cached(key);
+        if (data != null) {
+            return data;
+        }
+
+        CompletableFuture<byte[]> loading = new CompletableFuture<>();
+        CompletableFuture<byte[]> other = LOADING.putIfAbsent(key, loading);
+        if (other != null) {
+            return await(other); // Lecture déjà en cours pour un autre téléchargement
+        }
+        try {
+            // Une lecture a pu se terminer entre-temps
+            data = cached(key);
+            if (data == null) {
+                data = loader.load();
+                store(key, data);
+            }
+            loading.complete(data);
+            return data;
+        } catch (IOException | RuntimeException e) {
+            loading.completeExceptionally(e);
+            throw e;
+        } finally {
+            LOADING.remove(key, loading);
+        }
+    }
+
+    /** Retire du cache les plages des fragments de ce fichier. */
+    public static void invalidate(String fileName) {
+        String prefix = fileName + ".part";
+        evict(key -> key.fragment.name.startsWith(prefix));
+    }
+
+    /**
+     * Retire du cache les plages d'un fragment : un bloc dédupliqué effacé, ou
+     * un fragment dont la réparation a changé les répliques (les plages sont
+     * rangées sous l'ancienne entrée du catalogue).
+     */
+    public static void invalidateFragment(String fragmentName) {
+        evict(key -> key.fragment.name.equals(fragmentName));
+    }
+
+    private static void evict(Predicate<Key> stale) {
+        synchronized (BLOCKS) {
+            Iterator<Map.Entry<Key, byte[]>> entries = BLOCKS.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Key, byte[]> entry = entries.next();
+                if (stale.test(entry.getKey())) {
+                    cachedBytes -= entry.getValue().length;
+                    entries.remove();
+                }
+            }
+        }
+    }
+
+    private static byte[] cached(Key key) {
+        synchronized (BLOCKS) {
+            return BLOCKS.get(key);
+        }
+    }
+
+    private static void store(Key key, byte[] data) {
+        if (data.length > MAX_BYTES) {
+            return;
+        }
+        synchronized (BLOCKS) {
+            byte[] previous = BLOCKS.put(key, data);
+            cachedBytes += data.length - (previous != null ? previous.length : 0);
+            Iterator<byte[]> eldest = BLOCKS.values().iterator();
+            while (cachedBytes > MAX_BYTES) {
+                cachedBytes -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    private static byte[] await(CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Téléchargement interrompu");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static class Key {
+        final MetadataCatalog.FragmentEntry fragment; // Comparée par identité
+        final long offset;
+        final int length;
+
+        Key(MetadataCatalog.FragmentEntry fragment, long offset, int length) {
+            this.fragment = fragment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return fragment == other.fragment && offset == other.offset && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(fragment) * 31 + Long.hashCode(offset) * 17 + length;
+        }
+    }
+}
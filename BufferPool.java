@@ -0,0 +1,43 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tampons de transfert réutilisés d'un envoi à l'autre.
+ *
+ * Un envoi prend ses tampons ici au fur et à mesure et les rend à la fin, au
+ * lieu d'en allouer un jeu complet par connexion. Au plus {@code maxPooled}
+ * tampons libres sont gardés ; les autres sont laissés au ramasse-miettes.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public byte[] take() {
+        byte[] buffer = free.poll();
+        if (buffer == null) {
+            return new byte[bufferSize];
+        }
+        freeCount.decrementAndGet();
+        return buffer;
+    }
+
+    public void give(byte[] buffer) {
+        if (buffer.length == bufferSize && freeCount.incrementAndGet() <= maxPooled) {
+            free.add(buffer);
+        } else if (buffer.length == bufferSize) {
+            freeCount.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Sommes de contrôle CRC32C d'un fragment, une par morceau de
+ * {@link #CHUNK_SIZE} octets (le dernier morceau peut être plus court).
+ *
+ * Elles sont calculées au fil de l'eau, dans les boucles de copie qui voient
+ * déjà passer les octets, sans seconde lecture des données.
+ */
+public class Checksums {
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private final CRC32C crc = new CRC32C();
+    private int[] values = new int[16];
+    private int count;
+    private long position;
+
+    public void update(byte[] data, int offset, int length) {
+        while (length > 0) {
+            int n = (int) Math.min(length, CHUNK_SIZE - position % CHUNK_SIZE);
+            crc.update(data, offset, n);
+            offset += n;
+            length -= n;
+            advance(n);
+        }
+    }
+
+    /** Consomme les octets restants du tampon ; sa position est avancée jusqu'à sa limite. */
+    public void update(ByteBuffer buffer) {
+        int limit = buffer.limit();
+        while (buffer.hasRemaining()) {
+            int n = (int) Math.min(buffer.remaining(), CHUNK_SIZE - position % CHUNK_SIZE);
+            buffer.limit(buffer.position() + n);
+            crc.update(buffer);
+            buffer.limit(limit);
+            advance(n);
+        }
+    }
+
+    private void advance(int n) {
+        position += n;
+        if (position % CHUNK_SIZE == 0) {
+            add((int) crc.getValue());
+            crc.reset();
+        }
+    }
+
+    private void add(int value) {
+        if (count == values.length) {
+            values = Arrays.copyOf(values, count * 2);
+        }
+        values[count++] = value;
+    }
+
+    /** Les sommes de tous les morceaux, y compris le dernier s'il est incomplet. */
+    public int[] finish() {
+        if (position % CHUNK_SIZE != 0) {
+            add((int) crc.getValue());
+            crc.reset();
+        }
+        return Arrays.copyOf(values, count);
+    }
+
+    public static int[] compute(byte[] data, int offset, int length) {
+        Checksums checksums = new Checksums();
+        checksums.update(data, offset, length);
+        return checksums.finish();
+    }
+
+    // Format sur le fil et dans les fichiers annexes : nombre de sommes, puis chacune
+    public static void write(DataOutputStream dos, int[] values) throws IOException {
+        dos.writeInt(values.length);
+        for (int value : values) {
+            dos.writeInt(value);
+        }
+    }
+
+    public static int[] read(DataInputStream dis) throws IOException {
+        int[] values = new int[dis.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = dis.readInt();
+        }
+        return values;
+    }
+}
@@ -1,17 +1,47 @@
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32C;
 
 public class Client {
     private static final int SERVER_PORT = 12345;
     private static final String SERVER_HOST = "127.0.0.1";
-    private static final int CHUNK_SIZE = 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_ATTEMPTS = 3; // Tentatives d'un transfert interrompu, repris là où il s'est arrêté
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    private static final String PARTIAL_SUFFIX = ".partiel"; // Téléchargement en cours
+    private static final String VERSION_SUFFIX = ".meta"; // Version du fichier distant d'un fichier partiel
+    private static final String BUSY = "OCCUPE"; // Serveur saturé : le transfert est réessayé plus tard
+    // Les gros fichiers sont découpés en tranches transférées sur plusieurs connexions à la fois
+    private static final int PARALLEL_STREAMS = 4;
+    private static final long STRIPE_SIZE = 8 * 1024 * 1024;
+    private static final String PARALLEL_SUFFIX = ".flux"; // Fichier partiel préalloué, écrit dans le désordre
+    // Découpage par le contenu (PUT -d) : une coupure quand les bits de poids fort de l'empreinte glissante sont
+    // nuls, soit en moyenne tous les 1 Mo après le minimum
+    private static final int MIN_DEDUP_CHUNK = 256 * 1024;
+    private static final int MAX_DEDUP_CHUNK = 4 * 1024 * 1024;
+    private static final long DEDUP_CUT_MASK = ((1L << 20) - 1) << 44;
+    private static final long[] GEAR = gearTable();
+    // PUT d'un dossier : les petits fichiers partent en lots, sur une connexion par lot
+    private static final long SMALL_FILE_SIZE = 1024 * 1024;
+    private static final int BATCH_MAX_FILES = 1000;
+    private static final long BATCH_MAX_BYTES = 64 * 1024 * 1024;
 
     public static void main(String[] args) {
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
 
         while (true) {
             try {
-                System.out.print("Entrez une commande (GET, PUT, ls, RM, exit) : ");
+                System.out.print("Entrez une commande (GET, PUT, ls, RM, STATS, exit) : ");
                 String input = reader.readLine().trim();
 
                 if (input.equalsIgnoreCase("exit")) {
@@ -29,14 +59,24 @@ public class Client {
                         break;
                     case "PUT":
                         if (parts.length < 2) {
-                            System.out.println("Usage : PUT <chemin fichier>");
+                            System.out.println("Usage : PUT <chemin fichier> [-z | -d] ou PUT <dossier>");
+                        } else if (new File(parts[1]).isDirectory()) {
+                            // Les fichiers du dossier ; les petits sont envoyés en lots
+                            sendDirectory(parts[1]);
+                        } else if (parts.length > 2 && "-d".equals(parts[2])) {
+                            // -d : seuls les blocs que le serveur ne connaît pas encore sont envoyés
+                            sendFileDeduplicated(parts[1]);
                         } else {
-                            sendFile(parts[1]);
+                            // -z : fragments compressés sur les sous-serveurs
+                            sendFile(parts[1], parts.length > 2 && "-z".equals(parts[2]) ? "deflate" : "aucune");
                         }
                         break;
                     case "LS":
                         listFiles();
                         break;
+                    case "STATS":
+                        showStats();
+                        break;
                     case "RM":
                         if (parts.length < 2) {
                             System.out.println("Usage : RM <nom de fichier>");
@@ -53,80 +93,776 @@ public class Client {
         }
     }
 
-    private static void sendFile(String filePath) {
+    private static void sendFile(String filePath, String codec) {
         File file = new File(filePath);
-        if (file.exists() && file.isFile()) {
-            try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
-                 DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                 FileInputStream fis = new FileInputStream(file)) {
+        if (!file.exists() || !file.isFile()) {
+            System.out.println("Fichier non valide : " + filePath);
+            return;
+        }
 
-                dos.writeUTF("ENVOYER");
-                dos.writeUTF(file.getName());
-                dos.writeLong(file.length());
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                // Un envoi interrompu de la même version du fichier reprend après ses fragments déjà stockés
+                UploadState state = getUploadState(file, codec);
+                if (!codec.equals(state.codec)) {
+                    System.out.println("Compression " + codec + " refusée par le serveur, envoi sans compression");
+                }
+                List<int[]> runs = getMissingBlockRuns(file.length(), state);
 
-                byte[] buffer = new byte[CHUNK_SIZE];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    dos.write(buffer, 0, bytesRead);
+                // Attendre que le serveur ait stocké et répliqué le fichier
+                String response;
+                if (runs.size() > 1) {
+                    response = sendBlocksParallel(file, state, runs);
+                } else {
+                    if (state.committedBytes > 0) {
+                        System.out.println("Reprise de l'envoi à l'octet " + state.committedBytes);
+                    }
+                    response = sendFileFrom(file, state.codec, state.committedBytes);
                 }
-                System.out.println("Fichier envoyé : " + file.getName());
+                if (response.startsWith(BUSY)) {
+                    throw new IOException(response);
+                } else if ("OK".equals(response)) {
+                    System.out.println("Fichier envoyé : " + file.getName());
+                } else {
+                    System.out.println("Erreur lors de l'envoi : " + response);
+                }
+                return;
             } catch (IOException e) {
                 System.out.println("Erreur lors de l'envoi : " + e.getMessage());
+                waitBeforeRetry(attempt);
             }
-        } else {
+        }
+    }
+
+    private static void sendFileDeduplicated(String filePath) {
+        File file = new File(filePath);
+        if (!file.exists() || !file.isFile()) {
             System.out.println("Fichier non valide : " + filePath);
+            return;
+        }
+
+        List<FileChunk> chunks;
+        try {
+            chunks = splitIntoChunks(file);
+        } catch (IOException e) {
+            System.out.println("Erreur lors de la lecture du fichier : " + e.getMessage());
+            return;
+        }
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                // Les blocs stockés par une tentative interrompue sont déjà connus du serveur
+                String response = sendChunks(file, chunks);
+                if (response.startsWith(BUSY)) {
+                    throw new IOException(response);
+                } else if ("OK".equals(response)) {
+                    System.out.println("Fichier envoyé : " + file.getName());
+                } else {
+                    System.out.println("Erreur lors de l'envoi : " + response);
+                }
+                return;
+            } catch (IOException e) {
+                System.out.println("Erreur lors de l'envoi : " + e.getMessage());
+                waitBeforeRetry(attempt);
+            }
+        }
+    }
+
+    private static void sendDirectory(String directoryPath) {
+        File[] files = new File(directoryPath).listFiles(File::isFile);
+        if (files == null) {
+            System.out.println("Dossier illisible : " + directoryPath);
+            return;
+        }
+        Arrays.sort(files);
+
+        List<File> batch = new ArrayList<>();
+        long batchBytes = 0;
+        for (File file : files) {
+            if (file.length() > SMALL_FILE_SIZE) {
+                sendFile(file.getPath(), "aucune");
+                continue;
+            }
+            if (batch.size() == BATCH_MAX_FILES || batchBytes + file.length() > BATCH_MAX_BYTES) {
+                sendBatchWithRetry(batch);
+                batch.clear();
+                batchBytes = 0;
+            }
+            batch.add(file);
+            batchBytes += file.length();
+        }
+        if (!batch.isEmpty()) {
+            sendBatchWithRetry(batch);
         }
     }
 
-    private static void receiveFile(String fileName, String destinationPath) { 
+    private static void sendBatchWithRetry(List<File> files) {
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                String response = sendBatch(files);
+                if (response.startsWith(BUSY)) {
+                    throw new IOException(response);
+                } else if ("OK".equals(response)) {
+                    System.out.println("Lot de " + files.size() + " fichiers envoyé.");
+                } else {
+                    System.out.println("Erreur lors de l'envoi du lot : " + response);
+                }
+                return;
+            } catch (IOException e) {
+                System.out.println("Erreur lors de l'envoi du lot : " + e.getMessage());
+                waitBeforeRetry(attempt);
+            }
+        }
+    }
+
+    /**
+     * Envoie plusieurs petits fichiers sur une seule connexion : leurs noms et
+     * tailles d'abord, puis leurs octets bout à bout. Le serveur les range
+     * ensemble dans des conteneurs.
+     */
+    private static String sendBatch(List<File> files) throws IOException {
+        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
+             DataOutputStream dos = new DataOutputStream(
+                     new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE));
+             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+
+            dos.writeUTF("ENVOYER_LOT");
+            dos.writeInt(files.size());
+            for (File file : files) {
+                dos.writeUTF(file.getName());
+                dos.writeLong(file.length());
+            }
+            dos.flush();
+            String admission = dis.readUTF(); // Refus si le serveur est occupé ou le lot invalide
+            if (!"OK".equals(admission)) {
+                return admission;
+            }
+
+            byte[] buffer = new byte[CHUNK_SIZE];
+            CRC32C crc = new CRC32C();
+            for (File file : files) {
+                try (FileInputStream fis = new FileInputStream(file)) {
+                    long remaining = file.length();
+                    while (remaining > 0) {
+                        int bytesRead = fis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (bytesRead == -1) {
+                            throw new IOException("Le fichier " + file.getName() + " a raccourci pendant l'envoi.");
+                        }
+                        dos.write(buffer, 0, bytesRead);
+                        crc.update(buffer, 0, bytesRead);
+                        remaining -= bytesRead;
+                    }
+                }
+            }
+            dos.writeInt((int) crc.getValue());
+            dos.flush();
+
+            return dis.readUTF();
+        }
+    }
+
+    /**
+     * Découpe le fichier en blocs dont les limites dépendent du contenu
+     * (empreinte glissante « gear ») : une insertion ne déplace que les
+     * limites voisines, et les blocs suivants restent identiques d'une
+     * version du fichier à l'autre. Chaque bloc est identifié par son
+     * empreinte SHA-256.
+     */
+    private static List<FileChunk> splitIntoChunks(File file) throws IOException {
+        List<FileChunk> chunks = new ArrayList<>();
+        MessageDigest sha256 = sha256();
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            long position = 0;
+            long chunkStart = 0;
+            long hash = 0;
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                int digested = 0;
+                for (int i = 0; i < bytesRead; i++) {
+                    hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+                    long length = position + i + 1 - chunkStart;
+                    if ((length >= MIN_DEDUP_CHUNK && (hash & DEDUP_CUT_MASK) == 0) || length >= MAX_DEDUP_CHUNK) {
+                        sha256.update(buffer, digested, i + 1 - digested);
+                        chunks.add(new FileChunk(chunkStart, (int) length, sha256.digest()));
+                        digested = i + 1;
+                        chunkStart = position + i + 1;
+                        hash = 0;
+                    }
+                }
+                sha256.update(buffer, digested, bytesRead - digested);
+                position += bytesRead;
+            }
+            if (position > chunkStart) {
+                chunks.add(new FileChunk(chunkStart, (int) (position - chunkStart), sha256.digest()));
+            }
+        }
+        return chunks;
+    }
+
+    private static String sendChunks(File file, List<FileChunk> chunks) throws IOException {
+        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
+             DataOutputStream dos = new DataOutputStream(
+                     new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE));
+             DataInputStream dis = new DataInputStream(socket.getInputStream());
+             RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+
+            dos.writeUTF("ENVOYER_DEDUP");
+            dos.writeUTF(file.getName());
+            dos.writeLong(file.length());
+            dos.writeLong(file.lastModified());
+            dos.writeInt(chunks.size());
+            for (FileChunk chunk : chunks) {
+                dos.write(chunk.digest);
+                dos.writeInt(chunk.length);
+            }
+            dos.flush();
+
+            // Le serveur répond avec les blocs qu'il n'a pas encore
+            int missingCount = dis.readInt();
+            if (missingCount < 0) {
+                return dis.readUTF(); // Envoi refusé, serveur occupé
+            }
+            long bytesToSend = 0;
+            CRC32C crc = new CRC32C();
+            for (int i = 0; i < missingCount; i++) {
+                FileChunk chunk = chunks.get(dis.readInt());
+                byte[] data = new byte[chunk.length];
+                raf.seek(chunk.offset);
+                raf.readFully(data);
+                dos.write(data);
+                crc.update(data);
+                bytesToSend += chunk.length;
+            }
+            dos.writeInt((int) crc.getValue());
+            dos.flush();
+            System.out.println(missingCount + "/" + chunks.size() + " blocs envoyés (" + bytesToSend + " octets sur "
+                    + file.length() + ")");
+
+            return dis.readUTF();
+        }
+    }
+
+    // Valeurs pseudo-aléatoires fixes : tous les clients doivent couper les mêmes contenus aux mêmes endroits
+    private static long[] gearTable() {
+        Random random = new Random(0x5EED_F11E_C0DEL);
+        long[] table = new long[256];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = random.nextLong();
+        }
+        return table;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static UploadState getUploadState(File file, String codec) throws IOException {
         try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
              DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
              DataInputStream dis = new DataInputStream(socket.getInputStream())) {
-    
-            // Envoyer une requête pour recevoir un fichier
-            dos.writeUTF("RECEVOIR");
+
+            dos.writeUTF("ETAT_ENVOI");
+            dos.writeUTF(file.getName());
+            dos.writeLong(file.length());
+            dos.writeLong(file.lastModified()); // Version du fichier
+            dos.writeUTF(codec); // Compression demandée
+            if (!"OK".equals(dis.readUTF())) {
+                throw new IOException(dis.readUTF()); // Serveur occupé
+            }
+            UploadState state = new UploadState();
+            state.committedBytes = dis.readLong();
+            state.blockSize = dis.readLong();
+            int storedCount = dis.readInt();
+            for (int i = 0; i < storedCount; i++) {
+                state.storedBlocks.add(dis.readInt());
+            }
+            state.codec = dis.readUTF(); // Compression acceptée par le serveur
+            return state;
+        }
+    }
+
+    /**
+     * Les blocs pas encore stockés, regroupés en suites de blocs consécutifs
+     * d'au plus {@link #STRIPE_SIZE} octets : chaque suite part sur sa propre
+     * connexion.
+     */
+    private static List<int[]> getMissingBlockRuns(long fileSize, UploadState state) {
+        int blockCount = (int) Math.max(1, (fileSize + state.blockSize - 1) / state.blockSize);
+        int blocksPerRun = (int) Math.max(1, STRIPE_SIZE / state.blockSize);
+        List<int[]> runs = new ArrayList<>();
+        int[] run = null;
+        for (int i = 0; i < blockCount; i++) {
+            if (state.storedBlocks.contains(i)) {
+                run = null;
+            } else if (run != null && run[1] < blocksPerRun) {
+                run[1]++;
+            } else {
+                run = new int[] {i, 1}; // Premier bloc, nombre de blocs
+                runs.add(run);
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Envoie chaque suite de blocs manquants sur sa propre connexion, au plus
+     * {@link #PARALLEL_STREAMS} à la fois. Les blocs sont lus dans le fichier
+     * par lectures positionnelles. Une suite qui échoue n'arrête pas les
+     * autres : le serveur garde les blocs reçus et la tentative suivante ne
+     * renvoie que ceux qui manquent encore.
+     */
+    private static String sendBlocksParallel(File file, UploadState state, List<int[]> runs) throws IOException {
+        System.out.println("Envoi de " + runs.size() + " tranches sur " + Math.min(PARALLEL_STREAMS, runs.size())
+                + " connexions");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            AtomicInteger nextRun = new AtomicInteger();
+            AtomicReference<String> failure = new AtomicReference<>();
+            runInParallel(runs.size(), () -> {
+                ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+                int index;
+                while ((index = nextRun.getAndIncrement()) < runs.size()) {
+                    int[] run = runs.get(index);
+                    String response;
+                    try {
+                        response = sendBlocks(file, channel, state, run[0], run[1], buffer);
+                    } catch (IOException e) {
+                        response = e.getMessage();
+                    }
+                    if (!"OK".equals(response)) {
+                        failure.compareAndSet(null, response);
+                    }
+                }
+                return null;
+            });
+            if (failure.get() != null) {
+                throw new IOException(failure.get());
+            }
+        }
+        return "OK";
+    }
+
+    private static String sendBlocks(File file, FileChannel channel, UploadState state, int firstBlock,
+            int blockCount, ByteBuffer buffer) throws IOException {
+        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+
+            dos.writeUTF("ENVOYER_BLOCS");
+            dos.writeUTF(file.getName());
+            dos.writeLong(file.length());
+            dos.writeLong(file.lastModified());
+            dos.writeUTF(state.codec);
+            dos.writeInt(firstBlock);
+            dos.writeInt(blockCount);
+            String admission = dis.readUTF(); // Refus si le serveur est occupé
+            if (!"OK".equals(admission)) {
+                return admission;
+            }
+
+            long position = firstBlock * state.blockSize;
+            long end = Math.min(file.length(), position + blockCount * state.blockSize);
+            CRC32C crc = new CRC32C();
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(CHUNK_SIZE, end - position));
+                int bytesRead = channel.read(buffer, position);
+                if (bytesRead == -1) {
+                    throw new IOException("Le fichier " + file.getName() + " a raccourci pendant l'envoi.");
+                }
+                dos.write(buffer.array(), 0, bytesRead);
+                crc.update(buffer.array(), 0, bytesRead);
+                position += bytesRead;
+            }
+            dos.writeInt((int) crc.getValue());
+
+            return dis.readUTF();
+        }
+    }
+
+    private static String sendFileFrom(File file, String codec, long offset) throws IOException {
+        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dis = new DataInputStream(socket.getInputStream());
+             FileInputStream fis = new FileInputStream(file)) {
+
+            dos.writeUTF("ENVOYER_DEPUIS");
+            dos.writeUTF(file.getName());
+            dos.writeLong(file.length());
+            dos.writeLong(file.lastModified());
+            dos.writeUTF(codec);
+            dos.writeLong(offset);
+            String admission = dis.readUTF(); // Refus si le serveur est occupé
+            if (!"OK".equals(admission)) {
+                return admission;
+            }
+
+            fis.getChannel().position(offset);
+            byte[] buffer = new byte[CHUNK_SIZE];
+            CRC32C crc = new CRC32C();
+            int bytesRead;
+            while ((bytesRead = fis.read(buffer)) != -1) {
+                dos.write(buffer, 0, bytesRead);
+                crc.update(buffer, 0, bytesRead);
+            }
+            dos.writeInt((int) crc.getValue()); // Le serveur vérifie le flux reçu
+
+            return dis.readUTF();
+        }
+    }
+
+    private static void receiveFile(String fileName, String destinationPath) {
+        File destinationFile = new File(destinationPath);
+
+        // Vérifier si le chemin est valide et peut être créé
+        if (destinationFile.isDirectory()) {
+            destinationFile = new File(destinationFile, fileName);
+        } else if (destinationFile.getParentFile() != null && !destinationFile.getParentFile().exists()) {
+            if (!destinationFile.getParentFile().mkdirs()) {
+                System.out.println("Erreur : Impossible de créer le répertoire de destination.");
+                return;
+            }
+        }
+
+        // Les octets reçus s'accumulent dans un fichier partiel, renommé une fois complet
+        File partialFile = new File(destinationFile.getPath() + PARTIAL_SUFFIX);
+        File versionFile = new File(partialFile.getPath() + VERSION_SUFFIX);
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                RemoteFile remote = getRemoteFile(fileName);
+                if (remote == null) {
+                    return;
+                }
+                // Un fichier partiel ne se complète qu'avec la version du fichier dont il vient ; un fichier
+                // partiel d'une autre version, d'un autre fichier ou déjà aussi long est recommencé
+                if (partialFile.exists() && (readVersion(versionFile) != remote.version
+                        || partialFile.length() >= remote.size)) {
+                    Files.delete(partialFile.toPath());
+                }
+                writeVersion(versionFile, remote.version);
+                long offset = partialFile.isFile() ? partialFile.length() : 0;
+                boolean complete = remote.size - offset >= 2 * STRIPE_SIZE
+                        ? receiveFileParallel(fileName, partialFile, offset, remote)
+                        : receiveFileFrom(fileName, partialFile, remote);
+                if (complete) {
+                    Files.move(partialFile.toPath(), destinationFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    Files.deleteIfExists(versionFile.toPath());
+                    System.out.println("Fichier reçu avec succès : " + destinationFile.getAbsolutePath());
+                }
+                return;
+            } catch (IOException e) {
+                System.out.println("Erreur lors de la réception : " + e.getMessage());
+                waitBeforeRetry(attempt);
+            }
+        }
+    }
+
+    // Version enregistrée à côté d'un fichier partiel, -1 si elle est absente ou illisible
+    private static long readVersion(File versionFile) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(versionFile))) {
+            return in.readLong();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static void writeVersion(File versionFile, long version) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(versionFile))) {
+            out.writeLong(version);
+        }
+    }
+
+    /**
+     * Demande la suite du fichier à partir de la taille du fichier partiel et
+     * l'ajoute à sa fin. Renvoie vrai si le fichier est complet, faux si le
+     * serveur a refusé la demande. Si le fichier a changé sur le serveur, le
+     * fichier partiel est effacé pour recommencer depuis le début.
+     */
+    private static boolean receiveFileFrom(String fileName, File partialFile, RemoteFile remote)
+            throws IOException {
+        long offset = partialFile.isFile() ? partialFile.length() : 0;
+        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+
+            // Envoyer une requête pour recevoir la fin du fichier
+            dos.writeUTF("RECEVOIR_PLAGE");
             dos.writeUTF(fileName);
-    
+            dos.writeLong(offset);
+            dos.writeLong(Long.MAX_VALUE);
+
             // Lire la réponse du serveur
             String response = dis.readUTF();
-            if ("OK".equals(response)) {
-                long fileSize = dis.readLong();
-                File destinationFile = new File(destinationPath);
-    
-                // Vérifier si le chemin est valide et peut être créé
-                if (destinationFile.isDirectory()) {
-                    destinationFile = new File(destinationFile, fileName);
-                } else if (destinationFile.getParentFile() != null && !destinationFile.getParentFile().exists()) {
-                    if (!destinationFile.getParentFile().mkdirs()) {
-                        System.out.println("Erreur : Impossible de créer le répertoire de destination.");
-                        return;
+            if (!"OK".equals(response)) {
+                String message = dis.readUTF();
+                if (BUSY.equals(response)) {
+                    throw new IOException(message); // Le fichier partiel est gardé pour la tentative suivante
+                } else if (offset > 0) {
+                    // Le fichier a changé sur le serveur : recommencer depuis le début
+                    partialFile.delete();
+                    throw new IOException(message);
+                }
+                System.out.println("Erreur : " + message);
+                return false;
+            }
+            long fileSize = dis.readLong();
+            if (fileSize != remote.size || dis.readLong() != remote.version) {
+                partialFile.delete();
+                throw new IOException("Le fichier " + fileName + " a changé sur le serveur.");
+            }
+            long length = dis.readLong();
+            if (offset > 0) {
+                System.out.println("Reprise de la réception à l'octet " + offset);
+            }
+
+            // Lire les données du fichier et reconstruire le fichier
+            CRC32C crc = new CRC32C();
+            try (FileOutputStream fos = new FileOutputStream(partialFile, true)) {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                long totalRead = 0;
+                int bytesRead;
+                while (totalRead < length) {
+                    bytesRead = dis.read(buffer, 0, (int) Math.min(CHUNK_SIZE, length - totalRead));
+                    if (bytesRead == -1) {
+                        throw new IOException("Fin prématurée de la connexion au serveur.");
                     }
+                    fos.write(buffer, 0, bytesRead);
+                    crc.update(buffer, 0, bytesRead);
+                    totalRead += bytesRead;
                 }
-    
-                // Lire les données du fichier et reconstruire le fichier
-                try (FileOutputStream fos = new FileOutputStream(destinationFile)) {
-                    byte[] buffer = new byte[CHUNK_SIZE];
-                    long totalRead = 0;
-                    int bytesRead;
-                    while (totalRead < fileSize) {
-                        bytesRead = dis.read(buffer, 0, (int) Math.min(CHUNK_SIZE, fileSize - totalRead));
-                        if (bytesRead == -1) {
-                            throw new IOException("Fin prématurée de la connexion au serveur.");
-                        }
-                        fos.write(buffer, 0, bytesRead);
-                        totalRead += bytesRead;
+            }
+
+            // Somme de contrôle de la plage, envoyée après les données
+            if (dis.readInt() != (int) crc.getValue()) {
+                try (RandomAccessFile raf = new RandomAccessFile(partialFile, "rw")) {
+                    raf.setLength(offset); // Redemander la plage corrompue
+                }
+                throw new IOException("les données reçues sont corrompues.");
+            }
+            return true;
+        }
+    }
+
+    /** Taille et version du fichier sur le serveur, ou null s'il a refusé la demande. */
+    private static RemoteFile getRemoteFile(String fileName) throws IOException {
+        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+
+            // Une plage vide : seule la taille du fichier est renvoyée
+            dos.writeUTF("RECEVOIR_PLAGE");
+            dos.writeUTF(fileName);
+            dos.writeLong(0);
+            dos.writeLong(0);
+            String response = dis.readUTF();
+            if (!"OK".equals(response)) {
+                String message = dis.readUTF();
+                if (BUSY.equals(response)) {
+                    throw new IOException(message); // Serveur saturé : nouvelle tentative
+                }
+                System.out.println("Erreur : " + message);
+                return null;
+            }
+            RemoteFile remote = new RemoteFile(dis.readLong(), dis.readLong());
+            dis.readLong();
+            dis.readInt();
+            return remote;
+        }
+    }
+
+    /**
+     * Reçoit les octets {@code [offset, fileSize)} en tranches de
+     * {@link #STRIPE_SIZE} octets, demandées sur {@link #PARALLEL_STREAMS}
+     * connexions à la fois. Chaque tranche est écrite à sa place par
+     * écritures positionnelles dans un fichier préalloué à la taille finale,
+     * et reprend là où elle s'est arrêtée si sa connexion est coupée. Si une
+     * tranche échoue, le fichier partiel est ramené aux octets reçus qui se
+     * suivent depuis le début, pour une reprise.
+     */
+    private static boolean receiveFileParallel(String fileName, File partialFile, long offset, RemoteFile remote)
+            throws IOException {
+        long fileSize = remote.size;
+        File workingFile = new File(partialFile.getPath() + PARALLEL_SUFFIX);
+        if (partialFile.exists()) {
+            Files.move(partialFile.toPath(), workingFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(workingFile.toPath());
+        }
+        if (offset > 0) {
+            System.out.println("Reprise de la réception à l'octet " + offset);
+        }
+
+        int stripeCount = (int) ((fileSize - offset + STRIPE_SIZE - 1) / STRIPE_SIZE);
+        long[] received = new long[stripeCount]; // Octets reçus de chaque tranche
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        try (RandomAccessFile raf = new RandomAccessFile(workingFile, "rw")) {
+            raf.setLength(fileSize);
+            FileChannel channel = raf.getChannel();
+            AtomicInteger nextStripe = new AtomicInteger();
+            System.out.println("Réception de " + stripeCount + " tranches sur "
+                    + Math.min(PARALLEL_STREAMS, stripeCount) + " connexions");
+            runInParallel(stripeCount, () -> {
+                ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+                int stripe;
+                // Après un échec définitif, les tranches restantes ne sont plus demandées
+                while (failure.get() == null && (stripe = nextStripe.getAndIncrement()) < stripeCount) {
+                    long start = offset + stripe * STRIPE_SIZE;
+                    long end = Math.min(fileSize, start + STRIPE_SIZE);
+                    try {
+                        receiveStripe(fileName, remote, channel, start, end, received, stripe, buffer);
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
                     }
                 }
-    
-                System.out.println("Fichier reçu avec succès : " + destinationFile.getAbsolutePath());
-            } else {
-                System.out.println("Erreur : " + dis.readUTF());
+                return null;
+            });
+
+            if (failure.get() != null) {
+                long contiguous = offset;
+                for (int i = 0; i < stripeCount; i++) {
+                    contiguous += received[i];
+                    if (received[i] < Math.min(STRIPE_SIZE, fileSize - offset - i * STRIPE_SIZE)) {
+                        break;
+                    }
+                }
+                raf.setLength(contiguous);
+            }
+        }
+        Files.move(workingFile.toPath(), partialFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return true;
+    }
+
+    private static void receiveStripe(String fileName, RemoteFile remote, FileChannel channel, long start, long end,
+            long[] received, int stripe, ByteBuffer buffer) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                receiveRange(fileName, remote, channel, start, end, received, stripe, buffer);
+                return;
+            } catch (IOException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+                System.out.println("Tranche [" + start + ", " + end + ") interrompue à l'octet "
+                        + (start + received[stripe]) + " : " + e.getMessage());
+                waitBeforeRetry(attempt);
+            }
+        }
+    }
+
+    private static void receiveRange(String fileName, RemoteFile remote, FileChannel channel, long start, long end,
+            long[] received, int stripe, ByteBuffer buffer) throws IOException {
+        long resumeFrom = received[stripe];
+        long position = start + resumeFrom;
+        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream(), CHUNK_SIZE))) {
+
+            dos.writeUTF("RECEVOIR_PLAGE");
+            dos.writeUTF(fileName);
+            dos.writeLong(position);
+            dos.writeLong(end - position);
+            if (!"OK".equals(dis.readUTF())) {
+                throw new IOException(dis.readUTF());
+            }
+            if (dis.readLong() != remote.size || dis.readLong() != remote.version) {
+                throw new IOException("Le fichier " + fileName + " a changé sur le serveur.");
+            }
+            long length = dis.readLong();
+
+            CRC32C crc = new CRC32C();
+            long totalRead = 0;
+            while (totalRead < length) {
+                int n = (int) Math.min(CHUNK_SIZE, length - totalRead);
+                dis.readFully(buffer.array(), 0, n);
+                crc.update(buffer.array(), 0, n);
+                buffer.clear().limit(n);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + buffer.position());
+                }
+                position += n;
+                totalRead += n;
+                received[stripe] = resumeFrom + totalRead;
+            }
+
+            // Somme de contrôle de la plage, envoyée après les données
+            if (dis.readInt() != (int) crc.getValue()) {
+                received[stripe] = resumeFrom; // Redemander la plage corrompue
+                throw new IOException("les données reçues sont corrompues.");
             }
-        } catch (IOException e) {
-            System.out.println("Erreur lors de la réception : " + e.getMessage());
         }
     }
 
+    // Lance le même travail sur au plus PARALLEL_STREAMS threads et attend qu'ils aient tous fini
+    private static void runInParallel(int taskCount, Callable<Void> worker) throws IOException {
+        int threads = Math.min(PARALLEL_STREAMS, taskCount);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(executor.submit(worker));
+            }
+            for (Future<Void> future : workers) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfert interrompu");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void waitBeforeRetry(int attempt) {
+        if (attempt < MAX_ATTEMPTS) {
+            System.out.println("Nouvelle tentative (" + (attempt + 1) + "/" + MAX_ATTEMPTS + ")...");
+            try {
+                Thread.sleep(RETRY_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Bloc d'un fichier découpé par le contenu
+    private static class FileChunk {
+        final long offset;
+        final int length;
+        final byte[] digest;
+
+        FileChunk(long offset, int length, byte[] digest) {
+            this.offset = offset;
+            this.length = length;
+            this.digest = digest;
+        }
+    }
+
+    // Fichier distant tel qu'il était au début d'un téléchargement
+    private static class RemoteFile {
+        final long size;
+        final long version; // Attribuée par le catalogue à chaque enregistrement du fichier
+
+        RemoteFile(long size, long version) {
+            this.size = size;
+            this.version = version;
+        }
+    }
+
+    // Réponse à ETAT_ENVOI
+    private static class UploadState {
+        long committedBytes; // Fragments stockés qui se suivent depuis le début
+        long blockSize;
+        final Set<Integer> storedBlocks = new HashSet<>();
+        String codec;
+    }
+
     private static void listFiles() {
         try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
              DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
@@ -148,6 +884,22 @@ public class Client {
         }
     }
     
+    // Mesures du serveur principal et de ses sous-serveurs
+    private static void showStats() {
+        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+
+            dos.writeUTF("STATS");
+            int lineCount = dis.readInt();
+            for (int i = 0; i < lineCount; i++) {
+                System.out.println(dis.readUTF());
+            }
+        } catch (IOException e) {
+            System.out.println("Erreur lors de la commande STATS : " + e.getMessage());
+        }
+    }
+
     private static void removeFile(String fileName) {
         try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
              DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
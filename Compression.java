@@ -0,0 +1,197 @@
+import java.io.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression des fragments, choisie fichier par fichier.
+ *
+ * Un fragment compressé est une suite de trames indépendantes, une par
+ * morceau de {@link #FRAME_SIZE} octets du fichier, la taille des morceaux
+ * des sommes de contrôle : [taille d'origine][taille stockée][octets]. Une
+ * trame que Deflate n'arrive pas à réduire est gardée telle quelle (taille
+ * stockée égale à la taille d'origine). Les sous-serveurs stockent et
+ * répliquent les trames sans les connaître ; le serveur principal compresse
+ * à la réception du client et décompresse en envoyant au client. Le nom d'un
+ * fragment compressé se termine par {@link #SUFFIX}.
+ *
+ * La position de la trame qui commence chaque tranche de
+ * {@link #INDEX_SPACING} octets du fragment d'origine est gardée par le
+ * catalogue : la lecture d'une plage ne demande que les trames qui la
+ * recouvrent.
+ */
+public class Compression {
+    public static final byte NONE = 0;
+    public static final byte DEFLATE = 1;
+    public static final int FRAME_SIZE = Checksums.CHUNK_SIZE;
+    // Octets du fragment d'origine entre deux positions de trame enregistrées
+    public static final int INDEX_SPACING = 16 * FRAME_SIZE;
+    public static final String SUFFIX = ".z";
+    private static final int HEADER_SIZE = 8;
+
+    private Compression() {
+    }
+
+    /** Le code d'une compression d'après son nom sur le fil, ou -1 si elle est inconnue. */
+    public static byte byName(String name) {
+        if ("aucune".equalsIgnoreCase(name)) {
+            return NONE;
+        } else if ("deflate".equalsIgnoreCase(name)) {
+            return DEFLATE;
+        }
+        return -1;
+    }
+
+    public static String name(byte codec) {
+        return codec == DEFLATE ? "deflate" : "aucune";
+    }
+
+    /**
+     * Lit {@code size} octets du flux et écrit leurs trames compressées dans
+     * {@code out}, une trame à la fois. Renvoie la position dans {@code out}
+     * de la trame qui commence chaque tranche de {@link #INDEX_SPACING}
+     * octets.
+     */
+    public static int[] compress(DataInputStream in, long size, OutputStream out) throws IOException {
+        DataOutputStream frames = new DataOutputStream(out);
+        int[] index = new int[indexLength(size)];
+        // Niveau le plus rapide : la compression se fait au débit du client
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] raw = new byte[FRAME_SIZE];
+        byte[] compressed = new byte[FRAME_SIZE];
+        try {
+            long position = 0;
+            while (position < size) {
+                if (position % INDEX_SPACING == 0) {
+                    index[(int) (position / INDEX_SPACING)] = frames.size();
+                }
+                int rawLength = (int) Math.min(FRAME_SIZE, size - position);
+                in.readFully(raw, 0, rawLength);
+                position += rawLength;
+
+                deflater.reset();
+                deflater.setInput(raw, 0, rawLength);
+                deflater.finish();
+                int storedLength = 0;
+                while (!deflater.finished() && storedLength < rawLength) {
+                    storedLength += deflater.deflate(compressed, storedLength, rawLength - storedLength);
+                }
+                frames.writeInt(rawLength);
+                if (deflater.finished() && storedLength < rawLength) {
+                    frames.writeInt(storedLength);
+                    frames.write(compressed, 0, storedLength);
+                } else {
+                    frames.writeInt(rawLength);
+                    frames.write(raw, 0, rawLength);
+                }
+            }
+            frames.flush();
+        } finally {
+            deflater.end();
+        }
+        return index;
+    }
+
+    /** Nombre de positions de trame enregistrées pour un fragment de {@code size} octets. */
+    public static int indexLength(long size) {
+        return (int) ((size + INDEX_SPACING - 1) / INDEX_SPACING);
+    }
+
+    /**
+     * Flux qui reçoit les octets stockés d'un fragment compressé, dans
+     * l'ordre à partir de la trame qui commence à l'octet {@code start} du
+     * fragment d'origine, et écrit dans {@code out} les octets
+     * {@code [from, to)} de celui-ci.
+     */
+    public static class Decoder extends OutputStream {
+        private final OutputStream out;
+        private final long from;
+        private final long to;
+        private final Inflater inflater = new Inflater();
+        private final byte[] header = new byte[HEADER_SIZE];
+        private final byte[] raw = new byte[FRAME_SIZE];
+        private final byte[] frame = new byte[FRAME_SIZE];
+        private int headerFilled;
+        private int frameFilled;
+        private int rawLength;
+        private int storedLength;
+        private long position; // Octets du fragment d'origine déjà décodés
+
+        public Decoder(OutputStream out, long start, long from, long to) {
+            this.out = out;
+            this.from = from;
+            this.to = to;
+            this.position = start;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (headerFilled < HEADER_SIZE) {
+                    int n = Math.min(length, HEADER_SIZE - headerFilled);
+                    System.arraycopy(data, offset, header, headerFilled, n);
+                    headerFilled += n;
+                    offset += n;
+                    length -= n;
+                    if (headerFilled == HEADER_SIZE) {
+                        DataInputStream fields = new DataInputStream(new ByteArrayInputStream(header));
+                        rawLength = fields.readInt();
+                        storedLength = fields.readInt();
+                        if (rawLength <= 0 || rawLength > FRAME_SIZE || storedLength <= 0
+                                || storedLength > rawLength) {
+                            throw new IOException("Trame compressée invalide");
+                        }
+                        frameFilled = 0;
+                    }
+                } else {
+                    int n = Math.min(length, storedLength - frameFilled);
+                    System.arraycopy(data, offset, frame, frameFilled, n);
+                    frameFilled += n;
+                    offset += n;
+                    length -= n;
+                    if (frameFilled == storedLength) {
+                        decodeFrame();
+                        headerFilled = 0;
+                    }
+                }
+            }
+        }
+
+        private void decodeFrame() throws IOException {
+            byte[] decoded = frame;
+            if (storedLength < rawLength) {
+                inflater.reset();
+                inflater.setInput(frame, 0, storedLength);
+                try {
+                    if (inflater.inflate(raw, 0, rawLength) != rawLength || !inflater.finished()) {
+                        throw new IOException("Trame compressée invalide");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Trame compressée invalide : " + e.getMessage());
+                }
+                decoded = raw;
+            }
+            // Seule la partie de la trame comprise dans [from, to) est écrite
+            long start = Math.max(from, position);
+            long end = Math.min(to, position + rawLength);
+            if (start < end) {
+                out.write(decoded, (int) (start - position), (int) (end - start));
+            }
+            position += rawLength;
+        }
+
+        /** Vérifie que le fragment s'est terminé sur une trame complète et libère le décompresseur. */
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            if (headerFilled != 0 || position < to) {
+                throw new IOException("Fragment compressé incomplet");
+            }
+        }
+    }
+}
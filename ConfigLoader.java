@@ -1,32 +1,64 @@
 import java.io.*;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ConfigLoader {
-    private static final Map<String, String> properties = new HashMap<>();
+    // Un autre fichier peut être choisi avec -Dconfig.file=..., par exemple pour les mesures de performance
+    private static final File CONFIG_FILE = new File(System.getProperty("config.file", "config.txt"));
+    private static final Map<String, String> properties = new ConcurrentHashMap<>();
+    private static long lastModified;
 
     static {
-        try (BufferedReader br = new BufferedReader(new FileReader("config.txt"))) {
+        load();
+    }
+
+    private static synchronized void load() {
+        Map<String, String> loaded = new HashMap<>();
+        long modified = CONFIG_FILE.lastModified();
+        try (BufferedReader br = new BufferedReader(new FileReader(CONFIG_FILE))) {
             String line;
             while ((line = br.readLine()) != null) {
                 String[] parts = line.split("=", 2); // Sépare la clé et la valeur
                 if (parts.length == 2) {
-                    properties.put(parts[0].trim(), parts[1].trim());
+                    loaded.put(parts[0].trim(), parts[1].trim());
                 }
             }
         } catch (IOException e) {
             System.err.println("Erreur lors du chargement du fichier de configuration : " + e.getMessage());
+            return;
+        }
+        properties.putAll(loaded);
+        properties.keySet().retainAll(loaded.keySet());
+        lastModified = modified;
+    }
+
+    /** Relit le fichier de configuration s'il a été modifié depuis le dernier chargement. */
+    public static synchronized boolean reloadIfModified() {
+        if (CONFIG_FILE.lastModified() == lastModified) {
+            return false;
         }
+        load();
+        return true;
     }
 
     public static String get(String key) {
         return properties.get(key);
     }
 
+    public static String get(String key, String defaultValue) {
+        return properties.getOrDefault(key, defaultValue);
+    }
+
     public static int getInt(String key) {
         return Integer.parseInt(properties.get(key));
     }
 
+    public static int getInt(String key, int defaultValue) {
+        String value = properties.get(key);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
     public ConfigLoader() {
     }
 }
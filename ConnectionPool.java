@@ -0,0 +1,83 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Connexions de données réutilisables vers les sous-serveurs.
+ *
+ * Un sous-serveur garde la connexion ouverte après chaque commande : une
+ * connexion rendue au pool sert à la requête suivante vers le même
+ * sous-serveur sans nouvelle poignée de main TCP. Une connexion n'est rendue
+ * que lorsque la réponse a été lue en entier.
+ */
+public class ConnectionPool {
+    private static final int MAX_IDLE_PER_SUB_SERVER = ConfigLoader.getInt("pool.max_idle", 8);
+    private static final int CONNECT_TIMEOUT_MILLIS = ConfigLoader.getInt("control.connect_timeout_ms", 2000);
+    private static final Map<SubServerInfo, Deque<Connection>> IDLE = new ConcurrentHashMap<>();
+
+    private ConnectionPool() {
+    }
+
+    /** Une connexion inactive vers ce sous-serveur, ou une nouvelle s'il n'y en a pas. */
+    public static Connection borrow(SubServerInfo subServer, int bufferSize) throws IOException {
+        Connection connection = idle(subServer).pollFirst();
+        return connection != null ? connection : new Connection(subServer, bufferSize);
+    }
+
+    /** Rend une connexion dont la dernière réponse a été entièrement lue. */
+    public static void release(Connection connection) {
+        Deque<Connection> idle = idle(connection.subServer);
+        if (idle.size() < MAX_IDLE_PER_SUB_SERVER) {
+            connection.reused = true;
+            idle.offerFirst(connection);
+        } else {
+            connection.close();
+        }
+    }
+
+    /** Ferme les connexions inactives vers ce sous-serveur, par exemple après son redémarrage. */
+    public static void discard(SubServerInfo subServer) {
+        Connection connection;
+        while ((connection = idle(subServer).pollFirst()) != null) {
+            connection.close();
+        }
+    }
+
+    private static Deque<Connection> idle(SubServerInfo subServer) {
+        return IDLE.computeIfAbsent(subServer, s -> new ConcurrentLinkedDeque<>());
+    }
+
+    public static class Connection implements Closeable {
+        final SubServerInfo subServer;
+        final Socket socket = new Socket();
+        final DataInputStream in;
+        final DataOutputStream out;
+        // Vrai si la connexion a déjà servi : le sous-serveur a pu la fermer entre-temps
+        boolean reused;
+
+        Connection(SubServerInfo subServer, int bufferSize) throws IOException {
+            this.subServer = subServer;
+            try {
+                socket.connect(new InetSocketAddress(subServer.host, subServer.port), CONNECT_TIMEOUT_MILLIS);
+                DataTimeout.configure(socket); // Un sous-serveur figé fait échouer la lecture au lieu de la bloquer
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), bufferSize));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), bufferSize));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Canal de contrôle persistant vers un sous-serveur.
+ *
+ * Une seule connexion par sous-serveur (commande MUX) porte toutes les
+ * requêtes courtes du serveur principal : PING, SIZE, LISTER et DELETE.
+ * Chaque requête est une trame [identifiant][longueur][commande et
+ * arguments] ; le sous-serveur les traite en parallèle et répond avec le même
+ * identifiant, dans n'importe quel ordre. La connexion est rouverte à la
+ * requête suivante si elle est perdue.
+ */
+public class ControlChannel {
+    private static final int CONNECT_TIMEOUT_MILLIS = ConfigLoader.getInt("control.connect_timeout_ms", 2000);
+    private static final int REPLY_TIMEOUT_MILLIS = ConfigLoader.getInt("control.timeout_ms", 10000);
+    private static final Map<SubServerInfo, ControlChannel> CHANNELS = new ConcurrentHashMap<>();
+
+    private final SubServerInfo subServer;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private Link link;
+
+    private ControlChannel(SubServerInfo subServer) {
+        this.subServer = subServer;
+    }
+
+    /** Le canal de contrôle partagé vers ce sous-serveur. */
+    public static ControlChannel to(SubServerInfo subServer) {
+        return CHANNELS.computeIfAbsent(subServer, ControlChannel::new);
+    }
+
+    /** Vrai si le sous-serveur répond à PING. */
+    public boolean ping() {
+        try {
+            return "PONG".equals(call("PING").readUTF());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Envoie une commande et ses arguments, puis attend la réponse, lue comme
+     * sur une connexion dédiée.
+     */
+    public DataInputStream call(String command, String... args) throws IOException {
+        return call(REPLY_TIMEOUT_MILLIS, command, args);
+    }
+
+    /** Comme {@link #call(String, String...)}, avec un délai de réponse propre à la requête. */
+    public DataInputStream call(long timeoutMillis, String command, String... args) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream request = new DataOutputStream(bytes);
+        request.writeUTF(command);
+        for (String arg : args) {
+            request.writeUTF(arg);
+        }
+
+        int requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<byte[]> reply = new CompletableFuture<>();
+        Link current = currentLink();
+        current.pending.put(requestId, reply);
+        try {
+            current.send(requestId, bytes.toByteArray());
+            return new DataInputStream(new ByteArrayInputStream(reply.get(timeoutMillis, TimeUnit.MILLISECONDS)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Requête " + command + " interrompue");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("Pas de réponse de " + subServer + " à " + command);
+        } finally {
+            current.pending.remove(requestId);
+        }
+    }
+
+    private synchronized Link currentLink() throws IOException {
+        if (link == null || link.closed) {
+            link = new Link();
+        }
+        return link;
+    }
+
+    private class Link {
+        final Socket socket = new Socket();
+        final DataOutputStream out;
+        final Map<Integer, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+        volatile boolean closed;
+
+        Link() throws IOException {
+            try {
+                socket.connect(new InetSocketAddress(subServer.host, subServer.port), CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.writeUTF("MUX");
+                out.flush();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread reader = new Thread(() -> readReplies(in), "control-" + subServer);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        synchronized void send(int requestId, byte[] frame) throws IOException {
+            if (closed) {
+                throw new IOException("Connexion de contrôle vers " + subServer + " fermée");
+            }
+            try {
+                out.writeInt(requestId);
+                out.writeInt(frame.length);
+                out.write(frame);
+                out.flush();
+            } catch (IOException e) {
+                close(e);
+                throw e;
+            }
+        }
+
+        private void readReplies(DataInputStream in) {
+            try {
+                while (true) {
+                    int requestId = in.readInt();
+                    byte[] reply = new byte[in.readInt()];
+                    in.readFully(reply);
+                    CompletableFuture<byte[]> future = pending.get(requestId);
+                    if (future != null) {
+                        future.complete(reply);
+                    }
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void close(IOException cause) {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            // Les requêtes en attente sur cette connexion ne recevront plus de réponse
+            for (CompletableFuture<byte[]> future : pending.values()) {
+                future.completeExceptionally(new IOException("Connexion de contrôle vers " + subServer
+                        + " perdue : " + cause.getMessage()));
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Délai des connexions de données vers les sous-serveurs
+ * ({@code data.timeout_ms}, 0 : aucun).
+ *
+ * Une lecture qui n'avance plus pendant ce délai échoue avec
+ * {@link java.net.SocketTimeoutException} (SO_TIMEOUT). Une écriture bloquée,
+ * que SO_TIMEOUT ne couvre pas, est interrompue en fermant la connexion : un
+ * sous-serveur figé mais pas arrêté remplit les tampons TCP et la bloquerait
+ * indéfiniment. Dans les deux cas, le transfert échoue comme vers un
+ * sous-serveur arrêté et passe à une autre réplique.
+ *
+ * Dans une chaîne de réplication, un maillon attend aussi ceux qui le
+ * suivent : le délai est multiplié par le nombre de maillons en aval, pour
+ * que seul le maillon figé soit abandonné et pas toute la chaîne.
+ */
+public class DataTimeout {
+    public static final int MILLIS = ConfigLoader.getInt("data.timeout_ms", 30000);
+    // Écritures en cours : échéance (System.nanoTime) de chaque connexion surveillée
+    private static final Map<Closeable, Long> WRITES = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "data-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        if (MILLIS > 0) {
+            long period = Math.max(100, MILLIS / 4);
+            WATCHDOG.scheduleWithFixedDelay(DataTimeout::closeStalled, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private DataTimeout() {
+    }
+
+    /** Applique le délai de lecture à une connexion de données. */
+    public static void configure(Socket socket) throws SocketException {
+        configure(socket, 1);
+    }
+
+    /** Délai de lecture d'une connexion vers une chaîne de {@code links} maillons. */
+    public static void configure(Socket socket, int links) throws SocketException {
+        socket.setSoTimeout(MILLIS * Math.max(1, links));
+    }
+
+    /**
+     * Début d'une écriture sur {@code connection}, vers une chaîne de
+     * {@code links} maillons : elle est fermée si l'écriture n'est pas
+     * terminée ({@link #done}) dans le délai.
+     */
+    public static void watch(Closeable connection, int links) {
+        if (MILLIS > 0) {
+            long timeoutMillis = (long) MILLIS * Math.max(1, links);
+            WRITES.put(connection, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        }
+    }
+
+    /** Fin de l'écriture commencée par {@link #watch}. */
+    public static void done(Closeable connection) {
+        WRITES.remove(connection);
+    }
+
+    private static void closeStalled() {
+        long now = System.nanoTime();
+        for (Map.Entry<Closeable, Long> write : WRITES.entrySet()) {
+            if (now - write.getValue() > 0 && WRITES.remove(write.getKey(), write.getValue())) {
+                System.err.println("Écriture bloquée depuis " + MILLIS + " ms, connexion fermée.");
+                Metrics.increment("donnees.delais_depasses");
+                try {
+                    write.getKey().close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Un fichier par fragment dans le répertoire du sous-serveur, avec ses sommes
+ * de contrôle dans un fichier annexe {@code <fragment>.crc}. Un fragment est
+ * reçu dans un fichier temporaire et n'apparaît sous son nom qu'une fois
+ * complet.
+ */
+public class FileStore implements FragmentStore {
+    private static final String TEMP_SUFFIX = ".tmp"; // Fragment en cours de réception
+    private static final String CHECKSUM_SUFFIX = ".crc"; // Sommes de contrôle CRC32C d'un fragment
+
+    private final File directory;
+    // Noms des fragments stockés, triés : LISTER et DELETE n'ont pas à parcourir le répertoire
+    private final NavigableSet<String> names = new ConcurrentSkipListSet<>();
+
+    public FileStore(File directory) {
+        this.directory = directory;
+        // Un seul parcours du répertoire, au démarrage
+        File[] stored = directory.listFiles((dir, name) -> !name.endsWith(TEMP_SUFFIX)
+                && !name.endsWith(CHECKSUM_SUFFIX));
+        if (stored != null) {
+            for (File file : stored) {
+                names.add(file.getName());
+            }
+        }
+    }
+
+    @Override
+    public Writer create(String name, long size) throws IOException {
+        File file = new File(directory, name);
+        File tempFile = new File(directory, name + TEMP_SUFFIX);
+        FileChannel fileChannel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new Writer() {
+            @Override
+            public void write(ByteBuffer buffer, long position) throws IOException {
+                while (buffer.hasRemaining()) {
+                    position += fileChannel.write(buffer, position);
+                }
+            }
+
+            @Override
+            public void commit(int[] checksums) throws IOException {
+                fileChannel.close();
+                File checksumTempFile = new File(directory, name + CHECKSUM_SUFFIX + TEMP_SUFFIX);
+                try (DataOutputStream checksumOut = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(checksumTempFile)))) {
+                    Checksums.write(checksumOut, checksums);
+                }
+                // Les sommes d'abord : un fragment visible a toujours les siennes
+                move(checksumTempFile, checksumFile(file));
+                move(tempFile, file);
+                names.add(name);
+            }
+
+            @Override
+            public void abort() {
+                try {
+                    fileChannel.close();
+                } catch (IOException ignored) {
+                }
+                tempFile.delete();
+            }
+        };
+    }
+
+    @Override
+    public StoredFragment open(String name) throws IOException {
+        File file = new File(directory, name);
+        if (!file.isFile()) {
+            return null;
+        }
+        FileChannel fileChannel;
+        try {
+            fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null; // Effacé entre-temps
+        }
+        return new StoredFragment(fileChannel, 0, fileChannel.size()) {
+            @Override
+            int[] checksums(int first, int count) {
+                return readChecksums(file, first, count);
+            }
+        };
+    }
+
+    @Override
+    public long size(String name) {
+        File file = new File(directory, name);
+        return file.isFile() ? file.length() : -1;
+    }
+
+    @Override
+    public NavigableSet<String> names() {
+        return names;
+    }
+
+    // Le fragment et ses sommes de contrôle
+    @Override
+    public boolean delete(String name) {
+        File file = new File(directory, name);
+        boolean deleted = (!file.exists() || file.delete())
+                && (!checksumFile(file).exists() || checksumFile(file).delete());
+        if (deleted) {
+            names.remove(name);
+        }
+        return deleted;
+    }
+
+    // Le fragment n'apparaît sous son nom définitif qu'une fois reçu en entier
+    private static void move(File tempFile, File file) throws IOException {
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Fichier annexe des sommes de contrôle d'un fragment
+    private static File checksumFile(File file) {
+        return new File(file.getParentFile(), file.getName() + CHECKSUM_SUFFIX);
+    }
+
+    // Aucune somme si le fragment n'a pas de fichier annexe (stocké avant les sommes de contrôle)
+    private static int[] readChecksums(File file, int first, int count) {
+        File checksumFile = checksumFile(file);
+        if (count == 0 || !checksumFile.isFile()) {
+            return new int[0];
+        }
+
+        int[] values = new int[count];
+        byte[] bytes = new byte[count * 4];
+        try (RandomAccessFile raf = new RandomAccessFile(checksumFile, "r")) {
+            raf.seek(4 + 4L * first); // Après le nombre de sommes
+            raf.readFully(bytes);
+        } catch (IOException e) {
+            System.err.println("Sommes de contrôle illisibles pour " + file.getName() + " : " + e.getMessage());
+            return new int[0];
+        }
+        ByteBuffer.wrap(bytes).asIntBuffer().get(values);
+        return values;
+    }
+}
@@ -0,0 +1,466 @@
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lecture parallèle des fragments d'un fichier.
+ *
+ * Le fichier est découpé en plages qui sont demandées en même temps à
+ * différentes répliques (commande RETRIEVE_RANGE). Pour chaque plage, la
+ * réplique la moins chargée et la plus rapide est essayée en premier ; en cas
+ * d'échec, seule cette plage est redemandée à une autre réplique, puis aux
+ * sous-serveurs de secours. Les plages sont écrites dans l'ordre, avec un
+ * nombre borné de plages en mémoire. Chaque plage est vérifiée avec les
+ * sommes de contrôle enregistrées par le sous-serveur : une plage corrompue
+ * est redemandée à une autre réplique. Les plages d'un fragment compressé
+ * sont décompressées au moment de les écrire. Les plages vérifiées passent
+ * par {@link BlockCache} : une plage lue récemment ne sollicite pas les
+ * sous-serveurs.
+ *
+ * Pour un fichier codé par Reed-Solomon, les morceaux de données d'une bande
+ * sont lus comme des fragments ordinaires. Si un morceau n'a plus de réplique
+ * accessible, la bande est reconstruite une fois pour toutes ses plages :
+ * les autres morceaux sont demandés en parallèle jusqu'à en avoir assez, puis
+ * décodés par tranches en parallèle ({@link ReedSolomon}).
+ */
+public class FragmentReader {
+    private static final ExecutorService FETCHERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fragment-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Statistiques par sous-serveur, partagées entre tous les téléchargements
+    private static final Map<SubServerInfo, ReplicaStats> STATS = new ConcurrentHashMap<>();
+
+    private final int chunkSize;
+    private final int rangeSize;
+    private final int parallelism;
+    private final List<Range> ranges = new ArrayList<>();
+
+    public FragmentReader(int chunkSize, int rangeSize, int parallelism) {
+        this.chunkSize = chunkSize;
+        // Plages alignées sur les morceaux des sommes de contrôle pour pouvoir les vérifier
+        this.rangeSize = Math.max(1, rangeSize / Checksums.CHUNK_SIZE) * Checksums.CHUNK_SIZE;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Ajoute un fragment à lire, découpé en plages de {@code rangeSize} octets.
+     * Les {@code fallbacks} ne sont essayés, dans l'ordre, qu'après toutes les
+     * répliques du fragment.
+     */
+    public void addFragment(MetadataCatalog.FragmentEntry fragment, List<SubServerInfo> fallbacks) {
+        addFragment(fragment, 0, fragment.size, fallbacks);
+    }
+
+    /**
+     * Ajoute les octets {@code [from, to)} d'un fragment. Les plages demandées
+     * restent alignées sur les morceaux des sommes de contrôle ; seuls les
+     * octets voulus sont écrits. Pour un fichier rangé dans un conteneur, les
+     * positions sont décalées jusqu'au fichier, et la dernière plage peut
+     * déborder sur la suite du conteneur, complété jusqu'à un morceau entier.
+     */
+    public void addFragment(MetadataCatalog.FragmentEntry fragment, long from, long to,
+            List<SubServerInfo> fallbacks) {
+        addRanges(fragment, from, to, fallbacks, null, 0);
+    }
+
+    /**
+     * Ajoute les octets {@code [from, to)} d'un bloc codé par Reed-Solomon,
+     * dont {@code shards} sont les morceaux de données puis de parité. Seuls
+     * les morceaux de données qui contiennent ces octets sont lus, tant
+     * qu'ils sont accessibles.
+     */
+    public void addStripe(List<MetadataCatalog.FragmentEntry> shards, int dataShards, long from, long to) {
+        Stripe stripe = new Stripe(shards, dataShards);
+        long shardStart = 0;
+        for (int i = 0; i < dataShards; i++) {
+            MetadataCatalog.FragmentEntry shard = shards.get(i);
+            long shardEnd = shardStart + shard.size;
+            if (shardEnd > from && shardStart < to) {
+                addRanges(shard, Math.max(0, from - shardStart), Math.min(shard.size, to - shardStart), List.of(),
+                        stripe, i);
+            }
+            shardStart = shardEnd;
+        }
+    }
+
+    /**
+     * Le contenu complet du morceau {@code index} d'une bande, reconstruit à
+     * partir des autres morceaux, par exemple pour remplacer une copie perdue.
+     */
+    public byte[] rebuildShard(List<MetadataCatalog.FragmentEntry> shards, int dataShards, int index)
+            throws IOException {
+        return Arrays.copyOf(rebuild(shards, dataShards, index)[index], (int) shards.get(index).storedSize);
+    }
+
+    private void addRanges(MetadataCatalog.FragmentEntry fragment, long from, long to,
+            List<SubServerInfo> fallbacks, Stripe stripe, int shard) {
+        int chunk = Checksums.CHUNK_SIZE;
+        long start = fragment.offset + from;
+        long end = fragment.offset + to;
+        long fetchEnd = (end + chunk - 1) / chunk * chunk;
+        if (!MetadataCatalog.isContainer(fragment.name)) {
+            fetchEnd = Math.min(fragment.size, fetchEnd);
+        }
+        for (long offset = start / chunk * chunk; offset < end; offset += rangeSize) {
+            int length = (int) Math.min(rangeSize, fetchEnd - offset);
+            int skip = (int) Math.max(0, start - offset);
+            int keep = (int) (Math.min(end, offset + length) - offset) - skip;
+            Range range = new Range(fragment, offset, length, skip, keep, fallbacks, null);
+            range.stripe = stripe;
+            range.shard = shard;
+            ranges.add(range);
+        }
+    }
+
+    /**
+     * Ajoute les octets {@code [from, to)} du fragment d'origine d'un fragment
+     * compressé (voir {@link Compression}). Seules les trames qui les
+     * recouvrent sont lues, d'après leurs positions gardées par le catalogue ;
+     * sans elles, le fragment stocké est lu en entier. Les trames sont
+     * décompressées dans l'ordre.
+     */
+    public void addCompressedFragment(MetadataCatalog.FragmentEntry fragment, long from, long to,
+            List<SubServerInfo> fallbacks) {
+        long start = 0; // Octet du fragment d'origine où commence la première trame lue
+        long storedStart = 0;
+        long storedEnd = fragment.storedSize;
+        if (fragment.frames != null) {
+            int first = (int) (from / Compression.INDEX_SPACING);
+            int end = (int) ((to + Compression.INDEX_SPACING - 1) / Compression.INDEX_SPACING);
+            start = (long) first * Compression.INDEX_SPACING;
+            storedStart = fragment.frames[first];
+            if (end < fragment.frames.length) {
+                storedEnd = fragment.frames[end];
+            }
+        }
+        Decoding decoding = new Decoding(start, from, to);
+        // Plages alignées sur les morceaux des sommes de contrôle ; seuls les octets des trames sont décodés
+        int chunk = Checksums.CHUNK_SIZE;
+        long fetchEnd = Math.min(fragment.storedSize, (storedEnd + chunk - 1) / chunk * chunk);
+        for (long offset = storedStart / chunk * chunk; offset < storedEnd; offset += rangeSize) {
+            int length = (int) Math.min(rangeSize, fetchEnd - offset);
+            int skip = (int) Math.max(0, storedStart - offset);
+            int keep = (int) (Math.min(storedEnd, offset + length) - offset) - skip;
+            ranges.add(new Range(fragment, offset, length, skip, keep, fallbacks, decoding));
+        }
+        if (!ranges.isEmpty() && ranges.get(ranges.size() - 1).decoding == decoding) {
+            ranges.get(ranges.size() - 1).lastOfFragment = true;
+        }
+    }
+
+    /** Télécharge toutes les plages et les écrit dans l'ordre dans {@code out}. */
+    public void copyTo(OutputStream out) throws IOException {
+        Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        Iterator<Range> pending = ranges.iterator();
+        Iterator<Range> written = ranges.iterator();
+
+        try {
+            while (pending.hasNext() || !inFlight.isEmpty()) {
+                while (pending.hasNext() && inFlight.size() < parallelism) {
+                    Range range = pending.next();
+                    inFlight.add(FETCHERS.submit(() -> fetch(range)));
+                }
+                Range range = written.next();
+                byte[] data = await(inFlight.poll());
+                if (range.decoding == null) {
+                    out.write(data, range.skip, range.keep);
+                } else {
+                    range.decoding.write(out, data, range.skip, range.keep, range.lastOfFragment);
+                }
+            }
+        } finally {
+            for (Future<byte[]> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Téléchargement interrompu");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private byte[] fetch(Range range) throws IOException {
+        return BlockCache.get(range.fragment, range.offset, range.length,
+                () -> range.stripe == null ? fetchFromReplicas(range) : fetchOrRebuild(range));
+    }
+
+    // Plage d'un morceau de données, reconstruite à partir de sa bande s'il est illisible
+    private byte[] fetchOrRebuild(Range range) throws IOException {
+        boolean reachable = false;
+        for (SubServerInfo replica : range.replicas) {
+            reachable |= HealthMonitor.isUp(replica);
+        }
+        if (reachable) {
+            try {
+                return fetchFromReplicas(range);
+            } catch (IOException e) {
+                System.err.println(e.getMessage() + " Reconstruction à partir des autres morceaux.");
+            }
+        }
+        Metrics.increment("telechargement.reconstructions");
+        byte[] shard = range.stripe.shard(range.shard);
+        return Arrays.copyOfRange(shard, (int) range.offset, (int) range.offset + range.length);
+    }
+
+    /**
+     * Lit assez de morceaux de la bande, autres que {@code missing}, pour
+     * retrouver tous les autres. Les morceaux de données sont demandés
+     * d'abord, en parallèle ; chaque échec est remplacé par le morceau
+     * suivant. Tous les morceaux renvoyés ont la taille du plus grand,
+     * complétés par des zéros.
+     */
+    private byte[][] rebuild(List<MetadataCatalog.FragmentEntry> shards, int dataShards, int missing)
+            throws IOException {
+        int shardSize = 0;
+        for (MetadataCatalog.FragmentEntry shard : shards) {
+            shardSize = (int) Math.max(shardSize, shard.storedSize);
+        }
+        int size = shardSize;
+        byte[][] contents = new byte[shards.size()][];
+        boolean[] present = new boolean[shards.size()];
+        CompletionService<Integer> service = new ExecutorCompletionService<>(FETCHERS);
+        int next = 0;
+        int inFlight = 0;
+        int found = 0;
+        // Jamais plus de demandes en cours que de morceaux encore nécessaires
+        while (found < dataShards) {
+            while (inFlight < dataShards - found && next < shards.size()) {
+                int index = next++;
+                if (index == missing) {
+                    continue;
+                }
+                MetadataCatalog.FragmentEntry shard = shards.get(index);
+                service.submit(() -> {
+                    Range whole = new Range(shard, 0, (int) shard.storedSize, 0, (int) shard.storedSize, List.of(),
+                            null);
+                    contents[index] = Arrays.copyOf(fetchFromReplicas(whole), size);
+                    return index;
+                });
+                inFlight++;
+            }
+            if (inFlight == 0) {
+                throw new IOException("Bande de " + shards.get(missing).name + " irrécupérable : " + found
+                        + " morceaux lisibles sur " + dataShards + " nécessaires.");
+            }
+            try {
+                present[await(service.take())] = true;
+                found++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Reconstruction interrompue");
+            } catch (IOException e) {
+                // Morceau illisible : un autre est demandé au tour suivant
+            } finally {
+                inFlight--;
+            }
+        }
+
+        for (int i = 0; i < contents.length; i++) {
+            if (!present[i]) {
+                contents[i] = new byte[size];
+            }
+        }
+        new ReedSolomon(dataShards, shards.size() - dataShards).reconstruct(contents, present, size);
+        return contents;
+    }
+
+    private byte[] fetchFromReplicas(Range range) throws IOException {
+        List<SubServerInfo> candidates = new ArrayList<>(range.replicas);
+        // Répliques hors ligne d'après le moniteur en dernier, puis la moins chargée et la plus rapide d'abord
+        candidates.sort(Comparator.comparing((SubServerInfo replica) -> !HealthMonitor.isUp(replica))
+                .thenComparingDouble(replica -> statsFor(replica).score()));
+        candidates.addAll(range.fallbacks);
+
+        boolean failover = false;
+        for (SubServerInfo replica : candidates) {
+            if (failover) {
+                Metrics.increment("telechargement.basculements");
+            }
+            failover = true;
+            ReplicaStats stats = statsFor(replica);
+            stats.inFlight.incrementAndGet();
+            Metrics.increment("telechargement.plages_en_cours");
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                byte[] data = fetchFrom(replica, range);
+                stats.recordSuccess(System.nanoTime() - start, data.length);
+                Metrics.add(replica, "octets_recus", data.length);
+                succeeded = true;
+                return data;
+            } catch (FileNotFoundException e) {
+                // Le sous-serveur répond mais ne porte pas ce fragment : pas de pénalité
+            } catch (CorruptRangeException e) {
+                stats.recordFailure();
+                Metrics.add(replica, "plages_corrompues", 1);
+                System.err.println("Fragment " + range.fragmentName + " corrompu sur " + replica + " (octet "
+                        + range.offset + "), essai d'une autre réplique");
+            } catch (IOException e) {
+                stats.recordFailure();
+                System.err.println("Erreur avec le sous-serveur " + replica + " pour le fragment "
+                        + range.fragmentName + " (octet " + range.offset + "), essai d'une autre réplique");
+            } finally {
+                stats.inFlight.decrementAndGet();
+                Metrics.decrement("telechargement.plages_en_cours");
+                Metrics.timer("sous-serveur." + replica + ".RETRIEVE_RANGE").record(start, succeeded);
+            }
+        }
+
+        throw new IOException("Impossible de récupérer le fragment " + range.fragmentName + " (octet "
+                + range.offset + ") après " + candidates.size() + " tentatives.");
+    }
+
+    private byte[] fetchFrom(SubServerInfo replica, Range range) throws IOException {
+        ConnectionPool.Connection connection = ConnectionPool.borrow(replica, chunkSize);
+        try {
+            connection.out.writeUTF("RETRIEVE_RANGE");
+            connection.out.writeUTF(range.fragmentName);
+            connection.out.writeLong(range.offset);
+            connection.out.writeLong(range.length);
+            connection.out.flush();
+
+            long length = connection.in.readLong();
+            if (length == -1) {
+                ConnectionPool.release(connection);
+                throw new FileNotFoundException(range.fragmentName);
+            } else if (length != range.length) {
+                connection.close();
+                throw new IOException("plage incomplète");
+            }
+            int[] expected = Checksums.read(connection.in); // Aucune somme pour un fragment sans fichier annexe
+            byte[] data = new byte[range.length];
+            connection.in.readFully(data);
+            ConnectionPool.release(connection);
+            if (expected.length > 0 && !Arrays.equals(expected, Checksums.compute(data, 0, data.length))) {
+                throw new CorruptRangeException();
+            }
+            return data;
+        } catch (FileNotFoundException | CorruptRangeException e) {
+            throw e;
+        } catch (IOException e) {
+            connection.close();
+            // Un délai dépassé vient d'un sous-serveur figé, pas d'une connexion périmée : autre réplique
+            if (connection.reused && !(e instanceof SocketTimeoutException)) {
+                // Connexion inactive fermée par le sous-serveur (redémarrage) : réessayer sur une neuve
+                ConnectionPool.discard(replica);
+                Metrics.increment("telechargement.reprises");
+                return fetchFrom(replica, range);
+            }
+            throw e;
+        }
+    }
+
+    private static ReplicaStats statsFor(SubServerInfo replica) {
+        return STATS.computeIfAbsent(replica, r -> new ReplicaStats());
+    }
+
+    private static class CorruptRangeException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class Range {
+        final MetadataCatalog.FragmentEntry fragment;
+        final String fragmentName;
+        final long offset;
+        final int length;
+        final int skip; // Octets du début de la plage à ne pas écrire
+        final int keep; // Octets écrits ensuite
+        final List<SubServerInfo> replicas;
+        final List<SubServerInfo> fallbacks;
+        final Decoding decoding; // Null si le fragment n'est pas compressé
+        boolean lastOfFragment;
+        Stripe stripe; // Bande d'un morceau de données codé, null pour un fragment répliqué
+        int shard; // Numéro du morceau dans sa bande
+
+        Range(MetadataCatalog.FragmentEntry fragment, long offset, int length, int skip, int keep,
+                List<SubServerInfo> fallbacks, Decoding decoding) {
+            this.fragment = fragment;
+            this.fragmentName = fragment.name;
+            this.offset = offset;
+            this.length = length;
+            this.skip = skip;
+            this.keep = keep;
+            this.replicas = fragment.replicas;
+            this.fallbacks = fallbacks;
+            this.decoding = decoding;
+        }
+    }
+
+    // Bande codée, reconstruite au plus une fois pour toutes ses plages
+    private class Stripe {
+        final List<MetadataCatalog.FragmentEntry> shards;
+        final int dataShards;
+        private byte[][] contents;
+
+        Stripe(List<MetadataCatalog.FragmentEntry> shards, int dataShards) {
+            this.shards = shards;
+            this.dataShards = dataShards;
+        }
+
+        synchronized byte[] shard(int index) throws IOException {
+            if (contents == null) {
+                contents = rebuild(shards, dataShards, index);
+            }
+            return contents[index];
+        }
+    }
+
+    // Décompression d'un fragment, commune à toutes ses plages
+    private static class Decoding {
+        final long start;
+        final long from;
+        final long to;
+        Compression.Decoder decoder;
+
+        Decoding(long start, long from, long to) {
+            this.start = start;
+            this.from = from;
+            this.to = to;
+        }
+
+        void write(OutputStream out, byte[] data, int skip, int keep, boolean last) throws IOException {
+            if (decoder == null) {
+                decoder = new Compression.Decoder(out, start, from, to);
+            }
+            decoder.write(data, skip, keep);
+            if (last) {
+                decoder.close();
+            }
+        }
+    }
+
+    private static class ReplicaStats {
+        final AtomicInteger inFlight = new AtomicInteger();
+        // Moyenne glissante du temps de transfert, en nanosecondes par Ko
+        volatile double nanosPerKb = 0;
+
+        double score() {
+            return (inFlight.get() + 1) * (nanosPerKb + 1);
+        }
+
+        void recordSuccess(long elapsedNanos, int bytes) {
+            double sample = elapsedNanos / Math.max(1.0, bytes / 1024.0);
+            nanosPerKb = nanosPerKb == 0 ? sample : 0.8 * nanosPerKb + 0.2 * sample;
+        }
+
+        void recordFailure() {
+            // Pénaliser la réplique pour que les plages suivantes en préfèrent une autre
+            nanosPerKb = Math.max(nanosPerKb * 4, 1_000_000);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.regex.Pattern;
+
+/**
+ * Stockage local des fragments d'un sous-serveur.
+ *
+ * Deux moteurs sont disponibles, choisis par {@code sub_server.storage} :
+ * - {@code files} ({@link FileStore}) : un fichier par fragment, avec ses
+ *   sommes de contrôle dans un fichier annexe ;
+ * - {@code segments} ({@link SegmentStore}) : les fragments ajoutés bout à
+ *   bout dans de grands fichiers de segment, retrouvés par un index en
+ *   mémoire.
+ *
+ * Un fragment est écrit par un {@link Writer} et n'est visible sous son nom
+ * qu'une fois validé avec ses sommes de contrôle. Il est lu à travers un
+ * {@link StoredFragment} : un canal de fichier et la position de ses octets
+ * dedans, pour que le sous-serveur les envoie par {@code transferTo}.
+ */
+public interface FragmentStore {
+
+    static FragmentStore open(File directory) throws IOException {
+        String engine = ConfigLoader.get("sub_server.storage", "files");
+        if ("segments".equalsIgnoreCase(engine)) {
+            return new SegmentStore(directory);
+        } else if (!"files".equalsIgnoreCase(engine)) {
+            throw new IOException("Moteur de stockage inconnu : " + engine);
+        }
+        return new FileStore(directory);
+    }
+
+    /** Réserve la place d'un fragment de {@code size} octets, visible seulement après {@link Writer#commit}. */
+    Writer create(String name, long size) throws IOException;
+
+    /** Le fragment ouvert en lecture, ou null s'il n'est pas stocké. */
+    StoredFragment open(String name) throws IOException;
+
+    /** Taille du fragment, -1 s'il n'est pas stocké. */
+    long size(String name);
+
+    /** Noms des fragments stockés, triés. */
+    NavigableSet<String> names();
+
+    /** Efface le fragment ; vrai s'il n'en reste rien. */
+    boolean delete(String name);
+
+    /**
+     * Les fragments stockés du fichier : {@code <fichier>.part<n>}, compressés
+     * ({@code .z}) ou morceaux d'une bande ({@code .s<n>}). Un autre fichier
+     * dont le nom commence par le même préfixe, comme {@code x.party} pour
+     * {@code x}, n'en fait pas partie.
+     */
+    default List<String> fragmentsOf(String fileName) {
+        // Les fragments du fichier se suivent dans l'index trié
+        String prefix = fileName + ".part";
+        Pattern fragment = Pattern.compile(Pattern.quote(prefix) + "\\d+(\\.z|\\.s\\d+)?");
+        List<String> fragments = new ArrayList<>();
+        for (String name : names().subSet(prefix, prefix + Character.MAX_VALUE)) {
+            if (fragment.matcher(name).matches()) {
+                fragments.add(name);
+            }
+        }
+        return fragments;
+    }
+
+    interface Writer {
+        /** Écrit les octets restants du tampon à la position {@code position} du fragment. */
+        void write(ByteBuffer buffer, long position) throws IOException;
+
+        /** Rend le fragment visible sous son nom, à la place de l'ancien, avec ses sommes de contrôle. */
+        void commit(int[] checksums) throws IOException;
+
+        /** Abandonne le fragment en cours d'écriture. */
+        void abort();
+    }
+
+    abstract class StoredFragment implements Closeable {
+        final FileChannel channel; // Fichier qui contient les octets du fragment
+        final long start; // Position du premier octet du fragment dans ce fichier
+        final long size;
+
+        StoredFragment(FileChannel channel, long start, long size) {
+            this.channel = channel;
+            this.start = start;
+            this.size = size;
+        }
+
+        /** Les sommes des morceaux {@code [first, first + count)}, ou aucune si elles ne sont pas disponibles. */
+        abstract int[] checksums(int first, int count);
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
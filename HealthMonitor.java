@@ -0,0 +1,172 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Surveillance des sous-serveurs en arrière-plan.
+ *
+ * Chaque sous-serveur reçoit un PING à intervalle régulier sur son canal de
+ * contrôle. Les réponses alimentent un registre : état en ligne ou hors
+ * ligne, latence (médiane et 99e centile), espace disque libre et nombre de
+ * transferts en cours. Les requêtes des clients lisent ce registre sans
+ * jamais attendre un sous-serveur. La liste des sous-serveurs est
+ * redemandée à chaque tour : un sous-serveur ajouté à la configuration ou
+ * revenu en ligne est pris en compte sans redémarrer le serveur principal.
+ */
+public class HealthMonitor {
+    private static final int INTERVAL_MILLIS = ConfigLoader.getInt("health.interval_ms", 1000);
+    private static final int TIMEOUT_MILLIS = ConfigLoader.getInt("health.timeout_ms", 2000);
+    // Échecs consécutifs avant de déclarer hors ligne un sous-serveur qui était en ligne
+    private static final int FAILURES_BEFORE_DOWN = ConfigLoader.getInt("health.failures_before_down", 2);
+    private static final int LATENCY_SAMPLES = 128;
+
+    private static final Map<SubServerInfo, Health> REGISTRY = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "health-monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ExecutorService PROBES = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "health-probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private HealthMonitor() {
+    }
+
+    /**
+     * Sonde une première fois tous les sous-serveurs, en attendant les
+     * réponses, puis continue en arrière-plan.
+     */
+    public static void start(Supplier<List<SubServerInfo>> subServers) {
+        List<Future<?>> firstRound = new ArrayList<>();
+        for (SubServerInfo subServer : subServers.get()) {
+            Health health = healthOf(subServer);
+            health.probing = true;
+            firstRound.add(PROBES.submit(() -> probe(subServer, health)));
+        }
+        for (Future<?> probe : firstRound) {
+            try {
+                probe.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                System.err.println("Erreur de sonde : " + e.getCause());
+            }
+        }
+
+        SCHEDULER.scheduleWithFixedDelay(() -> {
+            for (SubServerInfo subServer : subServers.get()) {
+                Health health = healthOf(subServer);
+                // Une sonde à la fois par sous-serveur : un hôte muet ne retarde pas les autres
+                if (!health.probing) {
+                    health.probing = true;
+                    PROBES.execute(() -> probe(subServer, health));
+                }
+            }
+        }, INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public static boolean isUp(SubServerInfo subServer) {
+        Health health = REGISTRY.get(subServer);
+        return health != null && health.up;
+    }
+
+    /** Les sous-serveurs de la liste qui sont en ligne, dans le même ordre. */
+    public static List<SubServerInfo> upSubServers(List<SubServerInfo> subServers) {
+        List<SubServerInfo> up = new ArrayList<>();
+        for (SubServerInfo subServer : subServers) {
+            if (isUp(subServer)) {
+                up.add(subServer);
+            }
+        }
+        return up;
+    }
+
+    /**
+     * Réordonne des candidats sans changer leur ordre relatif : d'abord ceux
+     * qui sont en ligne avec au moins {@code bytesNeeded} octets libres, puis
+     * les autres, essayés en dernier recours.
+     */
+    public static List<SubServerInfo> preferHealthy(List<SubServerInfo> candidates, long bytesNeeded) {
+        List<SubServerInfo> ordered = new ArrayList<>();
+        List<SubServerInfo> others = new ArrayList<>();
+        for (SubServerInfo candidate : candidates) {
+            Health health = REGISTRY.get(candidate);
+            if (health != null && health.up && health.freeDisk >= bytesNeeded) {
+                ordered.add(candidate);
+            } else {
+                others.add(candidate);
+            }
+        }
+        ordered.addAll(others);
+        return ordered;
+    }
+
+    /** État d'un sous-serveur tel que vu par la dernière sonde, pour les journaux. */
+    public static String describe(SubServerInfo subServer) {
+        Health health = healthOf(subServer);
+        return String.format("%s %s (latence p50 %.2f ms, p99 %.2f ms, %d Mo libres, %d transferts en cours)",
+                subServer, health.up ? "en ligne" : "hors ligne", health.latencyPercentile(0.50) / 1e6,
+                health.latencyPercentile(0.99) / 1e6, health.freeDisk / (1024 * 1024), health.inFlight);
+    }
+
+    private static Health healthOf(SubServerInfo subServer) {
+        return REGISTRY.computeIfAbsent(subServer, s -> new Health());
+    }
+
+    private static void probe(SubServerInfo subServer, Health health) {
+        long start = System.nanoTime();
+        try {
+            DataInputStream reply = ControlChannel.to(subServer).call(TIMEOUT_MILLIS, "PING");
+            if (!"PONG".equals(reply.readUTF())) {
+                throw new IOException("réponse inattendue");
+            }
+            health.freeDisk = reply.readLong();
+            health.inFlight = reply.readInt();
+            health.recordLatency(System.nanoTime() - start);
+            health.consecutiveFailures = 0;
+            if (!health.up) {
+                health.up = true;
+                System.out.println("Sous-serveur connecté : " + describe(subServer)); // Notification
+            }
+        } catch (IOException e) {
+            health.consecutiveFailures++;
+            if (health.up && health.consecutiveFailures >= FAILURES_BEFORE_DOWN) {
+                health.up = false;
+                System.err.println("Sous-serveur hors ligne : " + subServer + " (" + e.getMessage() + ")");
+            } else if (!health.up && health.consecutiveFailures == 1) {
+                System.err.println("Sous-serveur inaccessible : " + subServer);
+            }
+        } finally {
+            health.probing = false;
+        }
+    }
+
+    private static class Health {
+        volatile boolean up;
+        volatile boolean probing;
+        volatile long freeDisk;
+        volatile int inFlight;
+        volatile int consecutiveFailures;
+        private final long[] latencies = new long[LATENCY_SAMPLES]; // Dernières latences, en nanosecondes
+        private int latencyCount;
+
+        synchronized void recordLatency(long nanos) {
+            latencies[latencyCount++ % LATENCY_SAMPLES] = nanos;
+        }
+
+        synchronized double latencyPercentile(double percentile) {
+            int count = Math.min(latencyCount, LATENCY_SAMPLES);
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.min(count - 1, Math.floor(percentile * count))];
+        }
+    }
+}
@@ -1,59 +1,188 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 public class MainServer {
-    private static final ConfigLoader config = new ConfigLoader();
-    private static final int PORT = config.getInt("main_server.port");
-    private static final String SERVER_DIRECTORY = config.get("main_server.directory");
-    private static final int CHUNK_SIZE = config.getInt("chunk_size");
+    private static final int PORT = ConfigLoader.getInt("main_server.port");
+    private static final String SERVER_DIRECTORY = ConfigLoader.get("main_server.directory");
+    private static final int CHUNK_SIZE = ConfigLoader.getInt("chunk_size");
+    private static final long BLOCK_SIZE = ConfigLoader.getInt("block_size", 64 * 1024 * 1024);
+    private static final int UPLOAD_BUFFER_COUNT = ConfigLoader.getInt("upload.buffer_count", 64);
+    private static final int DOWNLOAD_RANGE_SIZE = ConfigLoader.getInt("download.range_size", 1048576);
+    private static final int DOWNLOAD_PARALLELISM = ConfigLoader.getInt("download.parallelism", 8);
+    private static final int REPLICATION_FACTOR = ConfigLoader.getInt("replication_factor", Integer.MAX_VALUE);
+    // Codage Reed-Solomon des fichiers d'au moins erasure.min_mb Mo, à la place des répliques (0 : jamais)
+    private static final long ERASURE_MIN_BYTES = ConfigLoader.getInt("erasure.min_mb", 0) * 1024L * 1024L;
+    private static final int DATA_SHARDS = ConfigLoader.getInt("erasure.data_shards", 4);
+    private static final int PARITY_SHARDS = ConfigLoader.getInt("erasure.parity_shards", 2);
+    // Les clients peuvent demander des fragments compressés, sauf si compression.enabled=false
+    private static final boolean COMPRESSION_ENABLED =
+            !"false".equalsIgnoreCase(ConfigLoader.get("compression.enabled"));
+    // Fichiers temporaires des fragments compressés en attente d'envoi
+    private static final String SPILL_PREFIX = "compression-";
+    // Place totale des fichiers temporaires, en Mo : au-delà, les envois attendent qu'un fichier soit effacé
+    private static final int SPILL_MAX_MB = ConfigLoader.getInt("upload.spill_max_mb", 1024);
+    private static final Semaphore SPILL_SPACE = new Semaphore(SPILL_MAX_MB, true);
+    // Taille maximale d'un bloc dédupliqué, gardé en mémoire le temps de vérifier son empreinte
+    private static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+    // Envoi en lot : nombre de fichiers et taille de chacun, rangés ensemble dans des conteneurs
+    private static final int MAX_BATCH_FILES = 10000;
+    private static final long MAX_PACKED_FILE_SIZE = 4 * 1024 * 1024;
+    // Threads de service des clients ; au-delà, une nouvelle connexion est fermée aussitôt
+    private static final int MAX_CLIENTS = ConfigLoader.getInt("main_server.max_clients", 256);
+    // Commandes mesurées séparément par Metrics
+    private static final Set<String> COMMANDS = Set.of("ENVOYER", "RECEVOIR", "ETAT_ENVOI", "ENVOYER_DEPUIS",
+            "ENVOYER_BLOCS", "ENVOYER_DEDUP", "ENVOYER_LOT", "RECEVOIR_PLAGE", "LISTER", "RM", "STATS");
+    // Transferts servis en même temps, les suivants attendent une place ou reçoivent une réponse OCCUPE
+    private static final Admission UPLOADS = new Admission("envois", ConfigLoader.getInt("admission.max_uploads", 32),
+            ConfigLoader.getInt("admission.queue_depth", 64), ConfigLoader.getInt("admission.max_wait_ms", 10000));
+    private static final Admission DOWNLOADS = new Admission("téléchargements",
+            ConfigLoader.getInt("admission.max_downloads", 64), ConfigLoader.getInt("admission.queue_depth", 64),
+            ConfigLoader.getInt("admission.max_wait_ms", 10000));
+    // Tampons d'envoi partagés par tous les clients
+    private static final BufferPool TRANSFER_BUFFERS = new BufferPool(CHUNK_SIZE, 4 * UPLOAD_BUFFER_COUNT);
+    // Blocs dédupliqués dont un envoi en cours compte se servir : ils ne sont pas effacés (accès sous CATALOG)
+    private static final Map<String, Integer> PINNED_CHUNKS = new HashMap<>();
+    // Fichiers et blocs en cours d'effacement sur les sous-serveurs (accès sous CATALOG)
+    private static final Set<String> DELETING = new HashSet<>();
+    // Fichiers et blocs en cours d'envoi, avec le nombre d'envois (accès sous CATALOG)
+    private static final Map<String, Integer> STORING = new HashMap<>();
+    // Fichiers et blocs dont la réparation copie un fragment : un nouvel envoi attend (accès sous CATALOG)
+    private static final Set<String> REPAIRING = new HashSet<>();
+    // Intervalle entre deux passes d'application des pierres tombales aux sous-serveurs revenus en ligne
+    private static final int TOMBSTONE_INTERVAL_MILLIS = ConfigLoader.getInt("tombstone.interval_ms", 5000);
+    private static final ScheduledExecutorService TOMBSTONE_SWEEPER = Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+                Thread thread = new Thread(runnable, "tombstones");
+                thread.setDaemon(true);
+                return thread;
+            });
+    // Intervalle entre deux passes de réparation des répliques ; 0 désactive la réparation
+    private static final int REPAIR_INTERVAL_MILLIS = ConfigLoader.getInt("repair.interval_ms", 30000);
+    // Débit des copies de réparation sur les sous-serveurs, pour borner l'attente de REPLICATE
+    private static final long REPAIR_BYTES_PER_SECOND = ConfigLoader.getInt("repair.max_mb_per_s", 20) * 1024L * 1024L;
+    private static final ScheduledExecutorService REPAIR_SWEEPER = Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+                Thread thread = new Thread(runnable, "repair");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final ExecutorService DELETES = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "delete");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    private static final List<SubServerInfo> SUB_SERVERS = new ArrayList<>();
+    // Tous les sous-serveurs configurés participent au placement, même s'ils sont hors ligne
+    private static final List<SubServerInfo> SUB_SERVERS = new CopyOnWriteArrayList<>();
+    private static final MetadataCatalog CATALOG = openCatalog();
 
     static {
-    int subServerCount = config.getInt("sub_server.count");
     int minSubServerCount = 1;
-    int connectedSubServers = 0;
 
-    for (int i = 1; i <= subServerCount; i++) {
-        String host = config.get("sub_server." + i + ".host");
-        int port = config.getInt("sub_server." + i + ".port");
+    refreshSubServers();
+    HealthMonitor.start(MainServer::refreshSubServers);
 
-        try (Socket socket = new Socket(host, port)) {
-            SUB_SERVERS.add(new SubServerInfo(host, port));
-            connectedSubServers++;
-        } catch (IOException e) {
-            System.err.println("Sous-serveur inaccessible : " + host + ":" + port);
-        }
-    }
-
-    if (connectedSubServers < minSubServerCount) {
+    if (HealthMonitor.upSubServers(SUB_SERVERS).size() < minSubServerCount) {
         System.err.println("Erreur : moins de " + minSubServerCount + " sous-serveurs disponibles.");
         System.exit(1);
     }
 }
 
+    /**
+     * Relit la liste des sous-serveurs quand la configuration change : un
+     * sous-serveur ajouté rejoint le placement sans redémarrage. Un
+     * sous-serveur retiré de la configuration reste connu, car il peut encore
+     * porter des fragments.
+     */
+    private static synchronized List<SubServerInfo> refreshSubServers() {
+        if (ConfigLoader.reloadIfModified() || SUB_SERVERS.isEmpty()) {
+            boolean initialLoad = SUB_SERVERS.isEmpty();
+            int subServerCount = ConfigLoader.getInt("sub_server.count");
+            for (int i = 1; i <= subServerCount; i++) {
+                SubServerInfo subServer = new SubServerInfo(ConfigLoader.get("sub_server." + i + ".host"),
+                        ConfigLoader.getInt("sub_server." + i + ".port"));
+                if (!SUB_SERVERS.contains(subServer)) {
+                    SUB_SERVERS.add(subServer);
+                    if (!initialLoad) {
+                        System.out.println("Sous-serveur ajouté : " + subServer); // Notification
+                    }
+                }
+            }
+        }
+        return SUB_SERVERS;
+    }
+
+    private static MetadataCatalog openCatalog() {
+        try {
+            return new MetadataCatalog(new File(SERVER_DIRECTORY, "catalog.journal"));
+        } catch (IOException e) {
+            System.err.println("Erreur : impossible de charger le catalogue : " + e.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+
     public static void main(String[] args) {
         File serverDir = new File(SERVER_DIRECTORY);
         if (!serverDir.exists()) {
             serverDir.mkdirs();
         }
+        // Fragments compressés d'envois interrompus par un arrêt du serveur
+        File[] spills = serverDir.listFiles((dir, name) -> name.startsWith(SPILL_PREFIX));
+        if (spills != null) {
+            for (File spill : spills) {
+                spill.delete();
+            }
+        }
+
+        if (!CATALOG.existedAtStartup()) {
+            try {
+                rebuildCatalog();
+            } catch (IOException e) {
+                System.err.println("Erreur lors de la reconstruction du catalogue : " + e.getMessage());
+            }
+        }
+
+        Metrics.registerMBean("serveur-principal");
+
+        // Les effacements manqués par un sous-serveur hors ligne lui sont appliqués à son retour
+        TOMBSTONE_SWEEPER.scheduleWithFixedDelay(MainServer::applyTombstones, TOMBSTONE_INTERVAL_MILLIS,
+                TOMBSTONE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        // Les fragments sous-répliqués, et ceux qu'un sous-serveur ajouté doit porter, sont recopiés
+        if (REPAIR_INTERVAL_MILLIS > 0) {
+            REPAIR_SWEEPER.scheduleWithFixedDelay(MainServer::repairFragments, REPAIR_INTERVAL_MILLIS,
+                    REPAIR_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
 
-        ExecutorService threadPool = Executors.newCachedThreadPool();
+        // Nombre de threads borné : une rafale de clients ne peut pas épuiser la mémoire du serveur
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(MAX_CLIENTS, MAX_CLIENTS, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>());
+        threadPool.allowCoreThreadTimeOut(true);
 
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
             System.out.println("Serveur principal en écoute sur le port " + PORT + "...");
             for (SubServerInfo subServer : SUB_SERVERS) {
-                try (Socket socket = new Socket(subServer.host, subServer.port)) {
-                    System.out.println("Sous-serveur connecté : " + subServer.host + ":" + subServer.port); // Notification
-                }
+                System.out.println(HealthMonitor.describe(subServer)); // Notification
             }
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("Client connecté : " + clientSocket.getInetAddress());
+                Metrics.trace("Client connecté : " + clientSocket.getInetAddress());
 
-                threadPool.execute(() -> handleClient(clientSocket));
+                try {
+                    threadPool.execute(() -> handleClient(clientSocket));
+                } catch (RejectedExecutionException e) {
+                    System.err.println("Client refusé, " + MAX_CLIENTS + " clients déjà servis : "
+                            + clientSocket.getInetAddress());
+                    refuseClient(clientSocket);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -63,311 +192,1752 @@ public class MainServer {
     }
 
     private static void handleClient(Socket clientSocket) {
+        String command = null;
+        long start = 0;
+        boolean succeeded = false; // Une commande refusée ou interrompue compte comme un échec
         try (Socket socket = clientSocket;
-                DataInputStream dis = new DataInputStream(socket.getInputStream());
-                DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
+                DataInputStream dis = new DataInputStream(
+                        new Metrics.CountingInputStream(socket.getInputStream(), "client.octets_recus"));
+                DataOutputStream dos = new DataOutputStream(
+                        new Metrics.CountingOutputStream(socket.getOutputStream(), "client.octets_envoyes"))) {
 
-            String command = dis.readUTF();
+            command = dis.readUTF();
+            start = System.nanoTime();
             if ("ENVOYER".equalsIgnoreCase(command)) {
                 String fileName = dis.readUTF();
                 long fileSize = dis.readLong();
-                distributeAndReplicateFile(dis, fileName, fileSize);
+                if (!UPLOADS.enter()) {
+                    refuse(dos, UPLOADS, fileName);
+                    return;
+                }
+                try {
+                    distributeAndReplicateFile(dis, fileName, fileSize);
+                } catch (IOException e) {
+                    dos.writeUTF("Échec : " + e.getMessage());
+                    throw e;
+                } finally {
+                    UPLOADS.leave();
+                }
+                dos.writeUTF("OK"); // Le client attend la fin des chaînes de réplication
                 System.out.println("Fichier reçu et distribué : " + fileName);
             } else if ("RECEVOIR".equalsIgnoreCase(command)) {
                 String fileName = dis.readUTF();
-                File assembledFile = assembleFile(fileName);
-                sendFileInChunks(assembledFile, dos);
-                if (assembledFile.delete()) {
-                    System.out.println("Fichier supprimé après envoi : " + fileName);
+                MetadataCatalog.FileEntry entry = CATALOG.get(fileName);
+                if (entry == null) {
+                    dos.writeUTF("ERREUR");
+                    dos.writeUTF("Fichier introuvable : " + fileName);
+                } else if (!DOWNLOADS.enter()) {
+                    dos.writeUTF(Admission.BUSY);
+                    refuse(dos, DOWNLOADS, fileName);
                 } else {
-                    System.err.println("Erreur lors de la suppression du fichier : " + fileName);
+                    try {
+                        dos.writeUTF("OK");
+                        dos.writeLong(entry.size);
+                        // Les fragments sont relayés directement vers le client, sans copie sur disque
+                        CheckedOutputStream checkedOut = new CheckedOutputStream(dos, new CRC32C());
+                        assembleFile(entry, checkedOut);
+                        dos.writeInt((int) checkedOut.getChecksum().getValue()); // Vérifiée par le client
+                        dos.flush();
+                    } finally {
+                        DOWNLOADS.leave();
+                    }
+                    System.out.println("Fichier envoyé en flux : " + fileName);
                 }
-
-            } else if ("LISTER".equalsIgnoreCase(command)) {
-                Set<String> uniqueFileNames = new HashSet<>();
-                int accessibleSubServers = 0;
-
-                for (SubServerInfo subServer : SUB_SERVERS) {
-                    try (Socket subSocket = new Socket(subServer.host, subServer.port);
-                            DataOutputStream subDos = new DataOutputStream(subSocket.getOutputStream());
-                            DataInputStream subDis = new DataInputStream(subSocket.getInputStream())) {
-
-                        subDos.writeUTF("LISTER");
-
-                        int fileCount = subDis.readInt();
-                        System.out.println(
-                                "Sous-serveur " + subServer.host + " a répondu avec " + fileCount + " fichiers."); // Notification
-
-                        for (int i = 0; i < fileCount; i++) {
-                            String fileName = subDis.readUTF();
-                            uniqueFileNames.add(fileName.replaceAll("\\.part\\d+$", ""));
-                        }
-                        accessibleSubServers++;
-                    } catch (IOException e) {
-                        System.err.println("Sous-serveur inaccessible : " + subServer.host + ":" + subServer.port);
+            } else if ("ETAT_ENVOI".equalsIgnoreCase(command)) {
+                // Octets déjà stockés d'un envoi interrompu : le client reprend à partir de là
+                String fileName = dis.readUTF();
+                long fileSize = dis.readLong();
+                long token = dis.readLong();
+                // Compression demandée par le client ; il utilise celle renvoyée en dernier
+                byte codec = Compression.byName(dis.readUTF());
+                // Un fichier codé par Reed-Solomon n'est pas compressé
+                if (codec == -1 || !COMPRESSION_ENABLED || isErasureCoded(fileSize, Compression.NONE)) {
+                    codec = Compression.NONE;
+                }
+                if (UPLOADS.isFull()) {
+                    // L'envoi serait refusé : le client attend avant de commencer à envoyer ses octets
+                    dos.writeUTF(Admission.BUSY);
+                    refuse(dos, UPLOADS, fileName);
+                    return;
+                }
+                dos.writeUTF("OK");
+                dos.writeLong(getCommittedBytes(fileName, fileSize, token, codec));
+                // Taille des blocs et fragments déjà stockés, pour un envoi en parallèle des seuls manquants
+                dos.writeLong(BLOCK_SIZE);
+                Set<Integer> stored = getStoredFragments(fileName, fileSize, token, codec);
+                dos.writeInt(stored.size());
+                for (int index : stored) {
+                    dos.writeInt(index);
+                }
+                dos.writeUTF(Compression.name(codec));
+            } else if ("ENVOYER_DEPUIS".equalsIgnoreCase(command)) {
+                String fileName = dis.readUTF();
+                long fileSize = dis.readLong();
+                long token = dis.readLong(); // Version du fichier du client
+                String codecName = dis.readUTF();
+                long offset = dis.readLong(); // Début des octets envoyés, aligné sur block_size
+                // Le client attend d'être admis avant d'envoyer ses octets
+                if (!UPLOADS.enter()) {
+                    refuse(dos, UPLOADS, fileName);
+                    return;
+                }
+                dos.writeUTF("OK");
+                dos.flush();
+                try {
+                    distributeAndReplicateFile(dis, fileName, fileSize, token, parseCodec(codecName), offset);
+                } catch (IOException e) {
+                    dos.writeUTF("Échec : " + e.getMessage());
+                    throw e;
+                } finally {
+                    UPLOADS.leave();
+                }
+                dos.writeUTF("OK");
+                System.out.println("Fichier reçu et distribué : " + fileName
+                        + (offset > 0 ? " (repris à l'octet " + offset + ")" : ""));
+            } else if ("ENVOYER_BLOCS".equalsIgnoreCase(command)) {
+                // Une partie des blocs d'un fichier, envoyée en parallèle d'autres connexions
+                String fileName = dis.readUTF();
+                long fileSize = dis.readLong();
+                long token = dis.readLong();
+                String codecName = dis.readUTF();
+                int firstBlock = dis.readInt();
+                int blockCount = dis.readInt();
+                if (!UPLOADS.enter()) {
+                    refuse(dos, UPLOADS, fileName);
+                    return;
+                }
+                dos.writeUTF("OK");
+                dos.flush();
+                boolean complete;
+                try {
+                    if (firstBlock < 0 || blockCount < 1 || firstBlock + blockCount > getFragmentCount(fileSize)) {
+                        throw new IOException("Blocs invalides : " + firstBlock + " à " + (firstBlock + blockCount));
                     }
+                    complete = distributeBlocks(dis, fileName, fileSize, token, parseCodec(codecName), firstBlock,
+                            firstBlock + blockCount);
+                } catch (IOException e) {
+                    dos.writeUTF("Échec : " + e.getMessage());
+                    throw e;
+                } finally {
+                    UPLOADS.leave();
                 }
-
-                if (accessibleSubServers > 0) {
-                    dos.writeInt(uniqueFileNames.size());
-                    for (String fileName : uniqueFileNames) {
-                        dos.writeUTF(fileName);
+                dos.writeUTF("OK");
+                if (complete) {
+                    System.out.println("Fichier reçu et distribué : " + fileName);
+                }
+            } else if ("ENVOYER_DEDUP".equalsIgnoreCase(command)) {
+                // Fichier découpé par le client en blocs de contenu ; seuls les blocs inconnus sont envoyés
+                String fileName = dis.readUTF();
+                long fileSize = dis.readLong();
+                long token = dis.readLong();
+                try {
+                    if (!receiveDeduplicatedFile(dis, dos, fileName, fileSize, token)) {
+                        return; // Refusé faute de place
                     }
+                } catch (IOException e) {
+                    dos.writeUTF("Échec : " + e.getMessage());
+                    throw e;
+                }
+                dos.writeUTF("OK");
+                System.out.println("Fichier reçu et distribué : " + fileName);
+            } else if ("ENVOYER_LOT".equalsIgnoreCase(command)) {
+                // Petits fichiers envoyés sur une seule connexion, rangés ensemble dans des conteneurs
+                int fileCount = dis.readInt();
+                if (fileCount < 1 || fileCount > MAX_BATCH_FILES) {
+                    dos.writeUTF("Échec : Nombre de fichiers invalide : " + fileCount);
+                    return;
+                }
+                String[] fileNames = new String[fileCount];
+                long[] fileSizes = new long[fileCount];
+                for (int i = 0; i < fileCount; i++) {
+                    fileNames[i] = dis.readUTF();
+                    fileSizes[i] = dis.readLong();
+                    if (fileSizes[i] < 0 || fileSizes[i] > MAX_PACKED_FILE_SIZE) {
+                        dos.writeUTF("Échec : Taille invalide pour un lot : " + fileNames[i]);
+                        return;
+                    }
+                }
+                if (!UPLOADS.enter()) {
+                    refuse(dos, UPLOADS, "lot de " + fileCount + " fichiers");
+                    return;
+                }
+                try {
+                    dos.writeUTF("OK"); // Le client envoie alors les fichiers bout à bout
+                    dos.flush();
+                    receiveBatch(dis, fileNames, fileSizes);
+                } catch (IOException e) {
+                    dos.writeUTF("Échec : " + e.getMessage());
+                    throw e;
+                } finally {
+                    UPLOADS.leave();
+                }
+                dos.writeUTF("OK");
+                System.out.println("Lot de " + fileCount + " fichiers reçu et distribué."); // Notification
+            } else if ("RECEVOIR_PLAGE".equalsIgnoreCase(command)) {
+                String fileName = dis.readUTF();
+                long offset = dis.readLong();
+                long length = dis.readLong();
+                MetadataCatalog.FileEntry entry = CATALOG.get(fileName);
+                // Une plage vide ne renvoie que la taille du fichier : elle n'est pas limitée
+                boolean admitted = false;
+                if (entry == null) {
+                    dos.writeUTF("ERREUR");
+                    dos.writeUTF("Fichier introuvable : " + fileName);
+                } else if (offset < 0 || offset > entry.size) {
+                    dos.writeUTF("ERREUR");
+                    dos.writeUTF("Plage invalide : octet " + offset + " pour un fichier de " + entry.size + " octets");
+                } else if (length > 0 && offset < entry.size && !(admitted = DOWNLOADS.enter())) {
+                    dos.writeUTF(Admission.BUSY);
+                    refuse(dos, DOWNLOADS, fileName);
                 } else {
-                    dos.writeInt(0); // Aucun fichier listé
+                    long end = offset + Math.min(length, entry.size - offset);
+                    try {
+                        dos.writeUTF("OK");
+                        dos.writeLong(entry.size);
+                        dos.writeLong(entry.version); // Un téléchargement ne reprend que sur la même version
+                        dos.writeLong(end - offset);
+                        CheckedOutputStream checkedOut = new CheckedOutputStream(dos, new CRC32C());
+                        assembleFile(entry, offset, end, checkedOut);
+                        dos.writeInt((int) checkedOut.getChecksum().getValue()); // Somme des octets de la plage
+                        dos.flush();
+                    } finally {
+                        if (admitted) {
+                            DOWNLOADS.leave();
+                        }
+                    }
+                    Metrics.trace("Plage envoyée : " + fileName + " [" + offset + ", " + end + ")");
+                }
+            } else if ("LISTER".equalsIgnoreCase(command)) {
+                // Réponse depuis le catalogue, sans interroger les sous-serveurs
+                List<MetadataCatalog.FileEntry> entries = new ArrayList<>(CATALOG.list());
+                dos.writeInt(entries.size());
+                for (MetadataCatalog.FileEntry entry : entries) {
+                    dos.writeUTF(entry.name);
                 }
             }
 
             else if ("RM".equalsIgnoreCase(command)) {
                 String fileName = dis.readUTF();
+                MetadataCatalog.FileEntry entry = CATALOG.get(fileName);
+                if (entry == null) {
+                    entry = CATALOG.getUpload(fileName); // Fragments d'un envoi interrompu
+                }
 
-                // Get the list of active sub-servers
+                // Seuls les sous-serveurs enregistrés dans le catalogue portent des fragments de ce fichier
+                List<SubServerInfo> holders = new ArrayList<>(getFragmentHolders(entry));
+                int quorum = holders.size() / 2 + 1;
                 List<SubServerInfo> activeSubServers = getActiveSubServers();
+                activeSubServers.retainAll(holders);
 
-                if (!activeSubServers.isEmpty()) {
-                    // Delete the file from the active sub-servers
-                    deleteFileFromActiveSubServers(fileName, activeSubServers, dos);
-                    dos.writeUTF("Fichier supprimé avec succès des serveurs actifs.");
+                if (entry == null) {
+                    dos.writeUTF("Échec : Fichier introuvable : " + fileName);
+                } else if (!holders.isEmpty() && activeSubServers.size() < quorum) {
+                    dos.writeUTF("Échec : " + activeSubServers.size() + "/" + holders.size()
+                            + " sous-serveurs en ligne, il en faut " + quorum + ".");
                 } else {
-                    dos.writeUTF("Échec : Aucun sous-serveur actif.");
+                    List<MetadataCatalog.FragmentEntry> orphans = new ArrayList<>();
+                    synchronized (CATALOG) {
+                        CATALOG.remove(fileName, orphans);
+                        // Enregistrées avant d'envoyer les effacements : chaque confirmation en retire une
+                        CATALOG.addTombstone(fileName, holders);
+                        if (!holders.isEmpty()) {
+                            DELETING.add(fileName);
+                        }
+                    }
+                    CATALOG.sync();
+                    BlockCache.invalidate(fileName);
+                    // Blocs dédupliqués que plus aucun fichier n'utilise, effacés avant de répondre au client
+                    deleteOrphanFragments(orphans);
+                    dos.writeUTF(deleteWithQuorum(fileName, holders));
                 }
             }
 
+            else if ("STATS".equalsIgnoreCase(command)) {
+                sendStats(dos);
+            }
+
             else {
                 dos.writeUTF("COMMANDE INCONNUE");
             }
+            succeeded = true;
         } catch (IOException e) {
             System.err.println("Erreur avec un client : " + e.getMessage());
+        } finally {
+            if (command != null) {
+                // Une commande inconnue n'a pas sa propre mesure : le client pourrait en créer sans limite
+                String name = COMMANDS.contains(command.toUpperCase()) ? command.toUpperCase() : "INCONNUE";
+                Metrics.timer(name).record(start, succeeded);
+            }
         }
     }
 
-    private static boolean checkAllSubServersOnline() {
-        for (SubServerInfo subServer : SUB_SERVERS) {
-            try (Socket socket = new Socket(subServer.host, subServer.port)) {
-                // Si la connexion réussit, le sous-serveur est en ligne.
+    /**
+     * Commande STATS : les mesures du serveur principal, puis celles de chaque
+     * sous-serveur en ligne, une ligne chacune.
+     */
+    private static void sendStats(DataOutputStream dos) throws IOException {
+        List<String> lines = new ArrayList<>(Metrics.report());
+        for (SubServerInfo subServer : getActiveSubServers()) {
+            lines.add("[sous-serveur " + subServer + "]");
+            try {
+                DataInputStream reply = ControlChannel.to(subServer).call("STATS");
+                int count = reply.readInt();
+                for (int i = 0; i < count; i++) {
+                    lines.add(reply.readUTF());
+                }
             } catch (IOException e) {
-                return false;
+                lines.add("indisponible : " + e.getMessage());
             }
         }
-        return true;
+        dos.writeInt(lines.size());
+        for (String line : lines) {
+            dos.writeUTF(line);
+        }
+    }
+
+    // Réponse à un transfert refusé faute de place ; le client réessaie plus tard
+    /**
+     * Répond OCCUPE à un client arrivé quand les max_clients threads sont
+     * pris, puis ferme sa connexion. Appelé par le thread d'acceptation : la
+     * réponse, courte, tient dans le tampon d'envoi vide de la connexion et
+     * ne bloque pas. Comme pour un refus d'admission, le mot OCCUPE est
+     * suivi d'un message ; les transferts du client réessaient plus tard.
+     */
+    private static void refuseClient(Socket clientSocket) {
+        try (Socket socket = clientSocket) {
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            dos.writeUTF(Admission.BUSY);
+            dos.writeUTF(Admission.BUSY + " : " + MAX_CLIENTS + " clients déjà servis, réessayez plus tard.");
+            dos.flush();
+            socket.shutdownOutput();
+            // Une commande déjà reçue et non lue ferait répondre la fermeture par un RST, qui perdrait la réponse
+            InputStream in = socket.getInputStream();
+            in.skip(in.available());
+        } catch (IOException e) {
+            Metrics.trace("Client parti avant le refus : " + e.getMessage());
+        }
     }
 
+    private static void refuse(DataOutputStream dos, Admission admission, String fileName) throws IOException {
+        dos.writeUTF(admission.busyMessage());
+        dos.flush();
+        System.err.println("Transfert de " + fileName + " refusé : " + admission.busyMessage());
+    }
+
+    // Lu dans le registre du moniteur : aucune connexion n'est ouverte ici
     private static List<SubServerInfo> getActiveSubServers() {
-        List<SubServerInfo> activeSubServers = new ArrayList<>();
-        for (SubServerInfo subServer : SUB_SERVERS) {
-            try (Socket socket = new Socket(subServer.host, subServer.port)) {
-                // If the connection succeeds, the sub-server is active
-                activeSubServers.add(subServer);
-                System.out.println("Sous-serveur connecté : " + subServer.host + ":" + subServer.port); // Notification
-            } catch (IOException e) {
-                // Sub-server is not reachable, so it's not considered active
-                System.err.println("Sous-serveur inaccessible : " + subServer.host + ":" + subServer.port);
+        return HealthMonitor.upSubServers(SUB_SERVERS);
+    }
+
+    /**
+     * Envoie DELETE en parallèle à tous les sous-serveurs qui portent des
+     * fragments du fichier et répond dès qu'une majorité l'a confirmé. Les
+     * autres effacements se terminent en arrière-plan ; un sous-serveur hors
+     * ligne ou en erreur garde sa pierre tombale et l'applique à son retour
+     * ({@link #applyTombstones()}).
+     */
+    private static String deleteWithQuorum(String fileName, List<SubServerInfo> holders) {
+        if (holders.isEmpty()) {
+            return "OK"; // Fichier fait seulement de blocs partagés
+        }
+        int quorum = holders.size() / 2 + 1;
+        AtomicInteger pending = new AtomicInteger(holders.size());
+        CompletionService<Boolean> deletions = new ExecutorCompletionService<>(DELETES);
+        for (SubServerInfo subServer : holders) {
+            deletions.submit(() -> {
+                try {
+                    return applyDeletion(subServer, fileName);
+                } finally {
+                    if (pending.decrementAndGet() == 0) {
+                        synchronized (CATALOG) {
+                            DELETING.remove(fileName);
+                            CATALOG.notifyAll();
+                        }
+                    }
+                }
+            });
+        }
+
+        int confirmed = 0;
+        int failed = 0;
+        try {
+            while (confirmed < quorum && failed <= holders.size() - quorum) {
+                if (deletions.take().get()) {
+                    confirmed++;
+                } else {
+                    failed++;
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Erreur d'effacement de " + fileName + " : " + e.getCause());
+        }
+
+        if (confirmed >= quorum) {
+            System.out.println("Fichier " + fileName + " supprimé (quorum " + quorum + "/" + holders.size()
+                    + " atteint)."); // Notification
+            return "OK";
         }
-        return activeSubServers;
+        System.err.println("Suppression de " + fileName + " confirmée par " + confirmed + "/" + holders.size()
+                + " sous-serveurs ; les autres l'appliqueront plus tard.");
+        return "Échec : suppression confirmée par " + confirmed + "/" + holders.size()
+                + " sous-serveurs seulement, les autres l'appliqueront plus tard.";
     }
 
-    private static void deleteFileFromActiveSubServers(String fileName, List<SubServerInfo> activeSubServers,
-            DataOutputStream dos) throws IOException {
-        boolean success = true;
+    /**
+     * Applique sur un sous-serveur l'effacement d'un fichier ou d'un fragment
+     * partagé et retire sa pierre tombale s'il l'a confirmé.
+     */
+    private static boolean applyDeletion(SubServerInfo subServer, String target) {
+        if (!HealthMonitor.isUp(subServer)) {
+            return false;
+        }
+        String command = MetadataCatalog.isShared(target) ? "DELETE_FRAGMENT" : "DELETE";
+        try {
+            if (!"OK".equals(ControlChannel.to(subServer).call(command, target).readUTF())) {
+                System.err.println("Erreur lors de la suppression de " + target + " sur " + subServer);
+                return false;
+            }
+            CATALOG.clearTombstone(target, List.of(subServer));
+            return true;
+        } catch (IOException e) {
+            System.err.println("Erreur de connexion au sous-serveur " + subServer + " pour effacer " + target);
+            return false;
+        }
+    }
 
-        for (SubServerInfo subServer : activeSubServers) {
-            try (Socket subSocket = new Socket(subServer.host, subServer.port);
-                    DataOutputStream subDos = new DataOutputStream(subSocket.getOutputStream());
-                    DataInputStream subDis = new DataInputStream(subSocket.getInputStream())) {
+    /**
+     * Efface d'un sous-serveur un fragment propre à un fichier, s'il a encore
+     * sa pierre tombale : un envoi qui l'a stocké à nouveau l'a retirée.
+     */
+    private static boolean applyFragmentDeletion(SubServerInfo subServer, String fragmentName) {
+        if (!CATALOG.hasFragmentTombstone(subServer, fragmentName)) {
+            return true;
+        }
+        if (!HealthMonitor.isUp(subServer)) {
+            return false;
+        }
+        try {
+            if (!"OK".equals(ControlChannel.to(subServer).call("DELETE_FRAGMENT", fragmentName).readUTF())) {
+                System.err.println("Erreur lors de la suppression de " + fragmentName + " sur " + subServer);
+                return false;
+            }
+            CATALOG.clearFragmentTombstone(fragmentName, List.of(subServer));
+            return true;
+        } catch (IOException e) {
+            System.err.println("Erreur de connexion au sous-serveur " + subServer + " pour effacer " + fragmentName);
+            return false;
+        }
+    }
 
-                // Send the DELETE command to the sub-server
-                subDos.writeUTF("DELETE");
-                subDos.writeUTF(fileName);
+    /**
+     * Applique aux sous-serveurs en ligne les effacements qu'ils ont manqués.
+     * Un effacement déjà en cours, d'un bloc qu'un envoi compte réutiliser ou
+     * d'un fragment dont le fichier est en cours d'envoi attend la passe
+     * suivante.
+     */
+    private static void applyTombstones() {
+        for (SubServerInfo subServer : SUB_SERVERS) {
+            if (!HealthMonitor.isUp(subServer)) {
+                continue;
+            }
+            for (String target : CATALOG.getTombstones(subServer)) {
+                synchronized (CATALOG) {
+                    if (!CATALOG.hasTombstone(subServer, target) || PINNED_CHUNKS.containsKey(target)
+                            || !DELETING.add(target)) {
+                        continue;
+                    }
+                }
+                try {
+                    if (applyDeletion(subServer, target)) {
+                        System.out.println("Effacement de " + target + " appliqué sur " + subServer); // Notification
+                    }
+                } finally {
+                    synchronized (CATALOG) {
+                        DELETING.remove(target);
+                        CATALOG.notifyAll();
+                    }
+                }
+            }
+            for (String fragmentName : CATALOG.getFragmentTombstones(subServer)) {
+                String fileName = fileOf(fragmentName);
+                synchronized (CATALOG) {
+                    if (!CATALOG.hasFragmentTombstone(subServer, fragmentName) || STORING.containsKey(fileName)
+                            || !DELETING.add(fileName)) {
+                        continue;
+                    }
+                }
+                try {
+                    if (applyFragmentDeletion(subServer, fragmentName)) {
+                        System.out.println("Effacement de " + fragmentName + " appliqué sur "
+                                + subServer); // Notification
+                    }
+                } finally {
+                    synchronized (CATALOG) {
+                        DELETING.remove(fileName);
+                        CATALOG.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Passe de réparation : ramène chaque fragment enregistré à
+     * replication_factor répliques, sur les sous-serveurs en ligne que le
+     * placement lui attribue. Les répliques sont vérifiées d'après LISTER :
+     * une réplique perdue (sous-serveur vidé) ou manquée par un envoi est
+     * recréée, un sous-serveur ajouté reçoit les fragments qui lui reviennent,
+     * et une réplique en trop hors du placement est effacée. Une réplique sur
+     * un sous-serveur hors ligne reste enregistrée mais ne compte pas : elle
+     * est remplacée, puis effacée à son retour si elle est en trop. Les copies
+     * vont directement d'un sous-serveur à l'autre (REPLICATE), au débit
+     * limité par repair.max_mb_per_s sur le sous-serveur source. Un morceau
+     * d'un fichier codé n'a qu'une copie ; s'il est perdu, il est recalculé
+     * à partir des autres morceaux de sa bande.
+     */
+    private static void repairFragments() {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            // Fragments relevés avant les listes des sous-serveurs : un fragment enregistré après n'est pas
+            // jugé sur elles, il aura changé d'objet dans le catalogue
+            List<MetadataCatalog.FileEntry> entries = new ArrayList<>(CATALOG.list());
+            Map<String, MetadataCatalog.FragmentEntry> sharedFragments = new LinkedHashMap<>();
+            for (MetadataCatalog.FileEntry entry : entries) {
+                for (MetadataCatalog.FragmentEntry fragment : entry.fragments) {
+                    if (MetadataCatalog.isShared(fragment.name) && !sharedFragments.containsKey(fragment.name)) {
+                        sharedFragments.put(fragment.name, CATALOG.getChunk(fragment.name));
+                    }
+                }
+            }
 
-                // Read the response from the sub-server
-                String response = subDis.readUTF();
-                if (!"OK".equalsIgnoreCase(response)) {
-                    System.err
-                            .println("Erreur lors de la suppression du fichier " + fileName + " sur " + subServer.host);
-                    success = false;
+            Map<SubServerInfo, Set<String>> stored = new HashMap<>();
+            for (SubServerInfo subServer : getActiveSubServers()) {
+                try {
+                    stored.put(subServer, listFragments(subServer));
+                } catch (IOException e) {
+                    System.err.println("Réparation reportée : fragments de " + subServer + " illisibles ("
+                            + e.getMessage() + ").");
+                    return;
+                }
+            }
+
+            RepairCounts counts = new RepairCounts();
+            for (MetadataCatalog.FileEntry entry : entries) {
+                for (MetadataCatalog.FragmentEntry fragment : entry.fragments) {
+                    MetadataCatalog.FragmentEntry snapshot = MetadataCatalog.isShared(fragment.name)
+                            ? sharedFragments.remove(fragment.name) : fragment;
+                    if (snapshot == null) {
+                        continue; // Fragment partagé déjà vu, ou plus référencé
+                    }
+                    try {
+                        repairFragment(entry, snapshot, stored, counts);
+                    } catch (IOException e) {
+                        System.err.println("Erreur de réparation du fragment " + fragment.name + " : "
+                                + e.getMessage());
+                    }
                 }
+            }
+            try {
+                CATALOG.sync();
             } catch (IOException e) {
-                success = false;
-                System.err.println("Erreur de connexion au sous-serveur " + subServer.host);
+                System.err.println("Journal du catalogue non écrit sur disque : " + e.getMessage());
+                return;
+            }
+            if (counts.created > 0 || counts.removed > 0 || counts.unreachable > 0) {
+                System.out.println("Réparation : " + counts.created + " répliques créées, " + counts.removed
+                        + " retirées, " + counts.unreachable
+                        + " fragments sans réplique accessible."); // Notification
             }
+            succeeded = true;
+        } finally {
+            Metrics.timer("reparation.passe").record(start, succeeded);
         }
+    }
 
-        if (success) {
-            dos.writeUTF("OK");
-            System.out.println("Fichier " + fileName + " supprimé des sous-serveurs actifs.");
+    /**
+     * Répare un fragment : le copie depuis une de ses répliques vers les
+     * sous-serveurs du placement qui ne l'ont pas, efface les répliques en
+     * trop, puis enregistre les nouvelles répliques. Le fichier (ou le bloc
+     * partagé) est réservé pendant la copie : un envoi du même nom attend, et
+     * un fragment en cours d'envoi ou d'effacement est laissé à la passe
+     * suivante. Si le fragment a été effacé entre-temps, les copies le sont
+     * aussi. Le morceau d'une bande est placé comme à l'envoi, hors des
+     * sous-serveurs qui portent les autres morceaux.
+     */
+    private static void repairFragment(MetadataCatalog.FileEntry entry, MetadataCatalog.FragmentEntry fragment,
+            Map<SubServerInfo, Set<String>> stored, RepairCounts counts) throws IOException {
+        String fileName = entry.name;
+        List<SubServerInfo> present = new ArrayList<>();
+        List<SubServerInfo> offline = new ArrayList<>();
+        for (SubServerInfo replica : fragment.replicas) {
+            Set<String> fragments = stored.get(replica);
+            if (fragments == null) {
+                offline.add(replica);
+            } else if (fragments.contains(fragment.name)) {
+                present.add(replica);
+            }
+        }
+        if (present.isEmpty() && !entry.isErasureCoded()) {
+            counts.unreachable++;
+            return;
+        }
+
+        int wanted = entry.isErasureCoded() ? 1 : getReplicationFactor();
+        List<SubServerInfo> candidates;
+        if (entry.isErasureCoded()) {
+            int width = entry.dataShards + entry.parityShards;
+            int shard = entry.fragments.indexOf(fragment) % width;
+            candidates = Placement.shardCandidates(Placement.rank(
+                    fragmentName(fileName, fragmentIndex(fragment.name), Compression.NONE), SUB_SERVERS), shard, width);
         } else {
-            dos.writeUTF("ERREUR");
-            System.err.println("Échec de la suppression du fichier " + fileName + " sur certains sous-serveurs.");
+            candidates = Placement.rank(fragment.name, SUB_SERVERS);
+        }
+        List<SubServerInfo> placement = new ArrayList<>();
+        for (SubServerInfo candidate : HealthMonitor.preferHealthy(candidates, fragment.storedSize)) {
+            if (placement.size() < wanted && stored.containsKey(candidate)) {
+                placement.add(candidate);
+            }
+        }
+        List<SubServerInfo> targets = new ArrayList<>(placement);
+        targets.removeAll(present);
+        boolean lostReplicas = present.size() + offline.size() < fragment.replicas.size();
+        if (targets.isEmpty() && present.size() <= wanted && !lostReplicas) {
+            return;
+        }
+
+        // Nom réservé : le fichier pour un fragment ordinaire, le fragment lui-même s'il est partagé
+        String name = MetadataCatalog.isShared(fragment.name) ? fragment.name : fileName;
+        synchronized (CATALOG) {
+            if (currentFragment(fileName, fragment.name) != fragment || DELETING.contains(name)
+                    || STORING.containsKey(name) || PINNED_CHUNKS.containsKey(name) || !REPAIRING.add(name)) {
+                return; // Vu à la passe suivante
+            }
+        }
+
+        List<SubServerInfo> copies = List.of();
+        try {
+            if (!targets.isEmpty() && present.isEmpty()) {
+                copies = rebuildShard(entry, fragment, targets);
+                if (copies.isEmpty()) {
+                    counts.unreachable++;
+                }
+            } else if (!targets.isEmpty()) {
+                for (SubServerInfo source : present) {
+                    copies = replicateFragment(source, fragment.name, fragment.storedSize, targets);
+                    if (!copies.isEmpty()) {
+                        break;
+                    }
+                }
+            }
+            List<SubServerInfo> replicas = new ArrayList<>(present);
+            replicas.addAll(copies);
+
+            // Répliques en trop : celles hors du placement, les moins bien classées effacées d'abord
+            List<SubServerInfo> ranking = Placement.rank(fragment.name, SUB_SERVERS);
+            int removed = 0;
+            for (int i = ranking.size() - 1; i >= 0 && replicas.size() > wanted; i--) {
+                SubServerInfo replica = ranking.get(i);
+                if (replicas.contains(replica) && !placement.contains(replica)
+                        && deleteReplica(replica, fragment.name)) {
+                    replicas.remove(replica);
+                    removed++;
+                }
+            }
+            replicas.addAll(offline);
+
+            synchronized (CATALOG) {
+                if (currentFragment(fileName, fragment.name) == fragment) {
+                    CATALOG.updateReplicas(fileName, fragment.name, replicas);
+                    BlockCache.invalidateFragment(fragment.name);
+                    counts.created += copies.size();
+                    counts.removed += removed;
+                    Metrics.add("reparation.repliques_creees", copies.size());
+                    Metrics.add("reparation.repliques_retirees", removed);
+                    Metrics.trace("Fragment " + fragment.name + " réparé : répliques " + replicas);
+                    return;
+                }
+            }
+            // Fragment effacé pendant la copie : les copies n'appartiennent plus à aucun fichier
+            if (!copies.isEmpty()) {
+                CATALOG.addTombstone(name, copies);
+                for (SubServerInfo copy : copies) {
+                    applyDeletion(copy, name);
+                }
+            }
+        } finally {
+            synchronized (CATALOG) {
+                REPAIRING.remove(name);
+                CATALOG.notifyAll();
+            }
         }
     }
 
-    private static void deleteFileFromAllSubServers(String fileName, DataOutputStream dos) throws IOException {
-        boolean success = true;
+    /**
+     * Recalcule un morceau perdu à partir des autres morceaux de sa bande, lus
+     * par le serveur principal, et l'envoie au sous-serveur du placement.
+     * Renvoie le sous-serveur qui l'a reçu, ou aucun si la bande est
+     * irrécupérable pour le moment.
+     */
+    private static List<SubServerInfo> rebuildShard(MetadataCatalog.FileEntry entry,
+            MetadataCatalog.FragmentEntry fragment, List<SubServerInfo> targets) throws IOException {
+        int width = entry.dataShards + entry.parityShards;
+        int position = entry.fragments.indexOf(fragment);
+        int first = position - position % width;
+        byte[] content;
+        try {
+            content = new FragmentReader(CHUNK_SIZE, DOWNLOAD_RANGE_SIZE, DOWNLOAD_PARALLELISM).rebuildShard(
+                    entry.fragments.subList(first, first + width), entry.dataShards, position - first);
+        } catch (IOException e) {
+            System.err.println("Morceau " + fragment.name + " non reconstruit : " + e.getMessage());
+            return List.of();
+        }
+        UploadPipeline pipeline = new UploadPipeline(TRANSFER_BUFFERS, UPLOAD_BUFFER_COUNT);
+        pipeline.sendFragment(new DataInputStream(new ByteArrayInputStream(content)), fragment.name, content.length,
+                targets, 1);
+        List<SubServerInfo> copies = pipeline.finish().getOrDefault(fragment.name, List.of());
+        Metrics.add("reparation.morceaux_reconstruits", copies.size());
+        return copies;
+    }
 
-        for (SubServerInfo subServer : SUB_SERVERS) {
-            try (Socket subSocket = new Socket(subServer.host, subServer.port);
-                    DataOutputStream subDos = new DataOutputStream(subSocket.getOutputStream());
-                    DataInputStream subDis = new DataInputStream(subSocket.getInputStream())) {
-
-                // Envoyer la commande de suppression pour tous les fragments associés au
-                // fichier.
-                subDos.writeUTF("DELETE_ALL_FRAGMENTS");
-                subDos.writeUTF(fileName);
-
-                // Lire la réponse du sous-serveur.
-                String response = subDis.readUTF();
-                if (!"OK".equalsIgnoreCase(response)) {
-                    System.err.println(
-                            "Erreur lors de la suppression des fragments de " + fileName + " sur " + subServer.host);
-                    success = false;
+    // Le fragment tel qu'il est enregistré maintenant, ou null s'il ne l'est plus (accès sous CATALOG)
+    private static MetadataCatalog.FragmentEntry currentFragment(String fileName, String fragmentName) {
+        if (MetadataCatalog.isShared(fragmentName)) {
+            return CATALOG.getChunk(fragmentName);
+        }
+        MetadataCatalog.FileEntry entry = CATALOG.get(fileName);
+        if (entry != null) {
+            for (MetadataCatalog.FragmentEntry fragment : entry.fragments) {
+                if (fragment.name.equals(fragmentName)) {
+                    return fragment;
                 }
-            } catch (IOException e) {
-                success = false;
-                System.err.println("Erreur de connexion au sous-serveur " + subServer.host);
             }
         }
+        return null;
+    }
 
-        if (success) {
-            dos.writeUTF("OK");
-            System.out.println("Tous les fragments du fichier " + fileName + " ont été supprimés avec succès.");
-        } else {
-            dos.writeUTF("ERREUR");
-            System.err.println("Échec de la suppression complète des fragments du fichier " + fileName + ".");
+    private static Set<String> listFragments(SubServerInfo subServer) throws IOException {
+        DataInputStream subDis = ControlChannel.to(subServer).call("LISTER");
+        int fragmentCount = subDis.readInt();
+        Set<String> fragments = new HashSet<>();
+        for (int i = 0; i < fragmentCount; i++) {
+            fragments.add(subDis.readUTF());
+        }
+        return fragments;
+    }
+
+    /**
+     * Demande à {@code source} de copier le fragment de {@code size} octets
+     * vers {@code targets}, en chaîne. Renvoie les sous-serveurs qui ont
+     * stocké la copie. La réponse est attendue le temps de la copie au débit
+     * de réparation, plus le délai des connexions de données.
+     */
+    private static List<SubServerInfo> replicateFragment(SubServerInfo source, String fragmentName, long size,
+            List<SubServerInfo> targets) {
+        ConnectionPool.Connection connection = null;
+        try {
+            connection = ConnectionPool.borrow(source, CHUNK_SIZE);
+            connection.out.writeUTF("REPLICATE");
+            connection.out.writeUTF(fragmentName);
+            SubServerInfo.writeList(connection.out, targets);
+            connection.out.flush();
+            if (DataTimeout.MILLIS > 0 && REPAIR_BYTES_PER_SECOND > 0) {
+                long copyMillis = size * 1000 / REPAIR_BYTES_PER_SECOND;
+                connection.socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE,
+                        copyMillis + (long) DataTimeout.MILLIS * (targets.size() + 1)));
+            } else {
+                connection.socket.setSoTimeout(0); // Sans délai, ou débit non limité : durée inconnue
+            }
+            List<SubServerInfo> copies = "OK".equals(connection.in.readUTF())
+                    ? SubServerInfo.readList(connection.in) : List.of();
+            DataTimeout.configure(connection.socket);
+            ConnectionPool.release(connection);
+            return copies;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.close();
+                if (connection.reused && !(e instanceof SocketTimeoutException)) {
+                    // Connexion inactive fermée par le sous-serveur (redémarrage) : réessayer sur une neuve
+                    ConnectionPool.discard(source);
+                    return replicateFragment(source, fragmentName, size, targets);
+                }
+            }
+            System.err.println("Erreur de réplication de " + fragmentName + " depuis " + source + " : "
+                    + e.getMessage());
+            return List.of();
+        }
+    }
+
+    // Efface une réplique en trop ; elle reste enregistrée si le sous-serveur ne confirme pas
+    private static boolean deleteReplica(SubServerInfo subServer, String fragmentName) {
+        try {
+            return "OK".equals(ControlChannel.to(subServer).call("DELETE_FRAGMENT", fragmentName).readUTF());
+        } catch (IOException e) {
+            System.err.println("Erreur de connexion au sous-serveur " + subServer + " pour effacer " + fragmentName);
+            return false;
         }
     }
 
     private static void distributeAndReplicateFile(DataInputStream dis, String fileName, long fileSize)
             throws IOException {
-        long fragmentSize = fileSize / SUB_SERVERS.size();
-        byte[] buffer = new byte[CHUNK_SIZE];
+        distributeAndReplicateFile(dis, fileName, fileSize, 0, Compression.NONE, 0);
+    }
+
+    private static byte parseCodec(String codecName) throws IOException {
+        byte codec = Compression.byName(codecName);
+        if (codec == -1 || (codec != Compression.NONE && !COMPRESSION_ENABLED)) {
+            throw new IOException("Compression non disponible : " + codecName);
+        }
+        return codec;
+    }
 
-        for (int i = 0; i < SUB_SERVERS.size(); i++) {
-            long bytesToSend = (i == SUB_SERVERS.size() - 1) ? (fileSize - i * fragmentSize) : fragmentSize;
+    /**
+     * Reçoit les octets {@code [offset, fileSize)} du fichier et les répartit
+     * en fragments. Les fragments avant {@code offset} doivent avoir été
+     * stockés par un envoi précédent de la même version du fichier
+     * ({@code token}), avec la même compression ({@code codec}).
+     */
+    private static void distributeAndReplicateFile(DataInputStream dis, String fileName, long fileSize, long token,
+            byte codec, long offset) throws IOException {
+        if (offset % BLOCK_SIZE != 0 || offset > getCommittedBytes(fileName, fileSize, token, codec)) {
+            throw new IOException("Reprise impossible à l'octet " + offset + " pour " + fileName + ".");
+        }
+        if (!distributeBlocks(dis, fileName, fileSize, token, codec, (int) (offset / BLOCK_SIZE),
+                getFragmentCount(fileSize))) {
+            throw new IOException("Des fragments de " + fileName + " manquent pour terminer l'envoi.");
+        }
+    }
 
-            try (Socket subServerSocket = new Socket(SUB_SERVERS.get(i).host, SUB_SERVERS.get(i).port);
-                    DataOutputStream subDos = new DataOutputStream(subServerSocket.getOutputStream())) {
+    /**
+     * Reçoit les fragments {@code [firstFragment, endFragment)} du fichier et
+     * les répartit sur les sous-serveurs. Plusieurs envois de la même version
+     * du fichier ({@code token}) peuvent porter chacun une partie des
+     * fragments, en parallèle. Les fragments stockés en entier sont ajoutés à
+     * l'envoi en cours dans le catalogue, même si l'envoi est interrompu ;
+     * le fichier est enregistré quand tous ses fragments sont stockés. Renvoie
+     * vrai si le fichier est alors complet. Avec une compression, chaque
+     * fragment est compressé trame par trame dans un fichier temporaire, puis
+     * part de là vers les sous-serveurs, qui stockent et répliquent la
+     * version compressée ; le catalogue garde la position des trames. Un
+     * fichier codé est envoyé bande par bande (voir {@link #sendStripe}).
+     */
+    private static boolean distributeBlocks(DataInputStream dis, String fileName, long fileSize, long token,
+            byte codec, int firstFragment, int endFragment) throws IOException {
+        prepareStore(fileName);
+        try {
+            return storeBlocks(dis, fileName, fileSize, token, codec, firstFragment, endFragment);
+        } finally {
+            storeFinished(fileName);
+        }
+    }
 
-                subDos.writeUTF("STORE");
-                subDos.writeUTF(fileName + ".part" + i);
-                subDos.writeLong(bytesToSend);
+    private static boolean storeBlocks(DataInputStream dis, String fileName, long fileSize, long token,
+            byte codec, int firstFragment, int endFragment) throws IOException {
+        UploadPipeline pipeline = new UploadPipeline(TRANSFER_BUFFERS, UPLOAD_BUFFER_COUNT);
+        // Somme de contrôle du flux du client, calculée pendant la lecture des fragments
+        CheckedInputStream checkedIn = new CheckedInputStream(dis, new CRC32C());
+        DataInputStream in = new DataInputStream(checkedIn);
+        IOException failure = null;
+        boolean corrupted = false;
+        Map<Integer, Long> storedSizes = new HashMap<>();
+        Map<Integer, int[]> frames = new HashMap<>(); // Positions des trames des fragments compressés
+        boolean coded = isErasureCoded(fileSize, codec);
 
-                long bytesSent = 0;
-                while (bytesSent < bytesToSend) {
-                    int bytesRead = dis.read(buffer, 0, (int) Math.min(CHUNK_SIZE, bytesToSend - bytesSent));
-                    subDos.write(buffer, 0, bytesRead);
-                    bytesSent += bytesRead;
+        try {
+            for (int i = firstFragment; i < endFragment; i++) {
+                long bytesToSend = getFragmentSize(fileSize, i);
+                if (coded) {
+                    sendStripe(pipeline, in, fileName, i, (int) bytesToSend);
+                    continue;
                 }
+                String fragmentName = fragmentName(fileName, i, codec);
+                // Chaîne de réplication : les sous-serveurs dans l'ordre du placement, ceux hors ligne ou
+                // sans place en dernier
+                List<SubServerInfo> chain = HealthMonitor.preferHealthy(Placement.rank(fragmentName, SUB_SERVERS),
+                        bytesToSend);
+                if (codec == Compression.NONE) {
+                    storedSizes.put(i, bytesToSend);
+                    pipeline.sendFragment(in, fragmentName, bytesToSend, chain, getReplicationFactor());
+                    continue;
+                }
+                // La taille compressée est annoncée avant les données : les trames attendent sur disque
+                int reserved = reserveSpill(bytesToSend);
+                File spill = File.createTempFile(SPILL_PREFIX, ".tmp", new File(SERVER_DIRECTORY));
+                try {
+                    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(spill))) {
+                        frames.put(i, Compression.compress(in, bytesToSend, out));
+                    }
+                    storedSizes.put(i, spill.length());
+                    try (DataInputStream spillIn = new DataInputStream(new FileInputStream(spill))) {
+                        pipeline.sendFragment(spillIn, fragmentName, spill.length(), chain, getReplicationFactor());
+                    }
+                } finally {
+                    spill.delete();
+                    SPILL_SPACE.release(reserved);
+                }
+            }
+            if (dis.readInt() != (int) checkedIn.getChecksum().getValue()) {
+                corrupted = true;
+                throw new IOException("Somme de contrôle du fichier " + fileName + " invalide.");
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
 
-                System.out.println(
-                        "Fichier fragmenté envoyé à " + SUB_SERVERS.get(i).host + ":" + SUB_SERVERS.get(i).port); // Notification
+        Map<String, List<SubServerInfo>> storedReplicas = pipeline.finish();
+        List<MetadataCatalog.FragmentEntry> stored = new ArrayList<>();
+        // Un flux corrompu ne dit pas quels fragments sont touchés : aucun n'est gardé
+        for (int i = firstFragment; i < endFragment && !corrupted; i++) {
+            if (coded) {
+                List<MetadataCatalog.FragmentEntry> shards = getStoredShards(fileName, fileSize, i, storedReplicas);
+                if (shards != null) {
+                    stored.addAll(shards);
+                } else if (failure == null) {
+                    failure = new IOException("Le bloc " + i + " de " + fileName
+                            + " n'a pu être stocké : moins de " + DATA_SHARDS + " morceaux sur les sous-serveurs.");
+                }
+                continue;
             }
+            String fragmentName = fragmentName(fileName, i, codec);
+            List<SubServerInfo> replicas = storedReplicas.getOrDefault(fragmentName, List.of());
+            if (replicas.isEmpty()) {
+                if (failure == null) {
+                    failure = new IOException("Le fragment " + fragmentName
+                            + " n'a pu être stocké sur aucun sous-serveur.");
+                }
+                continue;
+            } else if (replicas.size() < getReplicationFactor()) {
+                System.err.println("Fragment " + fragmentName + " stocké sur " + replicas.size() + "/"
+                        + getReplicationFactor() + " sous-serveurs.");
+            }
+            stored.add(new MetadataCatalog.FragmentEntry(fragmentName, getFragmentSize(fileSize, i),
+                    storedSizes.get(i), 0, frames.get(i), replicas));
+        }
 
-            replicateToOtherSubServers(fileName + ".part" + i, i);
+        boolean complete = recordStoredFragments(fileName, fileSize, token, codec, stored);
+        if (failure != null) {
+            System.err.println("Envoi de " + fileName + " interrompu : " + stored.size() + "/"
+                    + (endFragment - firstFragment) + " fragments gardés pour une reprise.");
+            throw failure;
         }
+        return complete;
     }
 
-    private static void replicateToOtherSubServers(String fileName, int sourceSubServerIndex) {
-        for (int j = 0; j < SUB_SERVERS.size(); j++) {
-            if (j != sourceSubServerIndex) {
-                try (Socket sourceSocket = new Socket(SUB_SERVERS.get(sourceSubServerIndex).host,
-                        SUB_SERVERS.get(sourceSubServerIndex).port);
-                        Socket targetSocket = new Socket(SUB_SERVERS.get(j).host, SUB_SERVERS.get(j).port);
-                        DataOutputStream sourceDos = new DataOutputStream(sourceSocket.getOutputStream());
-                        DataInputStream sourceDis = new DataInputStream(sourceSocket.getInputStream());
-                        DataOutputStream targetDos = new DataOutputStream(targetSocket.getOutputStream())) {
+    /**
+     * Ajoute des fragments stockés à l'envoi en cours de cette version du
+     * fichier. Enregistre le fichier et renvoie vrai si tous ses fragments
+     * sont désormais stockés.
+     */
+    private static boolean recordStoredFragments(String fileName, long fileSize, long token, byte codec,
+            List<MetadataCatalog.FragmentEntry> stored) throws IOException {
+        int fragmentCount = getFragmentCount(fileSize);
+        boolean coded = isErasureCoded(fileSize, codec);
+        int dataShards = coded ? DATA_SHARDS : 0;
+        int parityShards = coded ? PARITY_SHARDS : 0;
+        List<MetadataCatalog.FragmentEntry> orphans;
+        boolean complete;
+        // Les envois parallèles d'un même fichier se terminent chacun ici
+        synchronized (CATALOG) {
+            Map<Integer, List<MetadataCatalog.FragmentEntry>> blocks = new TreeMap<>();
+            MetadataCatalog.UploadEntry previous = CATALOG.getUpload(fileName);
+            if (isResumable(previous, fileSize, token, codec)) {
+                blocks.putAll(getStoredBlocks(previous));
+            }
+            blocks.putAll(groupByBlock(stored));
+            List<MetadataCatalog.FragmentEntry> fragments = new ArrayList<>();
+            for (List<MetadataCatalog.FragmentEntry> block : blocks.values()) {
+                fragments.addAll(block);
+            }
 
-                    sourceDos.writeUTF("RETRIEVE");
-                    sourceDos.writeUTF(fileName);
+            complete = blocks.size() == fragmentCount;
+            if (complete) {
+                orphans = CATALOG.put(new MetadataCatalog.FileEntry(fileName, fileSize, codec, dataShards,
+                        parityShards, fragments));
+                BlockCache.invalidate(fileName); // Libère la place de l'ancienne version
+                long storedSize = 0;
+                for (MetadataCatalog.FragmentEntry fragment : fragments) {
+                    storedSize += fragment.storedSize;
+                }
+                if (codec != Compression.NONE) {
+                    System.out.println("Fichier " + fileName + " compressé (" + Compression.name(codec) + ") : "
+                            + fileSize + " octets stockés en " + storedSize + " par réplique."); // Notification
+                } else if (coded) {
+                    System.out.println("Fichier " + fileName + " codé (" + dataShards + "+" + parityShards + ") : "
+                            + fileSize + " octets stockés en " + storedSize + "."); // Notification
+                }
+            } else {
+                orphans = CATALOG.putUpload(new MetadataCatalog.UploadEntry(fileName, fileSize, token, codec,
+                        dataShards, parityShards, fragments));
+            }
+        }
+        CATALOG.sync();
+        // Les versions précédentes libèrent leurs blocs et les fragments qu'elles seules avaient
+        deleteOrphanFragments(orphans);
+        return complete;
+    }
+
+    // Numéros des fragments déjà stockés d'un envoi interrompu de cette version du fichier
+    private static Set<Integer> getStoredFragments(String fileName, long fileSize, long token, byte codec) {
+        MetadataCatalog.UploadEntry upload = CATALOG.getUpload(fileName);
+        if (!isResumable(upload, fileSize, token, codec)) {
+            return new TreeSet<>();
+        }
+        return new TreeSet<>(getStoredBlocks(upload).keySet());
+    }
+
+    // Même version du fichier, même compression et même code que l'envoi demandé
+    private static boolean isResumable(MetadataCatalog.UploadEntry upload, long fileSize, long token, byte codec) {
+        return upload != null && upload.size == fileSize && upload.token == token && upload.codec == codec
+                && upload.isErasureCoded() == isErasureCoded(fileSize, codec)
+                && (!upload.isErasureCoded()
+                        || (upload.dataShards == DATA_SHARDS && upload.parityShards == PARITY_SHARDS));
+    }
+
+    /**
+     * Fragments complets d'un envoi interrompu, par bloc : le fragment du bloc,
+     * ou tous les morceaux de sa bande pour un fichier codé. Un bloc d'une
+     * autre taille vient d'une autre valeur de block_size.
+     */
+    private static Map<Integer, List<MetadataCatalog.FragmentEntry>> getStoredBlocks(
+            MetadataCatalog.UploadEntry upload) {
+        Map<Integer, List<MetadataCatalog.FragmentEntry>> blocks = groupByBlock(upload.fragments);
+        int width = upload.isErasureCoded() ? upload.dataShards + upload.parityShards : 1;
+        blocks.entrySet().removeIf(block -> {
+            long size = 0;
+            for (MetadataCatalog.FragmentEntry fragment : block.getValue()) {
+                size += fragment.size;
+            }
+            return block.getKey() >= getFragmentCount(upload.size) || block.getValue().size() != width
+                    || size != getFragmentSize(upload.size, block.getKey());
+        });
+        return blocks;
+    }
+
+    // Fragments rangés par numéro de bloc, dans leur ordre ; les blocs dédupliqués sont ignorés
+    private static Map<Integer, List<MetadataCatalog.FragmentEntry>> groupByBlock(
+            List<MetadataCatalog.FragmentEntry> fragments) {
+        Map<Integer, List<MetadataCatalog.FragmentEntry>> blocks = new TreeMap<>();
+        for (MetadataCatalog.FragmentEntry fragment : fragments) {
+            if (!MetadataCatalog.isShared(fragment.name)) {
+                blocks.computeIfAbsent(fragmentIndex(fragment.name), index -> new ArrayList<>()).add(fragment);
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Octets déjà stockés d'un envoi interrompu de cette version du fichier :
+     * les fragments complets qui se suivent depuis le début. Zéro s'il n'y a
+     * pas d'envoi à reprendre.
+     */
+    private static long getCommittedBytes(String fileName, long fileSize, long token, byte codec) {
+        Set<Integer> stored = getStoredFragments(fileName, fileSize, token, codec);
+        int contiguous = 0;
+        while (stored.contains(contiguous)) {
+            contiguous++;
+        }
+        return Math.min(fileSize, contiguous * BLOCK_SIZE);
+    }
+
+    // Blocs de taille fixe ; un fichier vide occupe tout de même un fragment
+    private static int getFragmentCount(long fileSize) {
+        return (int) Math.max(1, (fileSize + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
 
-                    long fragmentSize = sourceDis.readLong();
-                    targetDos.writeUTF("STORE");
-                    targetDos.writeUTF(fileName);
-                    targetDos.writeLong(fragmentSize);
+    private static long getFragmentSize(long fileSize, int index) {
+        return Math.min(BLOCK_SIZE, fileSize - index * BLOCK_SIZE);
+    }
+
+    /**
+     * Réserve la place d'un fichier temporaire de {@code size} octets, en
+     * attendant que d'autres envois effacent les leurs. La réservation est
+     * bornée par {@code upload.spill_max_mb} : un fragment plus grand attend
+     * que la place soit libre et passe seul. Renvoie les Mo réservés, à rendre
+     * à {@link #SPILL_SPACE} après l'effacement du fichier.
+     */
+    private static int reserveSpill(long size) throws InterruptedIOException {
+        int megabytes = (int) Math.min(SPILL_MAX_MB, (size + 1024 * 1024 - 1) / (1024 * 1024));
+        try {
+            SPILL_SPACE.acquire(megabytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Envoi interrompu");
+        }
+        return megabytes;
+    }
+
+    /**
+     * Vrai si un fichier de cette taille est codé par Reed-Solomon plutôt que
+     * répliqué : assez grand, non compressé, et avec un sous-serveur pour
+     * chaque morceau d'une bande.
+     */
+    private static boolean isErasureCoded(long fileSize, byte codec) {
+        return ERASURE_MIN_BYTES > 0 && fileSize >= ERASURE_MIN_BYTES && codec == Compression.NONE
+                && DATA_SHARDS + PARITY_SHARDS <= SUB_SERVERS.size();
+    }
 
-                    byte[] buffer = new byte[CHUNK_SIZE];
-                    long bytesSent = 0;
-                    while (bytesSent < fragmentSize) {
-                        int bytesRead = sourceDis.read(buffer, 0, (int) Math.min(CHUNK_SIZE, fragmentSize - bytesSent));
-                        targetDos.write(buffer, 0, bytesRead);
-                        bytesSent += bytesRead;
+    // Octets de chaque morceau d'une bande : le bloc réparti sur les morceaux de données
+    private static int getShardSize(int blockSize) {
+        return (blockSize + DATA_SHARDS - 1) / DATA_SHARDS;
+    }
+
+    // Octets du bloc portés par un morceau : le dernier morceau de données peut être plus court, la parité vide
+    private static int getShardDataSize(int blockSize, int shard) {
+        if (shard >= DATA_SHARDS) {
+            return 0;
+        }
+        int shardSize = getShardSize(blockSize);
+        return Math.max(0, Math.min(shardSize, blockSize - shard * shardSize));
+    }
+
+    /**
+     * Lit un bloc, calcule ses morceaux de parité et envoie chaque morceau à
+     * un sous-serveur différent, en un seul exemplaire : la parité remplace
+     * les répliques. Les morceaux de données sont les tranches successives du
+     * bloc : chacun part vers son sous-serveur pendant la lecture. Chaque
+     * octet de parité dépend des octets à la même position dans tous les
+     * morceaux de données : le bloc attend aussi dans un fichier temporaire,
+     * relu ensuite tranche par tranche ({@link ReedSolomon#SLICE_SIZE}) pour
+     * calculer la parité.
+     */
+    private static void sendStripe(UploadPipeline pipeline, DataInputStream in, String fileName, int index,
+            int blockSize) throws IOException {
+        int width = DATA_SHARDS + PARITY_SHARDS;
+        int shardSize = getShardSize(blockSize);
+        byte[][] slices = new byte[width][ReedSolomon.SLICE_SIZE];
+        List<SubServerInfo> ranking = Placement.rank(fragmentName(fileName, index, Compression.NONE), SUB_SERVERS);
+        int reserved = reserveSpill(blockSize);
+        File spill = File.createTempFile(SPILL_PREFIX, ".tmp", new File(SERVER_DIRECTORY));
+        try (RandomAccessFile block = new RandomAccessFile(spill, "rw")) {
+            for (int shard = 0; shard < DATA_SHARDS; shard++) {
+                int length = getShardDataSize(blockSize, shard);
+                UploadPipeline.Stream stream = startShard(pipeline, fileName, index, shard, length, ranking);
+                for (int copied = 0; copied < length; ) {
+                    int n = Math.min(slices[0].length, length - copied);
+                    in.readFully(slices[0], 0, n);
+                    block.write(slices[0], 0, n);
+                    stream.write(slices[0], 0, n);
+                    copied += n;
+                }
+                stream.end();
+            }
+
+            // Les morceaux de parité commencent une fois le bloc lu, pour ne pas garder une connexion inactive
+            UploadPipeline.Stream[] parity = new UploadPipeline.Stream[PARITY_SHARDS];
+            for (int i = 0; i < PARITY_SHARDS; i++) {
+                parity[i] = startShard(pipeline, fileName, index, DATA_SHARDS + i, shardSize, ranking);
+            }
+            ReedSolomon codec = new ReedSolomon(DATA_SHARDS, PARITY_SHARDS);
+            for (int offset = 0; offset < shardSize; offset += ReedSolomon.SLICE_SIZE) {
+                int length = Math.min(ReedSolomon.SLICE_SIZE, shardSize - offset);
+                // Morceaux de données complétés par des zéros pour le calcul
+                for (int shard = 0; shard < DATA_SHARDS; shard++) {
+                    int n = Math.max(0, Math.min(length, getShardDataSize(blockSize, shard) - offset));
+                    block.seek((long) shard * shardSize + offset);
+                    block.readFully(slices[shard], 0, n);
+                    Arrays.fill(slices[shard], n, length, (byte) 0);
+                }
+                codec.encodeParity(slices, length);
+                for (int i = 0; i < PARITY_SHARDS; i++) {
+                    parity[i].write(slices[DATA_SHARDS + i], 0, length);
+                }
+            }
+            for (UploadPipeline.Stream stream : parity) {
+                stream.end();
+            }
+        } finally {
+            spill.delete();
+            SPILL_SPACE.release(reserved);
+        }
+    }
+
+    // Commence l'envoi d'un morceau de la bande, vers le sous-serveur de sa position dans le placement
+    private static UploadPipeline.Stream startShard(UploadPipeline pipeline, String fileName, int index, int shard,
+            int length, List<SubServerInfo> ranking) {
+        List<SubServerInfo> candidates = Placement.shardCandidates(ranking, shard, DATA_SHARDS + PARITY_SHARDS);
+        return pipeline.startFragment(shardName(fileName, index, shard), length,
+                HealthMonitor.preferHealthy(candidates, length), 1);
+    }
+
+    // Les morceaux d'une bande envoyée, ou null s'il en manque trop pour relire le bloc
+    private static List<MetadataCatalog.FragmentEntry> getStoredShards(String fileName, long fileSize, int index,
+            Map<String, List<SubServerInfo>> storedReplicas) {
+        int blockSize = (int) getFragmentSize(fileSize, index);
+        int width = DATA_SHARDS + PARITY_SHARDS;
+        List<MetadataCatalog.FragmentEntry> shards = new ArrayList<>();
+        int storedCount = 0;
+        for (int shard = 0; shard < width; shard++) {
+            String shardName = shardName(fileName, index, shard);
+            // Un morceau perdu reste enregistré sans copie : la réparation le recalculera
+            List<SubServerInfo> replicas = storedReplicas.getOrDefault(shardName, List.of());
+            if (!replicas.isEmpty()) {
+                storedCount++;
+            }
+            int dataSize = getShardDataSize(blockSize, shard);
+            shards.add(new MetadataCatalog.FragmentEntry(shardName, dataSize,
+                    shard < DATA_SHARDS ? dataSize : getShardSize(blockSize), replicas));
+        }
+        if (storedCount < DATA_SHARDS) {
+            return null;
+        } else if (storedCount < width) {
+            System.err.println("Bloc " + index + " de " + fileName + " stocké à " + storedCount + "/" + width
+                    + " morceaux.");
+        }
+        return shards;
+    }
+
+    /**
+     * Reçoit un fichier découpé par le client en blocs de contenu. Le client
+     * annonce l'empreinte SHA-256 et la taille de chaque bloc ; le serveur
+     * répond avec les blocs qu'il ne connaît pas, et seuls ceux-là sont
+     * envoyés puis stockés sur les sous-serveurs, sous le nom de leur
+     * empreinte. Les autres sont repris tels quels d'autres fichiers ou d'une
+     * version précédente. Chaque bloc reçu est vérifié contre son empreinte
+     * avant d'être stocké : un bloc mal nommé serait servi à tous les fichiers
+     * qui le partagent. Renvoie faux si l'envoi a été refusé faute de place.
+     */
+    private static boolean receiveDeduplicatedFile(DataInputStream dis, DataOutputStream dos, String fileName,
+            long fileSize, long token) throws IOException {
+        int chunkCount = dis.readInt();
+        if (chunkCount < 0 || chunkCount > fileSize / 1024 + 1) {
+            throw new IOException("Nombre de blocs invalide : " + chunkCount);
+        }
+        String[] chunkNames = new String[chunkCount];
+        int[] chunkSizes = new int[chunkCount];
+        long totalSize = 0;
+        byte[] digest = new byte[32];
+        for (int i = 0; i < chunkCount; i++) {
+            dis.readFully(digest);
+            chunkNames[i] = chunkName(digest);
+            chunkSizes[i] = dis.readInt();
+            if (chunkSizes[i] <= 0 || chunkSizes[i] > MAX_CHUNK_SIZE) {
+                throw new IOException("Taille de bloc invalide : " + chunkSizes[i]);
+            }
+            totalSize += chunkSizes[i];
+        }
+        if (totalSize != fileSize) {
+            throw new IOException("Les blocs annoncés ne couvrent pas le fichier " + fileName + ".");
+        }
+        if (!UPLOADS.enter()) {
+            dos.writeInt(-1); // À la place des blocs manquants
+            refuse(dos, UPLOADS, fileName);
+            return false;
+        }
+
+        // Blocs à recevoir : ceux que le catalogue ne connaît pas, une seule fois chacun
+        Map<String, MetadataCatalog.FragmentEntry> available = new HashMap<>();
+        List<Integer> missing = new ArrayList<>();
+        synchronized (CATALOG) {
+            Set<String> requested = new HashSet<>();
+            for (int i = 0; i < chunkCount; i++) {
+                MetadataCatalog.FragmentEntry chunk = CATALOG.getChunk(chunkNames[i]);
+                if (chunk != null) {
+                    available.put(chunkNames[i], chunk);
+                } else if (requested.add(chunkNames[i])) {
+                    missing.add(i);
+                }
+                PINNED_CHUNKS.merge(chunkNames[i], 1, Integer::sum);
+            }
+        }
+
+        IOException failure = null;
+        List<String> storing = new ArrayList<>();
+        try {
+            dos.writeInt(missing.size());
+            for (int index : missing) {
+                dos.writeInt(index);
+            }
+            dos.flush();
+
+            UploadPipeline pipeline = new UploadPipeline(TRANSFER_BUFFERS, UPLOAD_BUFFER_COUNT);
+            CheckedInputStream checkedIn = new CheckedInputStream(dis, new CRC32C());
+            DataInputStream in = new DataInputStream(checkedIn);
+            MessageDigest sha256 = sha256();
+            try {
+                for (int index : missing) {
+                    byte[] data = new byte[chunkSizes[index]];
+                    in.readFully(data);
+                    if (!chunkName(sha256.digest(data)).equals(chunkNames[index])) {
+                        throw new IOException("Empreinte invalide pour le bloc " + index + " de " + fileName + ".");
                     }
+                    String chunkName = chunkNames[index];
+                    prepareStore(chunkName);
+                    storing.add(chunkName);
+                    pipeline.sendFragment(new DataInputStream(new ByteArrayInputStream(data)), chunkName, data.length,
+                            HealthMonitor.preferHealthy(Placement.rank(chunkName, SUB_SERVERS), data.length),
+                            getReplicationFactor());
+                }
+                if (dis.readInt() != (int) checkedIn.getChecksum().getValue()) {
+                    throw new IOException("Somme de contrôle du fichier " + fileName + " invalide.");
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
 
-                    System.out.println("Fragment " + fileName + " répliqué à " + SUB_SERVERS.get(j).host + ":"
-                            + SUB_SERVERS.get(j).port); // Notification
-                } catch (IOException e) {
-                    System.err.println("Erreur de réplication sur le sous-serveur " + SUB_SERVERS.get(j).host);
+            Map<String, List<SubServerInfo>> storedReplicas = pipeline.finish();
+            for (int index : missing) {
+                List<SubServerInfo> replicas = storedReplicas.getOrDefault(chunkNames[index], List.of());
+                if (!replicas.isEmpty()) {
+                    available.put(chunkNames[index], new MetadataCatalog.FragmentEntry(chunkNames[index],
+                            chunkSizes[index], replicas));
+                }
+            }
+
+            List<MetadataCatalog.FragmentEntry> fragments = new ArrayList<>();
+            int storedCount = 0;
+            for (int i = 0; i < chunkCount; i++) {
+                MetadataCatalog.FragmentEntry chunk = available.get(chunkNames[i]);
+                if (chunk != null) {
+                    fragments.add(chunk);
+                    storedCount++;
+                }
+            }
+            if (failure == null && storedCount < chunkCount) {
+                failure = new IOException("Des blocs de " + fileName
+                        + " n'ont pu être stockés sur aucun sous-serveur.");
+            }
+
+            if (failure == null) {
+                List<MetadataCatalog.FragmentEntry> orphans = CATALOG.put(new MetadataCatalog.FileEntry(fileName,
+                        fileSize, fragments));
+                CATALOG.sync();
+                deleteOrphanFragments(orphans); // Une fois la nouvelle version sur disque
+                BlockCache.invalidate(fileName);
+                System.out.println("Fichier " + fileName + " dédupliqué : " + missing.size() + "/" + chunkCount
+                        + " blocs envoyés."); // Notification
+            } else {
+                // Les blocs déjà stockés restent référencés : un nouvel envoi ne les renverra pas
+                List<MetadataCatalog.FragmentEntry> orphans = CATALOG.putUpload(new MetadataCatalog.UploadEntry(
+                        fileName, fileSize, token, Compression.NONE, fragments));
+                CATALOG.sync();
+                deleteOrphanFragments(orphans);
+                System.err.println("Envoi de " + fileName + " interrompu : " + storedCount + "/" + chunkCount
+                        + " blocs gardés pour une reprise.");
+                throw failure;
+            }
+        } finally {
+            synchronized (CATALOG) {
+                for (String chunkName : chunkNames) {
+                    PINNED_CHUNKS.computeIfPresent(chunkName, (name, count) -> count > 1 ? count - 1 : null);
                 }
             }
+            for (String chunkName : storing) {
+                storeFinished(chunkName);
+            }
+            UPLOADS.leave();
         }
+        return true;
     }
 
-    private static File assembleFile(String fileName) throws IOException {
-        File assembledFile = new File(SERVER_DIRECTORY, fileName);
+    /**
+     * Reçoit un lot de petits fichiers, bout à bout dans l'ordre annoncé, et
+     * les range dans des conteneurs d'au plus block_size octets. Chaque
+     * conteneur est stocké et répliqué comme un fragment : un lot de milliers
+     * de fichiers ne coûte que quelques chaînes de réplication et quelques
+     * fichiers sur les sous-serveurs. Le catalogue garde, pour chaque fichier,
+     * son conteneur et sa position dedans. Le lot est enregistré en entier ou
+     * pas du tout ; un conteneur est effacé quand plus aucun fichier n'y est
+     * référencé.
+     */
+    private static void receiveBatch(DataInputStream dis, String[] fileNames, long[] fileSizes) throws IOException {
+        UploadPipeline pipeline = new UploadPipeline(TRANSFER_BUFFERS, UPLOAD_BUFFER_COUNT);
+        CheckedInputStream checkedIn = new CheckedInputStream(dis, new CRC32C());
+        DataInputStream in = new DataInputStream(checkedIn);
+        List<String> containerNames = new ArrayList<>();
+        List<Integer> containerStarts = new ArrayList<>(); // Premier fichier de chaque conteneur
+        IOException failure = null;
 
-        try (FileOutputStream fos = new FileOutputStream(assembledFile)) {
-            byte[] buffer = new byte[CHUNK_SIZE];
+        try {
+            int first = 0;
+            while (first < fileNames.length) {
+                int end = first;
+                long dataSize = 0;
+                while (end < fileNames.length && (end == first || dataSize + fileSizes[end] <= BLOCK_SIZE)) {
+                    dataSize += fileSizes[end++];
+                }
+                // Complété jusqu'à un morceau entier : la dernière plage lue d'un fichier peut déborder
+                long containerSize = (dataSize + Checksums.CHUNK_SIZE - 1) / Checksums.CHUNK_SIZE
+                        * Checksums.CHUNK_SIZE;
+                String containerName = UUID.randomUUID() + MetadataCatalog.CONTAINER_SUFFIX;
+                containerNames.add(containerName);
+                containerStarts.add(first);
+                pipeline.sendFragment(new DataInputStream(new PaddedInputStream(in, dataSize)), containerName,
+                        containerSize, HealthMonitor.preferHealthy(Placement.rank(containerName, SUB_SERVERS),
+                                containerSize), getReplicationFactor());
+                first = end;
+            }
+            if (dis.readInt() != (int) checkedIn.getChecksum().getValue()) {
+                throw new IOException("Somme de contrôle du lot invalide.");
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
 
-            for (int i = 0; i < SUB_SERVERS.size(); i++) {
-                boolean fragmentRetrieved = false;
+        Map<String, List<SubServerInfo>> storedReplicas = pipeline.finish();
+        List<MetadataCatalog.FragmentEntry> containers = new ArrayList<>();
+        for (String containerName : containerNames) {
+            List<SubServerInfo> replicas = storedReplicas.getOrDefault(containerName, List.of());
+            if (replicas.isEmpty()) {
+                if (failure == null) {
+                    failure = new IOException("Le conteneur " + containerName
+                            + " n'a pu être stocké sur aucun sous-serveur.");
+                }
+                continue;
+            } else if (replicas.size() < getReplicationFactor()) {
+                System.err.println("Conteneur " + containerName + " stocké sur " + replicas.size() + "/"
+                        + getReplicationFactor() + " sous-serveurs.");
+            }
+            containers.add(new MetadataCatalog.FragmentEntry(containerName, 0, replicas));
+        }
+        if (failure != null) {
+            // Aucun fichier ne référence les conteneurs déjà stockés : ils sont effacés
+            deleteOrphanFragments(containers);
+            throw failure;
+        }
 
-                for (int attempt = 0; attempt < 3; attempt++) {
-                    int serverIndex = (i + attempt) % SUB_SERVERS.size(); // Alterner les serveurs en cas d'erreur
-                    SubServerInfo subServer = SUB_SERVERS.get(serverIndex);
+        List<MetadataCatalog.FragmentEntry> orphans = new ArrayList<>();
+        for (int c = 0; c < containers.size(); c++) {
+            MetadataCatalog.FragmentEntry container = containers.get(c);
+            int end = c + 1 < containers.size() ? containerStarts.get(c + 1) : fileNames.length;
+            long offset = 0;
+            for (int i = containerStarts.get(c); i < end; i++) {
+                orphans.addAll(CATALOG.put(new MetadataCatalog.FileEntry(fileNames[i], fileSizes[i],
+                        List.of(new MetadataCatalog.FragmentEntry(container.name, fileSizes[i], fileSizes[i], offset,
+                                container.replicas)))));
+                BlockCache.invalidate(fileNames[i]);
+                offset += fileSizes[i];
+            }
+        }
+        CATALOG.sync(); // Une seule écriture sur disque pour tout le lot
+        // Les versions précédentes libèrent leurs blocs, leurs conteneurs et leurs fragments propres
+        deleteOrphanFragments(orphans);
+    }
 
-                    try (Socket subServerSocket = new Socket(subServer.host, subServer.port);
-                            DataOutputStream subDos = new DataOutputStream(subServerSocket.getOutputStream());
-                            DataInputStream subDis = new DataInputStream(subServerSocket.getInputStream())) {
+    private static String chunkName(byte[] digest) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : digest) {
+            name.append(String.format("%02x", b));
+        }
+        return name.append(MetadataCatalog.CHUNK_SUFFIX).toString();
+    }
 
-                        subDos.writeUTF("RETRIEVE");
-                        subDos.writeUTF(fileName + ".part" + i);
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
-                        long fragmentSize = subDis.readLong();
-                        long bytesReceived = 0;
-                        while (bytesReceived < fragmentSize) {
-                            int bytesRead = subDis.read(buffer, 0,
-                                    (int) Math.min(CHUNK_SIZE, fragmentSize - bytesReceived));
-                            fos.write(buffer, 0, bytesRead);
-                            bytesReceived += bytesRead;
-                        }
+    /**
+     * Efface des sous-serveurs les blocs dédupliqués et les conteneurs qui ne
+     * sont plus référencés, sauf les blocs qu'un envoi en cours compte
+     * réutiliser, ainsi que les fragments propres à un fichier que sa
+     * nouvelle version ne garde pas. Un sous-serveur hors ligne ou en erreur
+     * reçoit une pierre tombale et efface sa copie à son retour.
+     */
+    private static void deleteOrphanFragments(List<MetadataCatalog.FragmentEntry> orphans) {
+        List<MetadataCatalog.FragmentEntry> deleting = new ArrayList<>();
+        List<MetadataCatalog.FragmentEntry> replaced = new ArrayList<>();
+        synchronized (CATALOG) {
+            for (MetadataCatalog.FragmentEntry chunk : orphans) {
+                if (!MetadataCatalog.isShared(chunk.name)) {
+                    replaced.add(chunk);
+                } else if (!PINNED_CHUNKS.containsKey(chunk.name) && CATALOG.getChunk(chunk.name) == null
+                        && DELETING.add(chunk.name)) {
+                    deleting.add(chunk);
+                }
+            }
+        }
+        deleteReplacedFragments(replaced);
 
-                        fragmentRetrieved = true; // Fragment récupéré avec succès
-                        break;
-                    } catch (IOException e) {
-                        System.err.println("Erreur avec le sous-serveur " + subServer.host + " pour le fragment "
-                                + fileName + ".part" + i);
+        try {
+            for (MetadataCatalog.FragmentEntry chunk : deleting) {
+                BlockCache.invalidateFragment(chunk.name);
+                try {
+                    CATALOG.addTombstone(chunk.name, chunk.replicas);
+                } catch (IOException e) {
+                    System.err.println("Impossible d'enregistrer l'effacement du bloc " + chunk.name + " : "
+                            + e.getMessage());
+                }
+                for (SubServerInfo replica : chunk.replicas) {
+                    if (!applyDeletion(replica, chunk.name)) {
+                        System.err.println("Effacement du bloc " + chunk.name + " de " + replica + " reporté.");
+                    }
+                }
+            }
+        } finally {
+            synchronized (CATALOG) {
+                for (MetadataCatalog.FragmentEntry chunk : deleting) {
+                    DELETING.remove(chunk.name);
+                }
+                CATALOG.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Efface les répliques des fragments propres à un fichier que sa
+     * nouvelle version ne garde pas. Les pierres tombales sont enregistrées
+     * d'abord ; le fichier est marqué en cours d'effacement, pour qu'un
+     * nouvel envoi attende la fin avant de réécrire ces fragments. S'il
+     * l'est déjà, les effacements attendent la passe des pierres tombales.
+     */
+    private static void deleteReplacedFragments(List<MetadataCatalog.FragmentEntry> fragments) {
+        Map<String, List<MetadataCatalog.FragmentEntry>> byFile = new LinkedHashMap<>();
+        for (MetadataCatalog.FragmentEntry fragment : fragments) {
+            try {
+                CATALOG.addFragmentTombstone(fragment.name, fragment.replicas);
+            } catch (IOException e) {
+                System.err.println("Impossible d'enregistrer l'effacement du fragment " + fragment.name + " : "
+                        + e.getMessage());
+            }
+            byFile.computeIfAbsent(fileOf(fragment.name), name -> new ArrayList<>()).add(fragment);
+        }
+        for (Map.Entry<String, List<MetadataCatalog.FragmentEntry>> file : byFile.entrySet()) {
+            synchronized (CATALOG) {
+                if (!DELETING.add(file.getKey())) {
+                    continue;
+                }
+            }
+            try {
+                for (MetadataCatalog.FragmentEntry fragment : file.getValue()) {
+                    for (SubServerInfo replica : fragment.replicas) {
+                        if (!applyFragmentDeletion(replica, fragment.name)) {
+                            System.err.println("Effacement du fragment " + fragment.name + " de " + replica
+                                    + " reporté.");
+                        }
                     }
                 }
+            } finally {
+                synchronized (CATALOG) {
+                    DELETING.remove(file.getKey());
+                    CATALOG.notifyAll();
+                }
+            }
+        }
+    }
 
-                if (!fragmentRetrieved) {
-                    throw new IOException("Impossible de récupérer le fragment " + fileName + ".part" + i
-                            + " après plusieurs tentatives.");
+    /**
+     * Un fichier ou un bloc effacé au moment où un envoi le stocke à nouveau
+     * ne doit pas l'être après : l'envoi attend la fin de l'effacement en
+     * cours et retire les pierres tombales qui restent. Il attend aussi la
+     * fin d'une réparation, dont la copie écraserait la sienne. L'envoi est
+     * ensuite compté jusqu'à {@link #storeFinished(String)}.
+     */
+    private static void prepareStore(String name) throws IOException {
+        synchronized (CATALOG) {
+            while (DELETING.contains(name) || REPAIRING.contains(name)) {
+                try {
+                    CATALOG.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Envoi interrompu");
                 }
             }
+            CATALOG.clearTombstones(name);
+            STORING.merge(name, 1, Integer::sum);
         }
+    }
 
-        return assembledFile;
+    private static void storeFinished(String name) {
+        synchronized (CATALOG) {
+            STORING.computeIfPresent(name, (key, count) -> count > 1 ? count - 1 : null);
+        }
     }
 
-    private static void sendFileInChunks(File file, DataOutputStream dos) throws IOException {
-        try (FileInputStream fis = new FileInputStream(file)) {
-            dos.writeUTF("OK");
-            dos.writeLong(file.length());
-            byte[] buffer = new byte[CHUNK_SIZE];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                dos.write(buffer, 0, bytesRead);
+    private static String fragmentName(String fileName, int index, byte codec) {
+        return fileName + ".part" + index + (codec != Compression.NONE ? Compression.SUFFIX : "");
+    }
+
+    // Morceau d'une bande codée : le nom du bloc suivi du numéro du morceau
+    private static String shardName(String fileName, int index, int shard) {
+        return fileName + ".part" + index + ".s" + shard;
+    }
+
+    // Le fichier d'un fragment ordinaire ou d'un morceau, sans son numéro ni sa compression
+    private static String fileOf(String fragmentName) {
+        return fragmentName.substring(0, fragmentName.lastIndexOf(".part"));
+    }
+
+    private static int fragmentIndex(String fragmentName) {
+        if (fragmentName.endsWith(Compression.SUFFIX)) {
+            fragmentName = fragmentName.substring(0, fragmentName.length() - Compression.SUFFIX.length());
+        }
+        String index = fragmentName.substring(fragmentName.lastIndexOf(".part") + 5);
+        int shard = index.indexOf(".s");
+        return Integer.parseInt(shard == -1 ? index : index.substring(0, shard));
+    }
+
+    private static int getReplicationFactor() {
+        return Math.min(REPLICATION_FACTOR, SUB_SERVERS.size());
+    }
+
+    // Sous-serveurs qui portent au moins un fragment propre au fichier d'après le catalogue
+    private static Set<SubServerInfo> getFragmentHolders(MetadataCatalog.FileEntry entry) {
+        Set<SubServerInfo> holders = new HashSet<>();
+        if (entry != null) {
+            for (MetadataCatalog.FragmentEntry fragment : entry.fragments) {
+                if (!MetadataCatalog.isShared(fragment.name)) {
+                    holders.addAll(fragment.replicas);
+                }
+            }
+        }
+        return holders;
+    }
+
+    private static void assembleFile(MetadataCatalog.FileEntry entry, OutputStream out) throws IOException {
+        assembleFile(entry, 0, entry.size, out);
+    }
+
+    // Écrit les octets [from, to) du fichier : seuls les fragments qui les contiennent sont lus
+    private static void assembleFile(MetadataCatalog.FileEntry entry, long from, long to, OutputStream out)
+            throws IOException {
+        FragmentReader reader = new FragmentReader(CHUNK_SIZE, DOWNLOAD_RANGE_SIZE, DOWNLOAD_PARALLELISM);
+        if (entry.isErasureCoded()) {
+            addStripes(reader, entry, from, to);
+            reader.copyTo(out);
+            return;
+        }
+        long fragmentStart = 0;
+        for (MetadataCatalog.FragmentEntry fragment : entry.fragments) {
+            long fragmentEnd = fragmentStart + fragment.size;
+            if (fragmentEnd > from && fragmentStart < to) {
+                // Les répliques connues du catalogue d'abord, les autres sous-serveurs en secours
+                List<SubServerInfo> fallbacks = Placement.rank(fragment.name, SUB_SERVERS);
+                fallbacks.removeAll(fragment.replicas);
+                if (entry.codec != Compression.NONE) {
+                    // Décompressé ici : le client reçoit les octets d'origine
+                    reader.addCompressedFragment(fragment, Math.max(0, from - fragmentStart),
+                            Math.min(fragment.size, to - fragmentStart), fallbacks);
+                } else {
+                    reader.addFragment(fragment, Math.max(0, from - fragmentStart),
+                            Math.min(fragment.size, to - fragmentStart), fallbacks);
+                }
+            }
+            fragmentStart = fragmentEnd;
+        }
+        reader.copyTo(out);
+    }
+
+    // Les bandes d'un fichier codé qui contiennent les octets [from, to)
+    private static void addStripes(FragmentReader reader, MetadataCatalog.FileEntry entry, long from, long to) {
+        int width = entry.dataShards + entry.parityShards;
+        long blockStart = 0;
+        for (int first = 0; first + width <= entry.fragments.size(); first += width) {
+            List<MetadataCatalog.FragmentEntry> shards = entry.fragments.subList(first, first + width);
+            long blockSize = 0;
+            for (MetadataCatalog.FragmentEntry shard : shards) {
+                blockSize += shard.size;
+            }
+            long blockEnd = blockStart + blockSize;
+            if (blockEnd > from && blockStart < to) {
+                reader.addStripe(shards, entry.dataShards, Math.max(0, from - blockStart),
+                        Math.min(blockSize, to - blockStart));
+            }
+            blockStart = blockEnd;
+        }
+    }
+
+    /**
+     * Reconstruit le catalogue à partir du contenu des sous-serveurs, pour les
+     * fichiers envoyés avant que le catalogue n'existe.
+     */
+    private static void rebuildCatalog() throws IOException {
+        Map<String, List<SubServerInfo>> fragmentHolders = new HashMap<>();
+        for (SubServerInfo subServer : getActiveSubServers()) {
+            DataInputStream subDis = ControlChannel.to(subServer).call("LISTER");
+            int fileCount = subDis.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                fragmentHolders.computeIfAbsent(subDis.readUTF(), name -> new ArrayList<>()).add(subServer);
+            }
+        }
+
+        Set<String> fileNames = new HashSet<>();
+        for (String fragmentName : fragmentHolders.keySet()) {
+            if (MetadataCatalog.isChunk(fragmentName) || MetadataCatalog.isContainer(fragmentName)) {
+                continue; // Bloc dédupliqué ou conteneur, décrits seulement par le catalogue
+            } else if (fragmentName.matches(".*\\.part\\d+\\.s\\d+")) {
+                // Morceau d'une bande codée : le code n'est connu que du catalogue
+                System.err.println("Morceau codé ignoré : " + fragmentName);
+                continue;
+            } else if (fragmentName.endsWith(Compression.SUFFIX)) {
+                // La taille d'origine d'un fragment compressé n'est connue que du catalogue
+                System.err.println("Fragment compressé ignoré : " + fragmentName);
+                continue;
+            }
+            fileNames.add(fragmentName.replaceAll("\\.part\\d+$", ""));
+        }
+
+        for (String fileName : fileNames) {
+            List<MetadataCatalog.FragmentEntry> fragments = new ArrayList<>();
+            long fileSize = 0;
+            for (int i = 0; fragmentHolders.containsKey(fileName + ".part" + i); i++) {
+                String fragmentName = fileName + ".part" + i;
+                List<SubServerInfo> replicas = fragmentHolders.get(fragmentName);
+                long fragmentSize = getFragmentSize(fragmentName, replicas.get(0));
+                fragments.add(new MetadataCatalog.FragmentEntry(fragmentName, fragmentSize, replicas));
+                fileSize += fragmentSize;
+            }
+            if (!fragments.isEmpty()) {
+                CATALOG.put(new MetadataCatalog.FileEntry(fileName, fileSize, fragments));
             }
         }
+        CATALOG.sync();
+        System.out.println("Catalogue reconstruit : " + CATALOG.list().size() + " fichiers."); // Notification
+    }
+
+    private static long getFragmentSize(String fragmentName, SubServerInfo subServer) throws IOException {
+        return ControlChannel.to(subServer).call("SIZE", fragmentName).readLong();
+    }
+
+    // Bilan d'une passe de réparation
+    private static class RepairCounts {
+        int created;
+        int removed;
+        int unreachable;
     }
 
-    private static class SubServerInfo {
-        String host;
-        int port;
+    /**
+     * Les {@code dataSize} octets suivants du flux, puis des zéros jusqu'au
+     * morceau entier suivant. Le flux d'origine n'est pas lu au-delà.
+     */
+    private static class PaddedInputStream extends InputStream {
+        private final InputStream in;
+        private long dataRemaining;
+        private long paddingRemaining;
 
-        SubServerInfo(String host, int port) {
-            this.host = host;
-            this.port = port;
+        PaddedInputStream(InputStream in, long dataSize) {
+            this.in = in;
+            this.dataRemaining = dataSize;
+            this.paddingRemaining = (Checksums.CHUNK_SIZE - dataSize % Checksums.CHUNK_SIZE) % Checksums.CHUNK_SIZE;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            } else if (dataRemaining > 0) {
+                int bytesRead = in.read(buffer, offset, (int) Math.min(length, dataRemaining));
+                if (bytesRead > 0) {
+                    dataRemaining -= bytesRead;
+                }
+                return bytesRead;
+            } else if (paddingRemaining > 0) {
+                int n = (int) Math.min(length, paddingRemaining);
+                Arrays.fill(buffer, offset, offset + n, (byte) 0);
+                paddingRemaining -= n;
+                return n;
+            }
+            return -1;
         }
     }
 }
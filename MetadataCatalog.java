@@ -0,0 +1,805 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Catalogue des fichiers stockés sur les sous-serveurs.
+ *
+ * Pour chaque fichier, le catalogue garde sa taille et la liste de ses
+ * fragments avec leurs répliques. Il est tenu en mémoire pour répondre à
+ * LISTER et préparer RECEVOIR sans interroger les sous-serveurs, et chaque
+ * modification est ajoutée à un journal rejoué au démarrage.
+ *
+ * Les envois interrompus y sont aussi gardés, avec les fragments déjà
+ * stockés, pour qu'un nouvel envoi du même fichier reprenne après eux.
+ *
+ * Pour un fichier compressé, le catalogue garde aussi la compression et la
+ * taille stockée de chaque fragment ; ces champs sont ajoutés en fin
+ * d'enregistrement, et un enregistrement plus ancien, sans eux, décrit un
+ * fichier non compressé.
+ *
+ * Les fichiers envoyés en mode déduplication ont pour fragments des blocs
+ * nommés par l'empreinte SHA-256 de leur contenu ({@link #CHUNK_SUFFIX}),
+ * partagés entre fichiers. Le catalogue compte les références à chaque bloc
+ * (fichiers et envois interrompus) et signale ceux qui n'en ont plus.
+ *
+ * Les petits fichiers envoyés en lot sont rangés bout à bout dans des
+ * conteneurs ({@link #CONTAINER_SUFFIX}) : leur unique fragment est le
+ * conteneur, avec la position du fichier dedans. Les références aux
+ * conteneurs sont comptées comme celles des blocs dédupliqués. Les positions
+ * sont ajoutées en fin d'enregistrement, après les tailles stockées.
+ *
+ * Le catalogue garde aussi les pierres tombales : les effacements qu'un
+ * sous-serveur n'a pas encore confirmés, parce qu'il était hors ligne ou a
+ * répondu en erreur. Chacune désigne un fichier (commande DELETE) ou un
+ * fragment partagé (DELETE_FRAGMENT) et reste journalisée jusqu'à ce que le
+ * sous-serveur l'ait appliquée. Les fragments propres à un fichier qu'une
+ * nouvelle version ne garde pas (moins de blocs, autre compression, autres
+ * répliques) ont leurs propres pierres tombales, effacées fragment par
+ * fragment (DELETE_FRAGMENT).
+ *
+ * Un fichier codé par Reed-Solomon ({@link ReedSolomon}) a pour fragments
+ * les morceaux de chaque bloc, une seule copie chacun : d'abord ses morceaux
+ * de données, qui portent les octets du bloc dans l'ordre, puis ses morceaux
+ * de parité, dont la taille d'origine est nulle. Le nombre de morceaux de
+ * données et de parité est ajouté en fin d'enregistrement, après les
+ * positions.
+ *
+ * Chaque fichier enregistré reçoit une version, la date de son
+ * enregistrement rendue strictement croissante. Un téléchargement interrompu
+ * ne reprend que sur la même version. Elle est ajoutée en fin
+ * d'enregistrement, précédée de toutes les sections facultatives ; un
+ * enregistrement plus ancien, sans elle, a la version zéro. Les positions
+ * des trames des fragments compressés ({@link Compression}) la suivent.
+ *
+ * La réparation en arrière-plan change les répliques d'un fragment déjà
+ * enregistré : un enregistrement dédié les remplace dans le fichier qui le
+ * contient, ou dans tous ceux qui partagent un bloc ou un conteneur.
+ *
+ * Format du journal : une suite d'enregistrements [longueur][données][CRC32].
+ * Un enregistrement incomplet en fin de journal (arrêt brutal pendant une
+ * écriture) est ignoré et tronqué au chargement.
+ *
+ * Une modification n'est confirmée au client qu'après {@link #sync()}, qui
+ * force le journal sur disque ; les appels simultanés partagent la même
+ * écriture. Quand le journal contient surtout des entrées périmées, il est
+ * réécrit à partir du catalogue en mémoire, au démarrage comme en cours de
+ * route.
+ */
+public class MetadataCatalog {
+    private static final byte PUT = 'P';
+    private static final byte REMOVE = 'D';
+    private static final byte UPLOAD = 'U';
+    private static final byte TOMBSTONE = 'T';
+    private static final byte TOMBSTONE_CLEARED = 'X';
+    private static final byte REPLICAS = 'R';
+    private static final byte FRAGMENT_TOMBSTONE = 'F';
+    private static final byte FRAGMENT_TOMBSTONE_CLEARED = 'Y';
+    public static final String CHUNK_SUFFIX = ".sha256";
+    public static final String CONTAINER_SUFFIX = ".lot";
+
+    private final File journalFile;
+    private final boolean existedAtStartup;
+    private final Map<String, FileEntry> files = new ConcurrentHashMap<>();
+    private final Map<String, UploadEntry> uploads = new ConcurrentHashMap<>();
+    // Blocs dédupliqués et conteneurs : répliques connues et nombre de références
+    private final Map<String, FragmentEntry> chunks = new HashMap<>();
+    private final Map<String, Integer> chunkReferences = new HashMap<>();
+    // Effacements pas encore appliqués, par sous-serveur : noms de fichiers ou de fragments partagés
+    private final Map<SubServerInfo, Set<String>> tombstones = new HashMap<>();
+    // Fragments propres à un fichier que sa version actuelle ne référence plus, par sous-serveur
+    private final Map<SubServerInfo, Set<String>> fragmentTombstones = new HashMap<>();
+    private long lastVersion; // Dernière version attribuée à un fichier
+    private FileOutputStream journalOut;
+    private DataOutputStream journal;
+    private int journalRecords; // Enregistrements du fichier de journal actuel
+    private volatile long appendedRecords; // Enregistrements ajoutés depuis le démarrage
+    private long syncedRecords; // Dont ceux déjà forcés sur disque (accès sous syncLock)
+    private final Object syncLock = new Object();
+
+    public MetadataCatalog(File journalFile) throws IOException {
+        this.journalFile = journalFile;
+        this.existedAtStartup = journalFile.exists();
+        File parent = journalFile.getAbsoluteFile().getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        load();
+        for (FileEntry entry : files.values()) {
+            reference(entry);
+        }
+        for (UploadEntry upload : uploads.values()) {
+            reference(upload);
+        }
+        if (needsCompaction()) {
+            compact();
+        } else {
+            openJournal();
+        }
+    }
+
+    /** Vrai si le journal existait déjà au démarrage. */
+    public boolean existedAtStartup() {
+        return existedAtStartup;
+    }
+
+    public FileEntry get(String fileName) {
+        return files.get(fileName);
+    }
+
+    public Collection<FileEntry> list() {
+        return files.values();
+    }
+
+    /** L'envoi interrompu de ce fichier, s'il y en a un. */
+    public UploadEntry getUpload(String fileName) {
+        return uploads.get(fileName);
+    }
+
+    /** Un bloc dédupliqué déjà stocké, ou null s'il n'est référencé par aucun fichier. */
+    public synchronized FragmentEntry getChunk(String chunkName) {
+        return chunks.get(chunkName);
+    }
+
+    public static boolean isChunk(String fragmentName) {
+        return fragmentName.endsWith(CHUNK_SUFFIX);
+    }
+
+    public static boolean isContainer(String fragmentName) {
+        return fragmentName.endsWith(CONTAINER_SUFFIX);
+    }
+
+    // Fragment partagé entre plusieurs fichiers, effacé quand plus aucun ne le référence
+    public static boolean isShared(String fragmentName) {
+        return isChunk(fragmentName) || isContainer(fragmentName);
+    }
+
+    /**
+     * Enregistre le fichier, à la place de son ancienne version et de son
+     * éventuel envoi interrompu. Renvoie les fragments à effacer des
+     * sous-serveurs : les blocs dédupliqués et les conteneurs qui ne sont
+     * plus référencés, et les fragments propres aux versions remplacées que
+     * le fichier ne garde pas, avec les seules répliques abandonnées.
+     */
+    public synchronized List<FragmentEntry> put(FileEntry entry) throws IOException {
+        // Deux enregistrements dans la même milliseconde ont quand même des versions différentes
+        lastVersion = Math.max(System.currentTimeMillis(), lastVersion + 1);
+        entry = entry.withVersion(lastVersion);
+        append(encode(PUT, entry));
+        reference(entry);
+        List<FragmentEntry> orphans = new ArrayList<>();
+        FileEntry previous = files.put(entry.name, entry);
+        UploadEntry upload = uploads.remove(entry.name);
+        release(previous, orphans);
+        release(upload, orphans);
+        replaced(entry, orphans, previous, upload);
+        return orphans;
+    }
+
+    /**
+     * Enregistre les fragments déjà stockés d'un envoi interrompu. Renvoie,
+     * comme {@link #put(FileEntry)}, les fragments de l'envoi précédent qui
+     * ne sont plus référencés.
+     */
+    public synchronized List<FragmentEntry> putUpload(UploadEntry upload) throws IOException {
+        append(encode(UPLOAD, upload));
+        reference(upload);
+        List<FragmentEntry> orphans = new ArrayList<>();
+        UploadEntry previous = uploads.put(upload.name, upload);
+        release(previous, orphans);
+        replaced(upload, orphans, previous);
+        return orphans;
+    }
+
+    /**
+     * Oublie le fichier et son éventuel envoi interrompu. Les blocs
+     * dédupliqués qui ne sont plus référencés sont ajoutés à {@code orphans}.
+     */
+    public synchronized FileEntry remove(String fileName, List<FragmentEntry> orphans) throws IOException {
+        FileEntry entry = files.get(fileName);
+        if (entry != null || uploads.containsKey(fileName)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeByte(REMOVE);
+            record.writeUTF(fileName);
+            append(bytes.toByteArray());
+            release(files.remove(fileName), orphans);
+            release(uploads.remove(fileName), orphans);
+        }
+        return entry;
+    }
+
+    /**
+     * Remplace les répliques d'un fragment du fichier, ou d'un fragment
+     * partagé dans tous les fichiers qui le référencent.
+     */
+    public synchronized void updateReplicas(String fileName, String fragmentName, List<SubServerInfo> replicas)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(REPLICAS);
+        record.writeUTF(fileName);
+        record.writeUTF(fragmentName);
+        SubServerInfo.writeList(record, replicas);
+        append(bytes.toByteArray());
+        applyReplicas(fileName, fragmentName, replicas);
+    }
+
+    /**
+     * Enregistre qu'un effacement de {@code target}, un nom de fichier ou de
+     * fragment partagé, reste à appliquer sur ces sous-serveurs.
+     */
+    public synchronized void addTombstone(String target, List<SubServerInfo> subServers) throws IOException {
+        if (!subServers.isEmpty()) {
+            append(encodeTombstone(TOMBSTONE, target, subServers));
+            applyTombstone(TOMBSTONE, target, subServers);
+        }
+    }
+
+    /** L'effacement de {@code target} a été appliqué sur ces sous-serveurs. */
+    public synchronized void clearTombstone(String target, List<SubServerInfo> subServers) throws IOException {
+        List<SubServerInfo> holders = new ArrayList<>();
+        for (SubServerInfo subServer : subServers) {
+            if (hasTombstone(subServer, target)) {
+                holders.add(subServer);
+            }
+        }
+        if (!holders.isEmpty()) {
+            append(encodeTombstone(TOMBSTONE_CLEARED, target, holders));
+            applyTombstone(TOMBSTONE_CLEARED, target, holders);
+        }
+    }
+
+    /**
+     * Oublie les effacements de {@code target} sur tous les sous-serveurs,
+     * avant qu'un nouvel envoi ne le stocke à nouveau.
+     */
+    public synchronized void clearTombstones(String target) throws IOException {
+        clearTombstone(target, new ArrayList<>(tombstones.keySet()));
+    }
+
+    public synchronized boolean hasTombstone(SubServerInfo subServer, String target) {
+        Set<String> targets = tombstones.get(subServer);
+        return targets != null && targets.contains(target);
+    }
+
+    /** Les effacements qui restent à appliquer sur ce sous-serveur. */
+    public synchronized List<String> getTombstones(SubServerInfo subServer) {
+        return new ArrayList<>(tombstones.getOrDefault(subServer, Set.of()));
+    }
+
+    /**
+     * Enregistre qu'un fragment propre à un fichier, que le fichier ne
+     * référence plus, reste à effacer de ces sous-serveurs.
+     */
+    public synchronized void addFragmentTombstone(String fragmentName, List<SubServerInfo> subServers)
+            throws IOException {
+        if (!subServers.isEmpty()) {
+            append(encodeTombstone(FRAGMENT_TOMBSTONE, fragmentName, subServers));
+            applyTombstone(FRAGMENT_TOMBSTONE, fragmentName, subServers);
+        }
+    }
+
+    /** L'effacement de ce fragment propre à un fichier a été appliqué sur ces sous-serveurs. */
+    public synchronized void clearFragmentTombstone(String fragmentName, List<SubServerInfo> subServers)
+            throws IOException {
+        List<SubServerInfo> holders = new ArrayList<>();
+        for (SubServerInfo subServer : subServers) {
+            if (hasFragmentTombstone(subServer, fragmentName)) {
+                holders.add(subServer);
+            }
+        }
+        if (!holders.isEmpty()) {
+            append(encodeTombstone(FRAGMENT_TOMBSTONE_CLEARED, fragmentName, holders));
+            applyTombstone(FRAGMENT_TOMBSTONE_CLEARED, fragmentName, holders);
+        }
+    }
+
+    public synchronized boolean hasFragmentTombstone(SubServerInfo subServer, String fragmentName) {
+        Set<String> fragmentNames = fragmentTombstones.get(subServer);
+        return fragmentNames != null && fragmentNames.contains(fragmentName);
+    }
+
+    /** Les fragments propres à un fichier qui restent à effacer de ce sous-serveur. */
+    public synchronized List<String> getFragmentTombstones(SubServerInfo subServer) {
+        return new ArrayList<>(fragmentTombstones.getOrDefault(subServer, Set.of()));
+    }
+
+    private int tombstoneCount() {
+        int count = 0;
+        for (Set<String> targets : tombstones.values()) {
+            count += targets.size();
+        }
+        for (Set<String> fragmentNames : fragmentTombstones.values()) {
+            count += fragmentNames.size();
+        }
+        return count;
+    }
+
+    private void applyTombstone(byte op, String target, List<SubServerInfo> subServers) {
+        boolean fragment = op == FRAGMENT_TOMBSTONE || op == FRAGMENT_TOMBSTONE_CLEARED;
+        Map<SubServerInfo, Set<String>> targetsBySubServer = fragment ? fragmentTombstones : tombstones;
+        for (SubServerInfo subServer : subServers) {
+            if (op == TOMBSTONE || op == FRAGMENT_TOMBSTONE) {
+                targetsBySubServer.computeIfAbsent(subServer, s -> new HashSet<>()).add(target);
+            } else {
+                Set<String> targets = targetsBySubServer.get(subServer);
+                if (targets != null && targets.remove(target) && targets.isEmpty()) {
+                    targetsBySubServer.remove(subServer);
+                }
+            }
+        }
+    }
+
+    private void applyReplicas(String fileName, String fragmentName, List<SubServerInfo> replicas) {
+        if (isShared(fragmentName)) {
+            // Les fichiers qui partagent le fragment ne sont pas indexés : parcours complet, rare
+            files.replaceAll((name, entry) -> entry.withReplicas(fragmentName, replicas));
+            uploads.replaceAll((name, upload) -> upload.withReplicas(fragmentName, replicas));
+            chunks.computeIfPresent(fragmentName, (name, chunk) -> chunk.withReplicas(replicas));
+        } else {
+            files.computeIfPresent(fileName, (name, entry) -> entry.withReplicas(fragmentName, replicas));
+            uploads.computeIfPresent(fileName, (name, upload) -> upload.withReplicas(fragmentName, replicas));
+        }
+    }
+
+    private void reference(FileEntry entry) {
+        for (FragmentEntry fragment : entry.fragments) {
+            if (isShared(fragment.name)) {
+                chunks.put(fragment.name, fragment); // Les répliques les plus récentes
+                chunkReferences.merge(fragment.name, 1, Integer::sum);
+            }
+        }
+    }
+
+    private void release(FileEntry entry, List<FragmentEntry> orphans) {
+        if (entry == null) {
+            return;
+        }
+        for (FragmentEntry fragment : entry.fragments) {
+            if (isShared(fragment.name) && chunkReferences.merge(fragment.name, -1, Integer::sum) == 0) {
+                chunkReferences.remove(fragment.name);
+                orphans.add(chunks.remove(fragment.name));
+            }
+        }
+    }
+
+    /**
+     * Ajoute à {@code orphans} les répliques des fragments propres aux
+     * versions remplacées que {@code entry} ne garde pas. Les répliques
+     * qu'elle stocke à nouveau perdent leur pierre tombale : le fragment
+     * réécrit ne doit plus être effacé.
+     */
+    private void replaced(FileEntry entry, List<FragmentEntry> orphans, FileEntry... previous) throws IOException {
+        Map<String, Set<SubServerInfo>> kept = new HashMap<>();
+        for (FragmentEntry fragment : entry.fragments) {
+            if (!isShared(fragment.name)) {
+                kept.put(fragment.name, new HashSet<>(fragment.replicas));
+                clearFragmentTombstone(fragment.name, fragment.replicas);
+            }
+        }
+        Map<String, FragmentEntry> dropped = new LinkedHashMap<>();
+        for (FileEntry replacedEntry : previous) {
+            if (replacedEntry == null) {
+                continue;
+            }
+            for (FragmentEntry fragment : replacedEntry.fragments) {
+                if (isShared(fragment.name)) {
+                    continue;
+                }
+                Set<SubServerInfo> replicas = new LinkedHashSet<>(fragment.replicas);
+                replicas.removeAll(kept.getOrDefault(fragment.name, Set.of()));
+                FragmentEntry known = dropped.get(fragment.name);
+                if (known != null) {
+                    replicas.addAll(known.replicas); // Aussi dans l'envoi interrompu remplacé
+                }
+                if (!replicas.isEmpty()) {
+                    dropped.put(fragment.name, fragment.withReplicas(new ArrayList<>(replicas)));
+                }
+            }
+        }
+        orphans.addAll(dropped.values());
+    }
+
+    /**
+     * Force sur disque les enregistrements ajoutés jusqu'ici. Appelé hors du
+     * verrou du catalogue, avant de répondre au client : pendant l'écriture,
+     * d'autres modifications sont journalisées, puis un seul appel les force
+     * toutes. Compacte d'abord le journal s'il contient surtout des entrées
+     * périmées.
+     */
+    public void sync() throws IOException {
+        synchronized (this) {
+            if (needsCompaction()) {
+                compact(); // Le journal réécrit est déjà sur disque
+                return;
+            }
+        }
+        synchronized (syncLock) {
+            long reached = appendedRecords;
+            if (syncedRecords >= reached) {
+                return; // Forcé par un appel simultané
+            }
+            journalOut.getChannel().force(false);
+            syncedRecords = reached;
+        }
+    }
+
+    private void append(byte[] record) throws IOException {
+        writeRecord(journal, record);
+        journal.flush();
+        journalRecords++;
+        appendedRecords++; // Sous le verrou du catalogue
+    }
+
+    // Réécrire le journal quand il contient surtout des entrées périmées (répliques réparées, envois remplacés)
+    private boolean needsCompaction() {
+        return journalRecords > 2 * (files.size() + uploads.size() + tombstoneCount()) + 100;
+    }
+
+    private void openJournal() throws IOException {
+        journalOut = new FileOutputStream(journalFile, true);
+        journal = new DataOutputStream(new BufferedOutputStream(journalOut));
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        out.writeInt(record.length);
+        out.write(record);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private void load() throws IOException {
+        if (!journalFile.exists()) {
+            return;
+        }
+
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || length > journalFile.length() - validLength - 8) {
+                        break; // Longueur invalide : fin du journal exploitable
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                    CRC32 crc = new CRC32();
+                    crc.update(record);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                apply(record);
+                journalRecords++;
+                validLength += 4 + record.length + 4;
+            }
+        }
+
+        if (validLength < journalFile.length()) {
+            System.err.println("Journal du catalogue tronqué à " + validLength + " octets.");
+            try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+        System.out.println("Catalogue chargé : " + files.size() + " fichiers."); // Notification
+    }
+
+    private void apply(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte op = in.readByte();
+        if (op == PUT) {
+            FileEntry entry = decode(in);
+            lastVersion = Math.max(lastVersion, entry.version);
+            files.put(entry.name, entry);
+            uploads.remove(entry.name);
+        } else if (op == UPLOAD) {
+            long token = in.readLong();
+            FileEntry entry = decode(in);
+            uploads.put(entry.name, new UploadEntry(entry.name, entry.size, token, entry.codec, entry.dataShards,
+                    entry.parityShards, entry.fragments));
+        } else if (op == REMOVE) {
+            String fileName = in.readUTF();
+            files.remove(fileName);
+            uploads.remove(fileName);
+        } else if (op == TOMBSTONE || op == TOMBSTONE_CLEARED || op == FRAGMENT_TOMBSTONE
+                || op == FRAGMENT_TOMBSTONE_CLEARED) {
+            applyTombstone(op, in.readUTF(), SubServerInfo.readList(in));
+        } else if (op == REPLICAS) {
+            applyReplicas(in.readUTF(), in.readUTF(), SubServerInfo.readList(in));
+        }
+    }
+
+    // Sous le verrou du catalogue : aucune modification ne peut se glisser entre l'état écrit et le journal
+    private void compact() throws IOException {
+        File tempFile = new File(journalFile.getPath() + ".tmp");
+        FileOutputStream tempOut = new FileOutputStream(tempFile);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tempOut))) {
+            for (FileEntry entry : files.values()) {
+                writeRecord(out, encode(PUT, entry));
+            }
+            for (UploadEntry upload : uploads.values()) {
+                writeRecord(out, encode(UPLOAD, upload));
+            }
+            for (Map.Entry<SubServerInfo, Set<String>> entry : tombstones.entrySet()) {
+                for (String target : entry.getValue()) {
+                    writeRecord(out, encodeTombstone(TOMBSTONE, target, List.of(entry.getKey())));
+                }
+            }
+            for (Map.Entry<SubServerInfo, Set<String>> entry : fragmentTombstones.entrySet()) {
+                for (String fragmentName : entry.getValue()) {
+                    writeRecord(out, encodeTombstone(FRAGMENT_TOMBSTONE, fragmentName, List.of(entry.getKey())));
+                }
+            }
+            out.flush();
+            tempOut.getChannel().force(false);
+        }
+        synchronized (syncLock) {
+            Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory();
+            if (journalOut != null) {
+                journalOut.close();
+            }
+            openJournal();
+            journalRecords = files.size() + uploads.size() + tombstoneCount();
+            syncedRecords = appendedRecords; // Tout l'état est dans le journal réécrit
+        }
+    }
+
+    // Le renommage du journal réécrit ne survit à une coupure qu'une fois le répertoire forcé
+    private void syncDirectory() {
+        try (FileChannel directory = FileChannel.open(journalFile.getAbsoluteFile().getParentFile().toPath())) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Certains systèmes ne permettent pas d'ouvrir un répertoire : le renommage reste atomique
+        }
+    }
+
+    private static byte[] encodeTombstone(byte op, String target, List<SubServerInfo> subServers)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(op);
+        out.writeUTF(target);
+        SubServerInfo.writeList(out, subServers);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encode(byte op, FileEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(op);
+        if (op == UPLOAD) {
+            out.writeLong(((UploadEntry) entry).token);
+        }
+        out.writeUTF(entry.name);
+        out.writeLong(entry.size);
+        out.writeInt(entry.fragments.size());
+        for (FragmentEntry fragment : entry.fragments) {
+            out.writeUTF(fragment.name);
+            out.writeLong(fragment.size);
+            SubServerInfo.writeList(out, fragment.replicas);
+        }
+        boolean packed = false;
+        for (FragmentEntry fragment : entry.fragments) {
+            packed |= fragment.offset != 0;
+        }
+        boolean coded = entry.isErasureCoded();
+        boolean indexed = false;
+        for (FragmentEntry fragment : entry.fragments) {
+            indexed |= fragment.frames != null;
+        }
+        // Toutes les sections précèdent la version, qui précède les positions des trames
+        boolean versioned = entry.version != 0 || indexed;
+        if (entry.codec != Compression.NONE || packed || coded || versioned) {
+            out.writeByte(entry.codec);
+            for (FragmentEntry fragment : entry.fragments) {
+                out.writeLong(fragment.storedSize);
+            }
+        }
+        if (packed || coded || versioned) {
+            for (FragmentEntry fragment : entry.fragments) {
+                out.writeLong(fragment.offset);
+            }
+        }
+        if (coded || versioned) {
+            out.writeInt(entry.dataShards);
+            out.writeInt(entry.parityShards);
+        }
+        if (versioned) {
+            out.writeLong(entry.version);
+        }
+        if (indexed) {
+            for (FragmentEntry fragment : entry.fragments) {
+                int[] frames = fragment.frames != null ? fragment.frames : new int[0];
+                out.writeInt(frames.length);
+                for (int frame : frames) {
+                    out.writeInt(frame);
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static FileEntry decode(DataInputStream in) throws IOException {
+        String name = in.readUTF();
+        long size = in.readLong();
+        int fragmentCount = in.readInt();
+        List<FragmentEntry> fragments = new ArrayList<>(fragmentCount);
+        for (int i = 0; i < fragmentCount; i++) {
+            fragments.add(new FragmentEntry(in.readUTF(), in.readLong(), SubServerInfo.readList(in)));
+        }
+        if (in.available() == 0) {
+            return new FileEntry(name, size, fragments);
+        }
+        byte codec = in.readByte();
+        List<FragmentEntry> storedFragments = new ArrayList<>(fragmentCount);
+        for (FragmentEntry fragment : fragments) {
+            storedFragments.add(new FragmentEntry(fragment.name, fragment.size, in.readLong(), fragment.replicas));
+        }
+        if (in.available() == 0) {
+            return new FileEntry(name, size, codec, storedFragments);
+        }
+        List<FragmentEntry> packedFragments = new ArrayList<>(fragmentCount);
+        for (FragmentEntry fragment : storedFragments) {
+            packedFragments.add(new FragmentEntry(fragment.name, fragment.size, fragment.storedSize, in.readLong(),
+                    fragment.replicas));
+        }
+        if (in.available() == 0) {
+            return new FileEntry(name, size, codec, packedFragments);
+        }
+        int dataShards = in.readInt();
+        int parityShards = in.readInt();
+        long version = in.available() > 0 ? in.readLong() : 0;
+        if (in.available() == 0) {
+            return new FileEntry(name, size, codec, dataShards, parityShards, version, packedFragments);
+        }
+        List<FragmentEntry> indexedFragments = new ArrayList<>(fragmentCount);
+        for (FragmentEntry fragment : packedFragments) {
+            int[] frames = new int[in.readInt()];
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = in.readInt();
+            }
+            indexedFragments.add(fragment.withFrames(frames.length > 0 ? frames : null));
+        }
+        return new FileEntry(name, size, codec, dataShards, parityShards, version, indexedFragments);
+    }
+
+    public static class FileEntry {
+        final String name;
+        final long size;
+        final byte codec; // Compression des fragments, voir Compression
+        final int dataShards; // Morceaux de données par bloc d'un fichier codé, zéro s'il est répliqué
+        final int parityShards;
+        final long version; // Version enregistrée par le catalogue, zéro si inconnue
+        final List<FragmentEntry> fragments;
+
+        FileEntry(String name, long size, List<FragmentEntry> fragments) {
+            this(name, size, Compression.NONE, fragments);
+        }
+
+        FileEntry(String name, long size, byte codec, List<FragmentEntry> fragments) {
+            this(name, size, codec, 0, 0, fragments);
+        }
+
+        FileEntry(String name, long size, byte codec, int dataShards, int parityShards,
+                List<FragmentEntry> fragments) {
+            this(name, size, codec, dataShards, parityShards, 0, fragments);
+        }
+
+        FileEntry(String name, long size, byte codec, int dataShards, int parityShards, long version,
+                List<FragmentEntry> fragments) {
+            this.name = name;
+            this.size = size;
+            this.codec = codec;
+            this.dataShards = dataShards;
+            this.parityShards = parityShards;
+            this.version = version;
+            this.fragments = fragments;
+        }
+
+        boolean isErasureCoded() {
+            return dataShards > 0;
+        }
+
+        // Le même fichier avec d'autres répliques pour ce fragment, ou lui-même s'il ne le contient pas
+        FileEntry withReplicas(String fragmentName, List<SubServerInfo> replicas) {
+            List<FragmentEntry> updated = null;
+            for (int i = 0; i < fragments.size(); i++) {
+                if (fragments.get(i).name.equals(fragmentName)) {
+                    if (updated == null) {
+                        updated = new ArrayList<>(fragments);
+                    }
+                    updated.set(i, fragments.get(i).withReplicas(replicas));
+                }
+            }
+            return updated == null ? this : withFragments(updated);
+        }
+
+        FileEntry withFragments(List<FragmentEntry> fragments) {
+            return new FileEntry(name, size, codec, dataShards, parityShards, version, fragments);
+        }
+
+        FileEntry withVersion(long version) {
+            return new FileEntry(name, size, codec, dataShards, parityShards, version, fragments);
+        }
+    }
+
+    /**
+     * Envoi interrompu : seuls les fragments déjà stockés sont listés. Le
+     * jeton identifie la version du fichier du client (sa date de
+     * modification) ; un envoi ne reprend que sur la même version, avec la
+     * même compression et le même code.
+     */
+    public static class UploadEntry extends FileEntry {
+        final long token;
+
+        UploadEntry(String name, long size, long token, byte codec, List<FragmentEntry> fragments) {
+            this(name, size, token, codec, 0, 0, fragments);
+        }
+
+        UploadEntry(String name, long size, long token, byte codec, int dataShards, int parityShards,
+                List<FragmentEntry> fragments) {
+            super(name, size, codec, dataShards, parityShards, fragments);
+            this.token = token;
+        }
+
+        @Override
+        UploadEntry withReplicas(String fragmentName, List<SubServerInfo> replicas) {
+            return (UploadEntry) super.withReplicas(fragmentName, replicas);
+        }
+
+        @Override
+        UploadEntry withFragments(List<FragmentEntry> fragments) {
+            return new UploadEntry(name, size, token, codec, dataShards, parityShards, fragments);
+        }
+    }
+
+    public static class FragmentEntry {
+        final String name;
+        final long size; // Octets du fichier d'origine
+        final long storedSize; // Octets sur les sous-serveurs, moins que size si le fragment est compressé
+        final long offset; // Position des octets dans un conteneur, zéro pour un fragment ordinaire
+        final int[] frames; // Positions des trames d'un fragment compressé (voir Compression), null si inconnues
+        final List<SubServerInfo> replicas;
+
+        FragmentEntry(String name, long size, List<SubServerInfo> replicas) {
+            this(name, size, size, replicas);
+        }
+
+        FragmentEntry(String name, long size, long storedSize, List<SubServerInfo> replicas) {
+            this(name, size, storedSize, 0, replicas);
+        }
+
+        FragmentEntry(String name, long size, long storedSize, long offset, List<SubServerInfo> replicas) {
+            this(name, size, storedSize, offset, null, replicas);
+        }
+
+        FragmentEntry(String name, long size, long storedSize, long offset, int[] frames,
+                List<SubServerInfo> replicas) {
+            this.name = name;
+            this.size = size;
+            this.storedSize = storedSize;
+            this.offset = offset;
+            this.frames = frames;
+            this.replicas = replicas;
+        }
+
+        FragmentEntry withReplicas(List<SubServerInfo> replicas) {
+            return new FragmentEntry(name, size, storedSize, offset, frames, replicas);
+        }
+
+        FragmentEntry withFrames(int[] frames) {
+            return new FragmentEntry(name, size, storedSize, offset, frames, replicas);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Mesures d'un serveur (principal ou sous-serveur) : compteurs et latences
+ * des commandes, octets échangés, fragments en cours.
+ *
+ * Les compteurs sont des {@link LongAdder} : les threads de transfert les
+ * mettent à jour sans se bloquer les uns les autres. Les latences sont
+ * rangées dans des seaux de puissances de deux (en microsecondes), ce qui
+ * suffit pour estimer p50 et p99 sans garder chaque mesure. Elles sont lues
+ * par la commande {@code STATS} et par JMX ({@link MetricsMXBean}).
+ *
+ * Les messages par fragment passent par {@link #trace(String)} : seule une
+ * partie d'entre eux, fixée par {@code trace.sample_rate}, est écrite sur la
+ * console.
+ */
+public class Metrics {
+    private static final double TRACE_SAMPLE_RATE = Double.parseDouble(ConfigLoader.get("trace.sample_rate", "0"));
+
+    // Triés par nom pour un rapport stable
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentSkipListMap<>();
+    private static final Map<String, Timer> TIMERS = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    public static void add(String counter, long delta) {
+        COUNTERS.computeIfAbsent(counter, name -> new LongAdder()).add(delta);
+    }
+
+    public static void increment(String counter) {
+        add(counter, 1);
+    }
+
+    public static void decrement(String counter) {
+        add(counter, -1);
+    }
+
+    /** Compteur propre à un sous-serveur, par exemple {@code sous-serveur.127.0.0.1:12346.octets_envoyes}. */
+    public static void add(SubServerInfo subServer, String counter, long delta) {
+        add("sous-serveur." + subServer + "." + counter, delta);
+    }
+
+    public static Timer timer(String name) {
+        return TIMERS.computeIfAbsent(name, Timer::new);
+    }
+
+    /** Écrit le message pour une partie seulement des appels, selon {@code trace.sample_rate}. */
+    public static void trace(String message) {
+        if (TRACE_SAMPLE_RATE > 0 && ThreadLocalRandom.current().nextDouble() < TRACE_SAMPLE_RATE) {
+            System.out.println(message);
+        }
+    }
+
+    /** Toutes les valeurs, par nom : compteurs, puis nombre, échecs et latences de chaque commande. */
+    public static Map<String, Long> values() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Map.Entry<String, LongAdder> counter : COUNTERS.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().sum());
+        }
+        for (Timer timer : TIMERS.values()) {
+            values.put(timer.name + ".nombre", timer.count.sum());
+            values.put(timer.name + ".echecs", timer.errors.sum());
+            values.put(timer.name + ".moyenne_us", timer.meanMicros());
+            values.put(timer.name + ".p50_us", timer.percentileMicros(0.50));
+            values.put(timer.name + ".p99_us", timer.percentileMicros(0.99));
+        }
+        return values;
+    }
+
+    /** Le rapport renvoyé par la commande STATS, une ligne par compteur ou par commande. */
+    public static List<String> report() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, LongAdder> counter : COUNTERS.entrySet()) {
+            lines.add(counter.getKey() + " = " + counter.getValue().sum());
+        }
+        for (Timer timer : TIMERS.values()) {
+            lines.add(timer.name + " : " + timer.count.sum() + " (" + timer.errors.sum() + " échecs), moyenne "
+                    + formatMicros(timer.meanMicros()) + ", p50 " + formatMicros(timer.percentileMicros(0.50))
+                    + ", p99 " + formatMicros(timer.percentileMicros(0.99)));
+        }
+        return lines;
+    }
+
+    /** Publie les mesures sous JMX ({@code file_tranfert:type=Metrics,name=<process>}). */
+    public static void registerMBean(String process) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMXBean.Impl(),
+                    new ObjectName("file_tranfert:type=Metrics,name=" + process));
+        } catch (JMException e) {
+            System.err.println("Mesures non publiées sous JMX : " + e.getMessage());
+        }
+    }
+
+    /** Flux qui compte les octets lus dans {@code counter}. */
+    public static class CountingInputStream extends FilterInputStream {
+        private final LongAdder bytes;
+
+        public CountingInputStream(InputStream in, String counter) {
+            super(in);
+            this.bytes = COUNTERS.computeIfAbsent(counter, name -> new LongAdder());
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                bytes.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+            int n = in.read(data, offset, length);
+            if (n > 0) {
+                bytes.add(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            bytes.add(skipped);
+            return skipped;
+        }
+    }
+
+    /** Flux qui compte les octets écrits dans {@code counter}. */
+    public static class CountingOutputStream extends FilterOutputStream {
+        private final LongAdder bytes;
+
+        public CountingOutputStream(OutputStream out, String counter) {
+            super(out);
+            this.bytes = COUNTERS.computeIfAbsent(counter, name -> new LongAdder());
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytes.increment();
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            out.write(data, offset, length);
+            bytes.add(length);
+        }
+    }
+
+    private static String formatMicros(long micros) {
+        return micros < 1000 ? micros + " µs" : String.format(Locale.ROOT, "%.2f ms", micros / 1000.0);
+    }
+
+    /** Nombre, échecs et latences d'une commande. */
+    public static class Timer {
+        private static final int BUCKETS = 40; // Jusqu'à 2^39 µs, soit plus de six jours
+
+        private final String name;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        // Le seau i compte les durées de [2^(i-1), 2^i) µs ; le seau 0 celles de moins d'une µs
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        Timer(String name) {
+            this.name = name;
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /** Enregistre une exécution commencée à {@code startNanos} ({@link System#nanoTime()}). */
+        public void record(long startNanos, boolean succeeded) {
+            long nanos = System.nanoTime() - startNanos;
+            count.increment();
+            if (!succeeded) {
+                errors.increment();
+            }
+            totalNanos.add(nanos);
+            int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+            buckets[Math.min(bucket, BUCKETS - 1)].increment();
+        }
+
+        long meanMicros() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / n / 1000;
+        }
+
+        // Borne haute du seau qui contient le quantile : au plus deux fois la valeur réelle
+        long percentileMicros(double quantile) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+    }
+}
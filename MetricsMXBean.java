@@ -0,0 +1,26 @@
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Vue JMX des mesures d'un serveur (voir {@link Metrics}), lisible par
+ * exemple avec jconsole.
+ */
+public interface MetricsMXBean {
+    /** Compteurs et latences, par nom. */
+    Map<String, Long> getValues();
+
+    /** Le même rapport que la commande STATS. */
+    List<String> getReport();
+
+    class Impl implements MetricsMXBean {
+        @Override
+        public Map<String, Long> getValues() {
+            return Metrics.values();
+        }
+
+        @Override
+        public List<String> getReport() {
+            return Metrics.report();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Placement des fragments par hachage de rendez-vous.
+ *
+ * Chaque sous-serveur reçoit un score calculé à partir du nom du fragment
+ * (nom du fichier et numéro de partie) et de sa propre adresse. Les
+ * sous-serveurs aux meilleurs scores portent les répliques du fragment. Ajouter
+ * ou retirer un sous-serveur ne déplace que les fragments dont il fait partie
+ * des meilleurs scores.
+ */
+public class Placement {
+
+    private Placement() {
+    }
+
+    /** Tous les sous-serveurs, du plus prioritaire au moins prioritaire pour ce fragment. */
+    public static List<SubServerInfo> rank(String fragmentName, List<SubServerInfo> subServers) {
+        List<SubServerInfo> ranking = new ArrayList<>(subServers);
+        Map<SubServerInfo, Long> scores = new HashMap<>();
+        for (SubServerInfo subServer : ranking) {
+            scores.put(subServer, score(fragmentName, subServer));
+        }
+        ranking.sort((a, b) -> Long.compareUnsigned(scores.get(b), scores.get(a)));
+        return ranking;
+    }
+
+    /**
+     * Les sous-serveurs candidats pour le morceau {@code shard} d'une bande de
+     * {@code width} morceaux codés (voir {@link ReedSolomon}), d'après le
+     * classement de la bande : chaque morceau a sa propre place en tête, puis
+     * viennent les sous-serveurs hors de la bande, et seulement ensuite ceux
+     * qui portent déjà un autre morceau. Perdre un sous-serveur ne fait ainsi
+     * perdre qu'un morceau de chaque bande.
+     */
+    public static List<SubServerInfo> shardCandidates(List<SubServerInfo> ranking, int shard, int width) {
+        List<SubServerInfo> candidates = new ArrayList<>();
+        if (shard < ranking.size()) {
+            candidates.add(ranking.get(shard));
+        }
+        candidates.addAll(ranking.subList(Math.min(width, ranking.size()), ranking.size()));
+        for (int i = 0; i < Math.min(width, ranking.size()); i++) {
+            if (i != shard) {
+                candidates.add(ranking.get(i));
+            }
+        }
+        return candidates;
+    }
+
+    private static long score(String fragmentName, SubServerInfo subServer) {
+        // FNV-1a 64 bits suivi du mélange final de MurmurHash3 pour bien répartir les scores
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : (fragmentName + "@" + subServer).getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,234 @@
+import java.util.stream.IntStream;
+
+/**
+ * Code de Reed-Solomon sur GF(256) : {@code dataShards} morceaux de données
+ * et {@code parityShards} morceaux de parité de même longueur, dont
+ * n'importe quels {@code dataShards} suffisent à retrouver tous les autres.
+ *
+ * La matrice de codage est une matrice de Vandermonde rendue systématique :
+ * ses premières lignes forment l'identité, les morceaux de données sont donc
+ * stockés tels quels et seuls les morceaux de parité sont calculés. Toute
+ * sous-matrice carrée faite de {@code dataShards} de ses lignes est
+ * inversible ; son inverse retrouve les données à partir des morceaux
+ * restants.
+ *
+ * Les morceaux sont découpés en tranches traitées en parallèle : chaque
+ * octet d'un morceau calculé ne dépend que des octets à la même position
+ * dans les autres.
+ */
+public class ReedSolomon {
+    private static final int FIELD_SIZE = 256;
+    public static final int SLICE_SIZE = 256 * 1024;
+    private static final int POLYNOMIAL = 0x11D; // x^8 + x^4 + x^3 + x^2 + 1
+    private static final byte[] EXP = new byte[2 * FIELD_SIZE];
+    private static final int[] LOG = new int[FIELD_SIZE];
+    // Table de multiplication complète (64 Ko) : une ligne par coefficient, indexée par l'octet multiplié
+    private static final byte[][] MULTIPLY = new byte[FIELD_SIZE][FIELD_SIZE];
+
+    static {
+        int value = 1;
+        for (int i = 0; i < FIELD_SIZE - 1; i++) {
+            EXP[i] = (byte) value;
+            LOG[value] = i;
+            value <<= 1;
+            if (value >= FIELD_SIZE) {
+                value ^= POLYNOMIAL;
+            }
+        }
+        for (int i = FIELD_SIZE - 1; i < EXP.length; i++) {
+            EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+        }
+        for (int a = 1; a < FIELD_SIZE; a++) {
+            for (int b = 1; b < FIELD_SIZE; b++) {
+                MULTIPLY[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    private final byte[][] matrix; // (dataShards + parityShards) lignes, dataShards colonnes
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > FIELD_SIZE) {
+            throw new IllegalArgumentException("Code invalide : " + dataShards + "+" + parityShards);
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        byte[][] vandermonde = new byte[dataShards + parityShards][dataShards];
+        for (int r = 0; r < vandermonde.length; r++) {
+            for (int c = 0; c < dataShards; c++) {
+                vandermonde[r][c] = power(r, c);
+            }
+        }
+        byte[][] top = new byte[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    public int dataShards() {
+        return dataShards;
+    }
+
+    public int parityShards() {
+        return parityShards;
+    }
+
+    /**
+     * Calcule les {@code length} premiers octets des morceaux de parité
+     * {@code shards[dataShards..]} à partir des morceaux de données
+     * {@code shards[0..dataShards)}.
+     */
+    public void encodeParity(byte[][] shards, int length) {
+        inSlices(length, (offset, sliceLength) -> encodeParity(shards, offset, sliceLength));
+    }
+
+    /**
+     * Retrouve les {@code length} premiers octets des morceaux dont
+     * {@code present} est faux, à partir d'au moins {@code dataShards}
+     * morceaux présents. Tous les morceaux doivent être alloués.
+     */
+    public void reconstruct(byte[][] shards, boolean[] present, int length) {
+        int found = 0;
+        for (boolean shard : present) {
+            found += shard ? 1 : 0;
+        }
+        if (found < dataShards) {
+            throw new IllegalArgumentException(found + " morceaux présents, il en faut " + dataShards);
+        }
+        inSlices(length, (offset, sliceLength) -> reconstruct(shards, present, offset, sliceLength));
+    }
+
+    private static void inSlices(int length, Slice operation) {
+        int slices = (length + SLICE_SIZE - 1) / SLICE_SIZE;
+        IntStream.range(0, slices).parallel().forEach(slice -> operation.apply(slice * SLICE_SIZE,
+                Math.min(SLICE_SIZE, length - slice * SLICE_SIZE)));
+    }
+
+    private void encodeParity(byte[][] shards, int offset, int length) {
+        for (int p = 0; p < parityShards; p++) {
+            combine(matrix[dataShards + p], shards, shards[dataShards + p], offset, length);
+        }
+    }
+
+    private void reconstruct(byte[][] shards, boolean[] present, int offset, int length) {
+        int[] rows = new int[dataShards];
+        int found = 0;
+        for (int i = 0; i < shards.length && found < dataShards; i++) {
+            if (present[i]) {
+                rows[found++] = i;
+            }
+        }
+
+        // Données manquantes : inverse des lignes de la matrice des morceaux présents
+        byte[][] inputs = new byte[dataShards][];
+        byte[][] subMatrix = new byte[dataShards][];
+        for (int r = 0; r < dataShards; r++) {
+            inputs[r] = shards[rows[r]];
+            subMatrix[r] = matrix[rows[r]];
+        }
+        byte[][] decoding = null;
+        for (int d = 0; d < dataShards; d++) {
+            if (!present[d]) {
+                if (decoding == null) {
+                    decoding = invert(subMatrix);
+                }
+                combine(decoding[d], inputs, shards[d], offset, length);
+            }
+        }
+        // Parité manquante : recalculée à partir des données, désormais complètes
+        for (int p = 0; p < parityShards; p++) {
+            if (!present[dataShards + p]) {
+                combine(matrix[dataShards + p], shards, shards[dataShards + p], offset, length);
+            }
+        }
+    }
+
+    // output = somme des coefficients[i] * inputs[i], sur la tranche
+    private static void combine(byte[] coefficients, byte[][] inputs, byte[] output, int offset, int length) {
+        int end = offset + length;
+        byte[] first = MULTIPLY[coefficients[0] & 0xFF];
+        byte[] input = inputs[0];
+        for (int i = offset; i < end; i++) {
+            output[i] = first[input[i] & 0xFF];
+        }
+        for (int c = 1; c < coefficients.length; c++) {
+            byte[] row = MULTIPLY[coefficients[c] & 0xFF];
+            input = inputs[c];
+            for (int i = offset; i < end; i++) {
+                output[i] ^= row[input[i] & 0xFF];
+            }
+        }
+    }
+
+    private interface Slice {
+        void apply(int offset, int length);
+    }
+
+    private static byte power(int base, int exponent) {
+        if (exponent == 0) {
+            return 1;
+        } else if (base == 0) {
+            return 0;
+        }
+        return EXP[(LOG[base] * exponent) % (FIELD_SIZE - 1)];
+    }
+
+    private static byte[][] multiply(byte[][] left, byte[][] right) {
+        byte[][] result = new byte[left.length][right[0].length];
+        for (int r = 0; r < left.length; r++) {
+            for (int c = 0; c < right[0].length; c++) {
+                int value = 0;
+                for (int i = 0; i < right.length; i++) {
+                    value ^= MULTIPLY[left[r][i] & 0xFF][right[i][c] & 0xFF];
+                }
+                result[r][c] = (byte) value;
+            }
+        }
+        return result;
+    }
+
+    // Inverse par élimination de Gauss-Jordan ; la matrice reçue n'est pas modifiée
+    private static byte[][] invert(byte[][] source) {
+        int size = source.length;
+        byte[][] work = new byte[size][2 * size];
+        for (int r = 0; r < size; r++) {
+            System.arraycopy(source[r], 0, work[r], 0, size);
+            work[r][size + r] = 1;
+        }
+        for (int c = 0; c < size; c++) {
+            int pivot = c;
+            while (pivot < size && work[pivot][c] == 0) {
+                pivot++;
+            }
+            if (pivot == size) {
+                throw new IllegalArgumentException("Matrice non inversible");
+            }
+            byte[] swap = work[c];
+            work[c] = work[pivot];
+            work[pivot] = swap;
+
+            byte[] scale = MULTIPLY[inverse(work[c][c] & 0xFF)];
+            for (int i = 0; i < 2 * size; i++) {
+                work[c][i] = scale[work[c][i] & 0xFF];
+            }
+            for (int r = 0; r < size; r++) {
+                if (r != c && work[r][c] != 0) {
+                    byte[] factor = MULTIPLY[work[r][c] & 0xFF];
+                    for (int i = 0; i < 2 * size; i++) {
+                        work[r][i] ^= factor[work[c][i] & 0xFF];
+                    }
+                }
+            }
+        }
+        byte[][] result = new byte[size][size];
+        for (int r = 0; r < size; r++) {
+            System.arraycopy(work[r], size, result[r], 0, size);
+        }
+        return result;
+    }
+
+    private static int inverse(int value) {
+        return EXP[(FIELD_SIZE - 1) - LOG[value]] & 0xFF;
+    }
+}
@@ -0,0 +1,578 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Fragments rangés bout à bout dans de grands fichiers de segment
+ * ({@code segment-<numéro>.log}) au lieu d'un fichier chacun : des millions
+ * de petits fragments ne coûtent ni autant d'inodes ni de parcours de
+ * répertoire, et les écritures sont des ajouts en fin de segment.
+ *
+ * Un index en mémoire donne, pour chaque nom, le segment et la position de
+ * ses octets, ainsi que ses sommes de contrôle. Il est reconstruit au
+ * démarrage en relisant les segments : chaque enregistrement porte un numéro
+ * d'ordre attribué à sa validation, et pour un nom donné l'enregistrement de
+ * plus grand numéro l'emporte, fragment ou effacement.
+ *
+ * Format d'un enregistrement :
+ * - fragment : [FRAGMENT][longueur du nom][nom][taille][CRC de l'en-tête],
+ *   les octets du fragment, puis [numéro d'ordre][nombre de sommes][sommes]
+ *   [CRC de l'en-tête et de la fin]. La place est réservée et l'en-tête écrit
+ *   dès la création ; plusieurs fragments sont ainsi reçus en même temps dans
+ *   le même segment. La fin n'est écrite qu'à la validation : sans elle, ou
+ *   avec un numéro négatif (envoi abandonné), l'enregistrement est ignoré ;
+ * - effacement : [EFFACEMENT][longueur du nom][nom][numéro d'ordre][CRC].
+ *
+ * Un fragment effacé ou remplacé laisse de la place perdue dans son segment.
+ * En arrière-plan, le segment qui en a le plus, au-delà de
+ * {@code segment.compaction_ratio}, est compacté : ses fragments encore
+ * indexés sont recopiés dans le segment courant avec leur numéro d'ordre,
+ * puis le fichier est supprimé. Ses effacements sont recopiés aussi, sauf
+ * s'il est le plus ancien segment : aucun fragment qu'ils masquent ne peut
+ * alors rester ailleurs.
+ */
+public class SegmentStore implements FragmentStore {
+    private static final int FRAGMENT = 0x46524147; // "FRAG"
+    private static final int DELETION = 0x44454c45; // "DELE"
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final long SEGMENT_SIZE = ConfigLoader.getInt("segment.max_mb", 256) * 1024L * 1024L;
+    // Part d'espace perdu à partir de laquelle un segment est compacté
+    private static final double COMPACTION_RATIO = Double.parseDouble(
+            ConfigLoader.get("segment.compaction_ratio", "0.5"));
+    private static final int COMPACTION_INTERVAL_MILLIS = ConfigLoader.getInt("segment.compaction_interval_ms",
+            10000);
+
+    private final File directory;
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final NavigableSet<String> names = new ConcurrentSkipListSet<>();
+    // Segments par numéro ; le segment courant reçoit les nouveaux enregistrements (accès sous this)
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private long nextSequence;
+
+    public SegmentStore(File directory) throws IOException {
+        this.directory = directory;
+        load();
+        ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "segment-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, COMPACTION_INTERVAL_MILLIS, COMPACTION_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Writer create(String name, long size) throws IOException {
+        return reserve(name, size, null);
+    }
+
+    @Override
+    public StoredFragment open(String name) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Location location = index.get(name);
+            if (location == null) {
+                return null;
+            }
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(location.segment.file.toPath(), StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                if (attempt > 0) {
+                    throw e;
+                }
+                continue; // Segment compacté entre-temps : le fragment a changé de place
+            }
+            // Un segment supprimé après l'ouverture reste lisible par ce canal
+            return new StoredFragment(channel, location.dataStart, location.size) {
+                @Override
+                int[] checksums(int first, int count) {
+                    return Arrays.copyOfRange(location.checksums, first, first + count);
+                }
+            };
+        }
+    }
+
+    @Override
+    public long size(String name) {
+        Location location = index.get(name);
+        return location != null ? location.size : -1;
+    }
+
+    @Override
+    public NavigableSet<String> names() {
+        return names;
+    }
+
+    @Override
+    public synchronized boolean delete(String name) {
+        Location location = index.get(name);
+        if (location == null) {
+            return true;
+        }
+        try {
+            appendDeletion(name, nextSequence++);
+        } catch (IOException e) {
+            System.err.println("Effacement de " + name + " non enregistré : " + e.getMessage());
+            return false;
+        }
+        index.remove(name);
+        names.remove(name);
+        location.segment.liveBytes -= location.length;
+        return true;
+    }
+
+    /**
+     * Réserve la place d'un enregistrement dans le segment courant et écrit
+     * son en-tête. L'en-tête est écrit avant qu'une autre place soit
+     * réservée : la relecture d'un segment peut toujours sauter d'un
+     * enregistrement au suivant. {@code moved} désigne le fragment recopié
+     * par un compactage.
+     */
+    private SegmentWriter reserve(String name, long size, Location moved) throws IOException {
+        byte[] header = encodeHeader(FRAGMENT, name, size);
+        long length = header.length + size + trailerLength(size);
+        synchronized (this) {
+            Segment segment = segmentFor(length);
+            long start = segment.end;
+            try {
+                writeFully(segment.channel, ByteBuffer.wrap(header), start);
+            } catch (IOException e) {
+                // Rien n'a été réservé après : la place est rendue
+                segment.end = start;
+                throw e;
+            }
+            segment.end += length;
+            segment.writers++;
+            return new SegmentWriter(segment, name, header, start, size, moved);
+        }
+    }
+
+    // Le segment courant, ou un nouveau s'il ne reste pas assez de place (accès sous this)
+    private Segment segmentFor(long length) throws IOException {
+        if (active == null || (active.end > 0 && active.end + length > SEGMENT_SIZE)) {
+            long id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            active = openSegment(id);
+            segments.put(id, active);
+        }
+        return active;
+    }
+
+    private Segment openSegment(long id) throws IOException {
+        File file = new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        return new Segment(id, file, FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    // Accès sous this
+    private void appendDeletion(String name, long sequence) throws IOException {
+        ByteBuffer record = ByteBuffer.wrap(encodeHeader(DELETION, name, sequence));
+        Segment segment = segmentFor(record.remaining());
+        writeFully(segment.channel, record, segment.end);
+        segment.end += record.capacity();
+    }
+
+    /**
+     * Valide un enregistrement : écrit sa fin avec un nouveau numéro d'ordre
+     * et l'ajoute à l'index, à la place de l'ancienne version du fragment.
+     * La copie d'un compactage garde le numéro d'ordre du fragment copié, et
+     * n'est gardée que si le fragment n'a été ni effacé ni remplacé pendant la
+     * copie.
+     */
+    private synchronized void commit(SegmentWriter writer, int[] checksums) throws IOException {
+        writer.segment.writers--;
+        if (writer.moved != null && index.get(writer.name) != writer.moved) {
+            writeTrailer(writer, -1, new int[checksums.length]);
+            return;
+        }
+        long sequence = writer.moved != null ? writer.moved.sequence : nextSequence++;
+        writeTrailer(writer, sequence, checksums);
+        Location location = new Location(writer.segment, writer.start, writer.start + writer.header.length,
+                writer.size, writer.length(), sequence, checksums);
+        Location previous = index.put(writer.name, location);
+        if (previous != null) {
+            previous.segment.liveBytes -= previous.length;
+        }
+        location.segment.liveBytes += location.length;
+        names.add(writer.name);
+    }
+
+    private synchronized void abort(SegmentWriter writer) {
+        writer.segment.writers--;
+        try {
+            writeTrailer(writer, -1, new int[checksumCount(writer.size)]);
+        } catch (IOException e) {
+            // Une fin illisible marque aussi l'enregistrement comme abandonné
+        }
+    }
+
+    private static void writeTrailer(SegmentWriter writer, long sequence, int[] checksums) throws IOException {
+        ByteBuffer trailer = ByteBuffer.allocate(trailerLength(writer.size));
+        trailer.putLong(sequence);
+        trailer.putInt(checksums.length);
+        for (int checksum : checksums) {
+            trailer.putInt(checksum);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(writer.header);
+        crc.update(trailer.array(), 0, trailer.position());
+        trailer.putInt((int) crc.getValue());
+        trailer.flip();
+        writeFully(writer.segment.channel, trailer, writer.start + writer.header.length + writer.size);
+    }
+
+    /**
+     * Relit les segments dans l'ordre et reconstruit l'index : pour chaque
+     * nom, l'enregistrement validé de plus grand numéro d'ordre. Les segments
+     * existants ne reçoivent plus d'écritures ; un nouveau segment est ouvert
+     * au premier enregistrement.
+     */
+    private void load() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX)
+                && name.endsWith(SEGMENT_SUFFIX));
+        for (File file : files != null ? files : new File[0]) {
+            String id = file.getName().substring(SEGMENT_PREFIX.length(),
+                    file.getName().length() - SEGMENT_SUFFIX.length());
+            Segment segment = openSegment(Long.parseLong(id));
+            segments.put(segment.id, segment);
+        }
+
+        Map<String, Record> latest = new HashMap<>();
+        Map<String, Long> deletions = new HashMap<>();
+        long lastSequence = -1;
+        for (Segment segment : segments.values()) {
+            long size = segment.channel.size();
+            long position = 0;
+            while (position < size) {
+                Record record = readRecord(segment, position, size);
+                if (record == null) {
+                    System.err.println("Segment " + segment.file.getName() + " illisible après l'octet "
+                            + position + ".");
+                    break;
+                }
+                if (record.sequence >= 0) {
+                    lastSequence = Math.max(lastSequence, record.sequence);
+                    if (record.type == DELETION) {
+                        deletions.merge(record.name, record.sequence, Math::max);
+                    } else {
+                        Record previous = latest.get(record.name);
+                        if (previous == null || previous.sequence < record.sequence) {
+                            latest.put(record.name, record);
+                        }
+                    }
+                }
+                position += record.length;
+            }
+            segment.end = size;
+        }
+
+        for (Record record : latest.values()) {
+            if (record.sequence > deletions.getOrDefault(record.name, -1L)) {
+                Location location = new Location(record.segment, record.start, record.dataStart, record.size,
+                        record.length, record.sequence, record.checksums);
+                index.put(record.name, location);
+                names.add(record.name);
+                record.segment.liveBytes += record.length;
+            }
+        }
+        nextSequence = lastSequence + 1;
+        System.out.println("Index des segments chargé : " + index.size() + " fragments dans " + segments.size()
+                + " segments."); // Notification
+    }
+
+    /**
+     * L'enregistrement qui commence à {@code position}, ou null si son
+     * en-tête est illisible. Un fragment dont la fin manque ou ne correspond
+     * pas à l'en-tête a un numéro d'ordre négatif.
+     */
+    private static Record readRecord(Segment segment, long position, long end) throws IOException {
+        ByteBuffer prefix = ByteBuffer.allocate(6);
+        if (!readFully(segment.channel, prefix, position, end)) {
+            return null;
+        }
+        int type = prefix.getInt(0);
+        int nameLength = prefix.getShort(4) & 0xFFFF;
+        if (type != FRAGMENT && type != DELETION) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(6 + nameLength + 8 + 4);
+        if (!readFully(segment.channel, header, position, end)) {
+            return null;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(header.array(), 0, header.capacity() - 4);
+        if ((int) crc.getValue() != header.getInt(header.capacity() - 4)) {
+            return null;
+        }
+
+        Record record = new Record();
+        record.segment = segment;
+        record.type = type;
+        record.name = new String(header.array(), 6, nameLength, StandardCharsets.UTF_8);
+        record.start = position;
+        long value = header.getLong(6 + nameLength);
+        if (type == DELETION) {
+            record.sequence = value;
+            record.length = header.capacity();
+            return record;
+        }
+
+        record.size = value;
+        record.dataStart = position + header.capacity();
+        record.length = header.capacity() + value + trailerLength(value);
+        record.sequence = -1;
+        ByteBuffer trailer = ByteBuffer.allocate(trailerLength(value));
+        if (value >= 0 && readFully(segment.channel, trailer, record.dataStart + value, end)) {
+            int count = checksumCount(value);
+            crc.reset();
+            crc.update(header.array());
+            crc.update(trailer.array(), 0, trailer.capacity() - 4);
+            if ((int) crc.getValue() == trailer.getInt(trailer.capacity() - 4) && trailer.getInt(8) == count) {
+                record.sequence = trailer.getLong(0);
+                record.checksums = new int[count];
+                for (int i = 0; i < count; i++) {
+                    record.checksums[i] = trailer.getInt(12 + 4 * i);
+                }
+            }
+        }
+        return record;
+    }
+
+    // Une passe : compacte le segment terminé qui a le plus de place perdue, au-delà du seuil
+    private void compact() {
+        Segment victim = null;
+        boolean oldest;
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.writers == 0 && segment.garbageRatio() >= COMPACTION_RATIO
+                        && (victim == null || segment.garbageRatio() > victim.garbageRatio())) {
+                    victim = segment;
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            oldest = segments.firstKey() == victim.id;
+        }
+
+        try {
+            long reclaimed = victim.end - victim.liveBytes;
+            int moved = compact(victim, oldest);
+            synchronized (this) {
+                segments.remove(victim.id);
+            }
+            victim.channel.close();
+            if (!victim.file.delete()) {
+                System.err.println("Impossible de supprimer le segment " + victim.file.getName());
+            }
+            System.out.println("Segment " + victim.file.getName() + " compacté : " + moved + " fragments recopiés, "
+                    + reclaimed / 1024 + " Ko libérés."); // Notification
+        } catch (IOException e) {
+            System.err.println("Erreur de compactage du segment " + victim.file.getName() + " : " + e.getMessage());
+        }
+    }
+
+    // Recopie dans le segment courant les fragments encore indexés et les effacements encore utiles
+    private int compact(Segment segment, boolean oldest) throws IOException {
+        long end = segment.channel.size();
+        long position = 0;
+        int moved = 0;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        while (position < end) {
+            Record record = readRecord(segment, position, end);
+            if (record == null) {
+                // Les fragments suivants seraient perdus avec le segment : il est gardé tel quel
+                throw new IOException("enregistrement illisible à l'octet " + position);
+            }
+            if (record.type == DELETION) {
+                // Inutile si le nom a été stocké à nouveau : la nouvelle version l'emporte déjà
+                synchronized (this) {
+                    if (!oldest && record.sequence >= 0 && !index.containsKey(record.name)) {
+                        appendDeletion(record.name, record.sequence);
+                    }
+                }
+            } else {
+                Location location = index.get(record.name);
+                if (location != null && location.segment == segment && location.start == record.start) {
+                    SegmentWriter writer = reserve(record.name, record.size, location);
+                    try {
+                        for (long copied = 0; copied < record.size; ) {
+                            buffer.clear().limit((int) Math.min(buffer.capacity(), record.size - copied));
+                            if (segment.channel.read(buffer, record.dataStart + copied) == -1) {
+                                throw new IOException("Segment plus court que prévu");
+                            }
+                            buffer.flip();
+                            int bytesRead = buffer.remaining();
+                            writer.write(buffer, copied);
+                            copied += bytesRead;
+                        }
+                        writer.commit(location.checksums);
+                        moved++;
+                    } catch (IOException e) {
+                        writer.abort();
+                        throw e;
+                    }
+                }
+            }
+            position += record.length;
+        }
+        return moved;
+    }
+
+    private static byte[] encodeHeader(int type, String name, long value) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Nom de fragment trop long : " + name);
+        }
+        ByteBuffer header = ByteBuffer.allocate(6 + nameBytes.length + 8 + 4);
+        header.putInt(type);
+        header.putShort((short) nameBytes.length);
+        header.put(nameBytes);
+        header.putLong(value);
+        CRC32C crc = new CRC32C();
+        crc.update(header.array(), 0, header.position());
+        header.putInt((int) crc.getValue());
+        return header.array();
+    }
+
+    private static int checksumCount(long size) {
+        return (int) ((size + Checksums.CHUNK_SIZE - 1) / Checksums.CHUNK_SIZE);
+    }
+
+    private static int trailerLength(long size) {
+        return 8 + 4 + 4 * checksumCount(size) + 4;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    // Faux si les octets demandés dépassent la fin du segment
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position, long end)
+            throws IOException {
+        if (position + buffer.remaining() > end) {
+            return false;
+        }
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position);
+            if (bytesRead == -1) {
+                return false;
+            }
+            position += bytesRead;
+        }
+        return true;
+    }
+
+    private class SegmentWriter implements Writer {
+        final Segment segment;
+        final String name;
+        final byte[] header;
+        final long start;
+        final long size;
+        final Location moved; // Fragment recopié par un compactage, null pour un envoi
+        private boolean finished;
+
+        SegmentWriter(Segment segment, String name, byte[] header, long start, long size, Location moved) {
+            this.segment = segment;
+            this.name = name;
+            this.header = header;
+            this.start = start;
+            this.size = size;
+            this.moved = moved;
+        }
+
+        long length() {
+            return header.length + size + trailerLength(size);
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, long position) throws IOException {
+            if (position < 0 || position + buffer.remaining() > size) {
+                throw new IOException("Écriture hors du fragment " + name);
+            }
+            writeFully(segment.channel, buffer, start + header.length + position);
+        }
+
+        @Override
+        public void commit(int[] checksums) throws IOException {
+            if (checksums.length != checksumCount(size)) {
+                throw new IOException("Nombre de sommes de contrôle invalide pour " + name);
+            }
+            finished = true;
+            SegmentStore.this.commit(this, checksums);
+        }
+
+        @Override
+        public void abort() {
+            if (!finished) {
+                finished = true;
+                SegmentStore.this.abort(this);
+            }
+        }
+    }
+
+    private static class Segment {
+        final long id;
+        final File file;
+        final FileChannel channel;
+        long end; // Fin des enregistrements réservés
+        long liveBytes; // Octets des fragments encore indexés
+        int writers; // Fragments en cours d'écriture dans ce segment
+
+        Segment(long id, File file, FileChannel channel) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+        }
+
+        double garbageRatio() {
+            return end == 0 ? 1 : 1 - (double) liveBytes / end;
+        }
+    }
+
+    private static class Location {
+        final Segment segment;
+        final long start; // Début de l'enregistrement
+        final long dataStart; // Premier octet du fragment
+        final long size;
+        final long length; // Taille de l'enregistrement entier
+        final long sequence;
+        final int[] checksums;
+
+        Location(Segment segment, long start, long dataStart, long size, long length, long sequence,
+                int[] checksums) {
+            this.segment = segment;
+            this.start = start;
+            this.dataStart = dataStart;
+            this.size = size;
+            this.length = length;
+            this.sequence = sequence;
+            this.checksums = checksums;
+        }
+    }
+
+    // Enregistrement relu dans un segment
+    private static class Record {
+        Segment segment;
+        int type;
+        String name;
+        long start;
+        long dataStart;
+        long size;
+        long length;
+        long sequence;
+        int[] checksums;
+    }
+}
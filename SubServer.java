@@ -1,96 +1,542 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
 
 public class SubServer {
     private static final int CHUNK_SIZE = 1024;
-    
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = ConfigLoader.getInt("control.connect_timeout_ms", 2000);
+    // Transferts de données servis en même temps ; les suivants attendent sans lire leur flux
+    private static final int MAX_TRANSFERS = ConfigLoader.getInt("sub_server.max_transfers", 32);
+    private static final Semaphore TRANSFER_SLOTS = new Semaphore(MAX_TRANSFERS, true);
+    // Débit des copies de réparation (REPLICATE) envoyées par ce sous-serveur, partagé entre elles :
+    // elles ne prennent pas de place de transfert, et ne doivent pas non plus affamer les téléchargements
+    private static final Throttle REPAIR_THROTTLE = new Throttle(
+            ConfigLoader.getInt("repair.max_mb_per_s", 20) * 1024L * 1024L);
+    // STORE_RELAY (maillon suivant d'une chaîne) n'est pas limité : il est déjà compté par le maillon
+    // précédent, et l'attendre ici pourrait bloquer deux sous-serveurs qui se répliquent l'un vers l'autre
+    private static final Set<String> LIMITED_COMMANDS = Set.of("STORE_CHAIN", "RETRIEVE_RANGE");
+    // Commandes courtes acceptées sur le canal de contrôle multiplexé
+    private static final Set<String> CONTROL_COMMANDS = Set.of("PING", "SIZE", "LISTER", "DELETE",
+            "DELETE_FRAGMENT", "STATS");
+    // Commandes mesurées séparément par Metrics
+    private static final Set<String> COMMANDS = Set.of("STORE_CHAIN", "STORE_RELAY", "RETRIEVE_RANGE",
+            "REPLICATE", "PING", "SIZE", "LISTER", "DELETE", "DELETE_FRAGMENT", "STATS");
+    // Connexions servies en même temps, un thread chacune ; une connexion de plus est fermée aussitôt
+    private static final int MAX_CONNECTIONS = ConfigLoader.getInt("sub_server.max_connections", 256);
+    private static final ThreadPoolExecutor CONNECTION_WORKERS = newWorkers("sub-server-worker", MAX_CONNECTIONS,
+            new SynchronousQueue<>());
+    // Requêtes du canal de contrôle traitées en même temps, et celles qui peuvent attendre un thread ;
+    // au-delà, la requête reçoit une réponse vide, un échec pour le serveur principal
+    private static final ThreadPoolExecutor CONTROL_WORKERS = newWorkers("sub-server-control",
+            ConfigLoader.getInt("sub_server.control_threads", 8),
+            new ArrayBlockingQueue<>(ConfigLoader.getInt("sub_server.control_queue_depth", 256)));
+    // Fragments stockés par ce sous-serveur, selon le moteur choisi par sub_server.storage
+    private static FragmentStore store;
+
+    private static ThreadPoolExecutor newWorkers(String name, int threads, BlockingQueue<Runnable> queue) {
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue,
+                runnable -> {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        workers.allowCoreThreadTimeOut(true);
+        return workers;
+    }
 
     public static void main(String[] args) {
         int port = Integer.parseInt(args[0]); // Le port est passé en paramètre
-        File subServerDir = new File("server_directory/sub_server_directory_" + port);
+        File subServerDir = new File(ConfigLoader.get("sub_server.directory", "server_directory"),
+                "sub_server_directory_" + port);
         
 
         if (!subServerDir.exists()) {
             subServerDir.mkdirs();
         }
+        try {
+            store = FragmentStore.open(subServerDir);
+        } catch (IOException e) {
+            System.err.println("Erreur d'ouverture du stockage des fragments : " + e.getMessage());
+            return;
+        }
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Sous-serveur démarré sur le port " + port + "...");
+        Metrics.registerMBean("sous-serveur-" + port);
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("Sous-serveur démarré sur le port " + port + " (" + MAX_TRANSFERS
+                    + " transferts simultanés au plus)...");
             while (true) {
-                try (Socket clientSocket = serverSocket.accept();
-                     DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
-                     DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream())) {
-
-                    String command = dis.readUTF();
-                    if ("STORE".equalsIgnoreCase(command)) {
-                        String fileName = dis.readUTF();
-                        long fileSize = dis.readLong();
-                        receiveFile(dis, new File(subServerDir, fileName), fileSize);
-                        System.out.println("Fragment stocké : " + fileName);
-                    } else if ("RETRIEVE".equalsIgnoreCase(command)) {
-                        String fileName = dis.readUTF();
-                        File file = new File(subServerDir, fileName);
-                        sendFile(dos, file);
-                        System.out.println("Fragment envoyé : " + fileName);
-                    } else if ("LISTER".equalsIgnoreCase(command)) {
-                        File[] files = subServerDir.listFiles();
-                        if (files != null) {
-                            dos.writeInt(files.length); // Envoyer le nombre de fichiers
-                            for (File file : files) {
-                                dos.writeUTF(file.getName()); // Envoyer les noms des fichiers
-                            }
+                SocketChannel clientChannel = serverChannel.accept();
+                // Un thread par connexion : un transfert lent ne bloque ni les autres requêtes ni les sondes
+                try {
+                    CONNECTION_WORKERS.execute(() -> handleRequest(clientChannel, subServerDir));
+                } catch (RejectedExecutionException e) {
+                    // L'expéditeur voit la connexion fermée et passe à une autre réplique
+                    Metrics.increment("connexions_refusees");
+                    Metrics.trace("Connexion refusée, " + MAX_CONNECTIONS + " connexions déjà servies");
+                    clientChannel.close();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Erreur avec le sous-serveur : " + e.getMessage());
+        }
+    }
+
+    private static void handleRequest(SocketChannel clientChannel, File subServerDir) {
+        // Les en-têtes passent par des flux non tamponnés, les données directement par le canal.
+        // Flux du socket plutôt que Channels.newInputStream : ce dernier bloquerait les écritures
+        // pendant une lecture, ce qu'interdit le canal de contrôle multiplexé
+        try (SocketChannel channel = clientChannel;
+             DataInputStream dis = new DataInputStream(channel.socket().getInputStream());
+             DataOutputStream dos = new DataOutputStream(channel.socket().getOutputStream())) {
+
+            // La connexion reste ouverte : le serveur principal la réutilise pour ses requêtes suivantes
+            while (true) {
+                String command;
+                try {
+                    command = dis.readUTF();
+                } catch (EOFException e) {
+                    break; // Connexion fermée entre deux commandes
+                }
+
+                if ("MUX".equalsIgnoreCase(command)) {
+                    serveMultiplexed(dis, dos, subServerDir);
+                    break;
+                }
+
+                boolean limited = LIMITED_COMMANDS.contains(command.toUpperCase());
+                if (limited && !TRANSFER_SLOTS.tryAcquire()) {
+                    // Contre-pression : le flux n'est plus lu, TCP ralentit l'expéditeur
+                    Metrics.increment("transferts.en_attente");
+                    Metrics.trace("Transferts saturés, " + command + " en attente");
+                    TRANSFER_SLOTS.acquireUninterruptibly();
+                }
+                try {
+                    serve(command, channel, dis, dos, subServerDir);
+                } finally {
+                    if (limited) {
+                        TRANSFER_SLOTS.release();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Erreur avec un client : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Canal de contrôle : des trames [identifiant][longueur][commande] se
+     * suivent sur la même connexion. Chacune est traitée par un thread de
+     * travail et sa réponse renvoyée avec son identifiant dès qu'elle est prête.
+     * Les threads et la file d'attente sont bornés : une rafale de requêtes
+     * reçoit des réponses vides au lieu de créer un thread chacune.
+     */
+    private static void serveMultiplexed(DataInputStream dis, DataOutputStream dos, File subServerDir)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(dos, CHUNK_SIZE));
+        while (true) {
+            int requestId;
+            byte[] frame;
+            try {
+                requestId = dis.readInt();
+                frame = new byte[dis.readInt()];
+                dis.readFully(frame);
+            } catch (EOFException e) {
+                return;
+            }
+
+            try {
+                CONTROL_WORKERS.execute(() -> {
+                    ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                    try {
+                        DataInputStream request = new DataInputStream(new ByteArrayInputStream(frame));
+                        String command = request.readUTF();
+                        if (CONTROL_COMMANDS.contains(command.toUpperCase())) {
+                            serve(command, null, request, new DataOutputStream(reply), subServerDir);
                         } else {
-                            dos.writeInt(0); // Pas de fichiers
-                            
-                        }
-                    }else if ("DELETE".equalsIgnoreCase(command)) {
-                        String fileName = dis.readUTF();
-                        File[] fragments = subServerDir.listFiles((dir, name) -> name.startsWith(fileName + ".part"));
-                    
-                        boolean allDeleted = true;
-                        if (fragments != null) {
-                            for (File fragment : fragments) {
-                                if (!fragment.delete()) {
-                                    allDeleted = false;
-                                    System.err.println("Impossible de supprimer le fragment : " + fragment.getName());
-                                }
-                            }
+                            System.err.println("Commande refusée sur le canal de contrôle : " + command);
                         }
-                    
-                        dos.writeUTF(allDeleted ? "OK" : "ERREUR");
+                    } catch (IOException e) {
+                        System.err.println("Erreur avec une requête de contrôle : " + e.getMessage());
                     }
-                    
-                    
-                } catch (IOException e) {
-                    System.err.println("Erreur avec un client : " + e.getMessage());
+                    sendReply(out, requestId, reply);
+                });
+            } catch (RejectedExecutionException e) {
+                Metrics.increment("controles_refuses");
+                sendReply(out, requestId, new ByteArrayOutputStream());
+            }
+        }
+    }
+
+    // Une réponse vide signale l'échec au serveur principal
+    private static void sendReply(DataOutputStream out, int requestId, ByteArrayOutputStream reply) {
+        synchronized (out) {
+            try {
+                out.writeInt(requestId);
+                out.writeInt(reply.size());
+                reply.writeTo(out);
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("Erreur d'envoi sur le canal de contrôle : " + e.getMessage());
+            }
+        }
+    }
+
+    private static void serve(String command, SocketChannel channel, DataInputStream dis, DataOutputStream dos,
+            File subServerDir) throws IOException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            serveCommand(command, channel, dis, dos, subServerDir);
+            succeeded = true;
+        } finally {
+            String name = command.toUpperCase();
+            Metrics.timer(COMMANDS.contains(name) ? name : "INCONNUE").record(start, succeeded);
+        }
+    }
+
+    private static void serveCommand(String command, SocketChannel channel, DataInputStream dis,
+            DataOutputStream dos, File subServerDir) throws IOException {
+        if ("STORE_CHAIN".equalsIgnoreCase(command) || "STORE_RELAY".equalsIgnoreCase(command)) {
+            String fileName = dis.readUTF();
+            long fileSize = dis.readLong();
+            int replicasWanted = dis.readInt(); // Répliques encore à créer en aval
+            List<SubServerInfo> candidates = SubServerInfo.readList(dis);
+            List<SubServerInfo> replicas;
+            Metrics.increment("fragments_en_cours");
+            try {
+                replicas = receiveAndForward(channel, dis, fileName, fileSize, replicasWanted, candidates);
+            } finally {
+                Metrics.decrement("fragments_en_cours");
+            }
+            dos.writeUTF("OK");
+            SubServerInfo.writeList(dos, replicas); // Répliques stockées plus loin dans la chaîne
+            Metrics.add("octets_recus", fileSize);
+            if (!replicas.isEmpty()) {
+                Metrics.add("octets_relayes", fileSize);
+            }
+            Metrics.trace("Fragment stocké : " + fileName + " (+" + replicas.size() + " répliques)");
+        } else if ("REPLICATE".equalsIgnoreCase(command)) {
+            // Copie d'un fragment stocké ici vers d'autres sous-serveurs, demandée par la réparation
+            String fileName = dis.readUTF();
+            List<SubServerInfo> targets = SubServerInfo.readList(dis);
+            List<SubServerInfo> replicas;
+            long fileSize;
+            try (FragmentStore.StoredFragment fragment = store.open(fileName)) {
+                if (fragment == null) {
+                    dos.writeUTF("ABSENT");
+                    return;
                 }
+                replicas = replicate(fileName, fragment, targets);
+                fileSize = fragment.size;
             }
-        } catch (IOException e) {
-            System.err.println("Erreur avec le sous-serveur : " + e.getMessage());
+            dos.writeUTF("OK");
+            SubServerInfo.writeList(dos, replicas);
+            if (!replicas.isEmpty()) {
+                Metrics.add("reparation.octets_envoyes", fileSize);
+            }
+        } else if ("STATS".equalsIgnoreCase(command)) {
+            List<String> lines = Metrics.report();
+            dos.writeInt(lines.size());
+            for (String line : lines) {
+                dos.writeUTF(line);
+            }
+        } else if ("RETRIEVE_RANGE".equalsIgnoreCase(command)) {
+            String fileName = dis.readUTF();
+            long offset = dis.readLong();
+            long length = dis.readLong();
+            sendFileRange(dos, channel, fileName, offset, length);
+        } else if ("PING".equalsIgnoreCase(command)) {
+            dos.writeUTF("PONG");
+            dos.writeLong(subServerDir.getUsableSpace()); // Espace disque libre
+            dos.writeInt(MAX_TRANSFERS - TRANSFER_SLOTS.availablePermits()); // Transferts en cours
+        } else if ("SIZE".equalsIgnoreCase(command)) {
+            dos.writeLong(store.size(dis.readUTF())); // -1 : fragment absent
+        } else if ("LISTER".equalsIgnoreCase(command)) {
+            List<String> names = new ArrayList<>(store.names());
+            dos.writeInt(names.size()); // Envoyer le nombre de fichiers
+            for (String name : names) {
+                dos.writeUTF(name); // Envoyer les noms des fichiers
+            }
+        }else if ("DELETE".equalsIgnoreCase(command)) {
+            List<String> fragments = store.fragmentsOf(dis.readUTF());
+        
+            boolean allDeleted = true;
+            for (String fragment : fragments) {
+                if (!store.delete(fragment)) {
+                    allDeleted = false;
+                    System.err.println("Impossible de supprimer le fragment : " + fragment);
+                }
+            }
+        
+            dos.writeUTF(allDeleted ? "OK" : "ERREUR");
+        } else if ("DELETE_FRAGMENT".equalsIgnoreCase(command)) {
+            // Un seul fragment, par exemple un bloc dédupliqué qui n'est plus référencé
+            dos.writeUTF(store.delete(dis.readUTF()) ? "OK" : "ERREUR");
         }
     }
 
-    private static void receiveFile(DataInputStream dis, File file, long fileSize) throws IOException {
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            byte[] buffer = new byte[CHUNK_SIZE];
+    /**
+     * Reçoit un fragment et le transmet au fil de l'eau au premier candidat
+     * joignable, qui fait de même avec le reste de la liste jusqu'à ce que
+     * {@code replicasWanted} répliques aient été créées en aval. Les sommes de
+     * contrôle envoyées après les données sont comparées à celles des octets
+     * reçus avant de garder le fragment. Renvoie les sous-serveurs en aval qui
+     * ont stocké le fragment en entier.
+     */
+    private static List<SubServerInfo> receiveAndForward(SocketChannel channel, DataInputStream dis,
+            String fileName, long fileSize, int replicasWanted, List<SubServerInfo> candidates) throws IOException {
+        // Place réservée avant de joindre le maillon suivant : un stockage en erreur refuse tout de suite
+        FragmentStore.Writer writer = store.create(fileName, fileSize);
+        SubServerInfo next = null;
+        SocketChannel nextChannel = null;
+        DataOutputStream nextDos = null;
+
+        // Le premier candidat joignable devient le maillon suivant
+        while (replicasWanted > 0 && nextChannel == null && !candidates.isEmpty()) {
+            next = candidates.remove(0);
+            try {
+                nextChannel = connect(next);
+                // Le maillon suivant répond après ceux qui le suivent, chacun dans le délai
+                DataTimeout.configure(nextChannel.socket(), replicasWanted);
+                nextDos = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(nextChannel), CHUNK_SIZE));
+                nextDos.writeUTF("STORE_RELAY");
+                nextDos.writeUTF(fileName);
+                nextDos.writeLong(fileSize);
+                nextDos.writeInt(replicasWanted - 1);
+                SubServerInfo.writeList(nextDos, candidates);
+                nextDos.flush();
+            } catch (IOException e) {
+                System.err.println("Sous-serveur suivant inaccessible : " + next);
+                closeQuietly(nextChannel);
+                nextChannel = null;
+            }
+        }
+
+        List<SubServerInfo> replicas = new ArrayList<>();
+        boolean committed = false;
+        try {
+            Checksums checksums = new Checksums();
+            // Tampon hors tas : les octets vont du socket au disque et au maillon suivant sans copie Java,
+            // et les sommes de contrôle sont calculées sur ce même tampon
+            ByteBuffer buffer = ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
             long totalRead = 0;
-            int bytesRead;
             while (totalRead < fileSize) {
-                bytesRead = dis.read(buffer, 0, (int) Math.min(CHUNK_SIZE, fileSize - totalRead));
-                fos.write(buffer, 0, bytesRead);
+                buffer.clear().limit((int) Math.min(buffer.capacity(), fileSize - totalRead));
+                if (channel.read(buffer) == -1) {
+                    throw new EOFException("Fin prématurée du fragment " + fileName);
+                }
+                buffer.flip();
+                int bytesRead = buffer.remaining();
+                checksums.update(buffer.duplicate());
+                writer.write(buffer, totalRead);
+                if (nextChannel != null) {
+                    SocketChannel forward = nextChannel;
+                    DataTimeout.watch(forward, replicasWanted);
+                    try {
+                        buffer.rewind();
+                        while (buffer.hasRemaining()) {
+                            nextChannel.write(buffer);
+                        }
+                    } catch (IOException e) {
+                        // La copie locale continue même si la suite de la chaîne est perdue
+                        System.err.println("Erreur de réplication vers " + next + " : " + e.getMessage());
+                        closeQuietly(nextChannel);
+                        nextChannel = null;
+                    } finally {
+                        DataTimeout.done(forward);
+                    }
+                }
                 totalRead += bytesRead;
             }
+
+            // Sommes calculées par l'expéditeur, relayées telles quelles : chaque maillon vérifie sa copie
+            int[] expected = Checksums.read(dis);
+            if (nextChannel != null) {
+                try {
+                    Checksums.write(nextDos, expected);
+                    nextDos.flush();
+                } catch (IOException e) {
+                    System.err.println("Erreur de réplication vers " + next + " : " + e.getMessage());
+                    closeQuietly(nextChannel);
+                    nextChannel = null;
+                }
+            }
+            int[] actual = checksums.finish();
+            if (!Arrays.equals(expected, actual)) {
+                throw new IOException("Somme de contrôle invalide pour le fragment " + fileName);
+            }
+            writer.commit(actual);
+            committed = true;
+
+            if (nextChannel != null) {
+                try {
+                    // Flux du socket : contrairement à Channels.newInputStream, il respecte SO_TIMEOUT
+                    DataInputStream nextDis = new DataInputStream(nextChannel.socket().getInputStream());
+                    if ("OK".equals(nextDis.readUTF())) {
+                        replicas.add(next);
+                        replicas.addAll(SubServerInfo.readList(nextDis));
+                    }
+                } catch (IOException e) {
+                    System.err.println("Erreur de réplication vers " + next + " : " + e.getMessage());
+                }
+            }
+        } finally {
+            if (!committed) {
+                writer.abort();
+            }
+            closeQuietly(nextChannel);
+        }
+        return replicas;
+    }
+
+    /**
+     * Envoie un fragment stocké ici en tête d'une chaîne STORE_CHAIN qui passe
+     * par {@code targets}, sans dépasser le débit de réparation. Les sommes de
+     * contrôle envoyées sont celles enregistrées avec le fragment : une copie
+     * locale abîmée est refusée par le destinataire au lieu d'être propagée.
+     * Renvoie les sous-serveurs qui ont stocké le fragment.
+     */
+    private static List<SubServerInfo> replicate(String fileName, FragmentStore.StoredFragment fragment,
+            List<SubServerInfo> targets) {
+        List<SubServerInfo> candidates = new ArrayList<>(targets);
+        while (!candidates.isEmpty()) {
+            SubServerInfo target = candidates.remove(0);
+            try (SocketChannel targetChannel = connect(target)) {
+                DataTimeout.configure(targetChannel.socket(), candidates.size() + 1);
+                int[] checksums = storedChecksums(fragment);
+                DataOutputStream targetDos = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(targetChannel), CHUNK_SIZE));
+                targetDos.writeUTF("STORE_CHAIN");
+                targetDos.writeUTF(fileName);
+                targetDos.writeLong(fragment.size);
+                targetDos.writeInt(candidates.size());
+                SubServerInfo.writeList(targetDos, candidates);
+                targetDos.flush();
+
+                long position = 0;
+                while (position < fragment.size) {
+                    long count = Math.min(TRANSFER_BUFFER_SIZE, fragment.size - position);
+                    REPAIR_THROTTLE.acquire(count);
+                    DataTimeout.watch(targetChannel, candidates.size() + 1);
+                    try {
+                        transferTo(fragment.channel, fragment.start + position, count, targetChannel);
+                    } finally {
+                        DataTimeout.done(targetChannel);
+                    }
+                    position += count;
+                }
+                Checksums.write(targetDos, checksums);
+                targetDos.flush();
+
+                DataInputStream targetDis = new DataInputStream(targetChannel.socket().getInputStream());
+                if ("OK".equals(targetDis.readUTF())) {
+                    List<SubServerInfo> replicas = new ArrayList<>();
+                    replicas.add(target);
+                    replicas.addAll(SubServerInfo.readList(targetDis));
+                    return replicas;
+                }
+            } catch (IOException e) {
+                System.err.println("Erreur de réplication de " + fileName + " vers " + target + " : "
+                        + e.getMessage());
+            }
+        }
+        return List.of();
+    }
+
+    // Sommes enregistrées, ou recalculées pour un fragment stocké sans elles
+    private static int[] storedChecksums(FragmentStore.StoredFragment fragment) throws IOException {
+        int[] checksums = readChecksums(fragment, 0, fragment.size);
+        if (checksums.length > 0 || fragment.size == 0) {
+            return checksums;
+        }
+        Checksums computed = new Checksums();
+        ByteBuffer buffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+        long position = 0;
+        while (position < fragment.size) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), fragment.size - position));
+            int bytesRead = fragment.channel.read(buffer, fragment.start + position);
+            if (bytesRead == -1) {
+                throw new EOFException("Fragment plus court que prévu");
+            }
+            buffer.flip();
+            computed.update(buffer);
+            position += bytesRead;
+        }
+        return computed.finish();
+    }
+
+    // Connexion de données vers un autre sous-serveur, abandonnée s'il ne répond pas dans le délai
+    private static SocketChannel connect(SubServerInfo subServer) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(subServer.host, subServer.port), CONNECT_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void sendFileRange(DataOutputStream dos, SocketChannel channel, String fileName, long offset,
+            long length) throws IOException {
+        try (FragmentStore.StoredFragment fragment = store.open(fileName)) {
+            if (fragment == null) {
+                dos.writeLong(-1); // Fragment absent
+                return;
+            }
+            long bytesToSend = Math.max(0, Math.min(length, fragment.size - offset));
+            dos.writeLong(bytesToSend);
+            // Sommes des morceaux couverts par la plage : le serveur principal vérifie les octets reçus
+            Checksums.write(dos, readChecksums(fragment, offset, bytesToSend));
+            transferTo(fragment.channel, fragment.start + offset, bytesToSend, channel);
+        }
+    }
+
+    /**
+     * Sommes de contrôle des morceaux de la plage, telles qu'enregistrées avec
+     * le fragment. Aucune si la plage n'est pas alignée sur les morceaux ou si
+     * le fragment a été stocké sans elles.
+     */
+    private static int[] readChecksums(FragmentStore.StoredFragment fragment, long offset, long length) {
+        long end = offset + length;
+        if (length == 0 || offset % Checksums.CHUNK_SIZE != 0
+                || (end % Checksums.CHUNK_SIZE != 0 && end != fragment.size)) {
+            return new int[0];
         }
+        int first = (int) (offset / Checksums.CHUNK_SIZE);
+        return fragment.checksums(first, (int) ((length + Checksums.CHUNK_SIZE - 1) / Checksums.CHUNK_SIZE));
     }
 
-    private static void sendFile(DataOutputStream dos, File file) throws IOException {
-        try (FileInputStream fis = new FileInputStream(file)) {
-            dos.writeLong(file.length());
-            byte[] buffer = new byte[CHUNK_SIZE];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                dos.write(buffer, 0, bytesRead);
+    // Envoi du fichier vers le socket par le noyau (sendfile), sans copie en espace utilisateur
+    private static void transferTo(FileChannel fileChannel, long position, long count, SocketChannel channel)
+            throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long sent = fileChannel.transferTo(position, end - position, channel);
+            if (sent <= 0) {
+                throw new EOFException("Fragment plus court que prévu");
             }
+            position += sent;
+            Metrics.add("octets_envoyes", sent);
         }
     }
 }
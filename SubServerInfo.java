@@ -0,0 +1,53 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+public class SubServerInfo {
+    String host;
+    int port;
+
+    SubServerInfo(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    // Format sur le fil : nombre de sous-serveurs, puis hôte et port de chacun
+    static List<SubServerInfo> readList(DataInputStream dis) throws IOException {
+        int count = dis.readInt();
+        List<SubServerInfo> subServers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            subServers.add(new SubServerInfo(dis.readUTF(), dis.readInt()));
+        }
+        return subServers;
+    }
+
+    static void writeList(DataOutputStream dos, List<SubServerInfo> subServers) throws IOException {
+        dos.writeInt(subServers.size());
+        for (SubServerInfo subServer : subServers) {
+            dos.writeUTF(subServer.host);
+            dos.writeInt(subServer.port);
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof SubServerInfo)) {
+            return false;
+        }
+        SubServerInfo that = (SubServerInfo) other;
+        return port == that.port && host.equals(that.host);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(host, port);
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,42 @@
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limite de débit partagée par plusieurs transferts.
+ *
+ * Chaque envoi réserve le créneau qui suit celui de l'envoi précédent, d'une
+ * durée proportionnelle à sa taille, et attend son début : les transferts
+ * qui passent par la même limite se partagent {@code bytesPerSecond} octets
+ * par seconde, quel que soit leur nombre. Une limite nulle ne freine rien.
+ */
+public class Throttle {
+    private final long bytesPerSecond;
+    private long nextSlotNanos; // Début du prochain créneau libre (System.nanoTime)
+
+    public Throttle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /** Attend que {@code bytes} octets puissent partir sans dépasser le débit. */
+    public void acquire(long bytes) throws InterruptedIOException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            // Un créneau inutilisé est perdu : une longue pause ne permet pas de rafale ensuite
+            long slot = Math.max(nextSlotNanos, now);
+            nextSlotNanos = slot + bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+            waitNanos = slot - now;
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Transfert interrompu");
+            }
+        }
+    }
+}
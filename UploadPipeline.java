@@ -0,0 +1,358 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Pipeline d'envoi des fragments vers les sous-serveurs.
+ *
+ * Le flux du client est lu une seule fois. Chaque fragment est envoyé au
+ * premier sous-serveur joignable de sa liste de placement (commande
+ * STORE_CHAIN), qui le transmet au suivant tout en l'écrivant sur son disque,
+ * jusqu'au nombre de répliques voulu : une seule copie traverse le serveur
+ * principal. Un thread d'écriture par tête de chaîne permet
+ * d'envoyer plusieurs fragments en même temps ; les fragments remplis en
+ * parallèle ({@link #startFragment}) ont chacun le leur. Le nombre de tampons en vol est
+ * borné : lorsqu'ils sont tous occupés, la lecture du client attend la chaîne
+ * la plus lente. Les tampons sont pris dans un {@link BufferPool} partagé au
+ * fur et à mesure des besoins, et lui sont rendus à la fin de l'envoi. Les
+ * sommes de contrôle du fragment, calculées pendant l'envoi, suivent ses
+ * données.
+ */
+public class UploadPipeline {
+    private static final int CONNECT_TIMEOUT_MILLIS = ConfigLoader.getInt("control.connect_timeout_ms", 2000);
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "upload-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final BufferPool pool;
+    private final int chunkSize;
+    private final int bufferCount;
+    private final BlockingQueue<byte[]> freeBuffers;
+    private int takenBuffers; // Tampons pris au pool, rendus par finish()
+    private final Map<SubServerInfo, Writer> writers = new LinkedHashMap<>();
+    private final List<Writer> streamWriters = new ArrayList<>(); // Un par fragment commencé par startFragment
+
+    public UploadPipeline(BufferPool pool, int bufferCount) {
+        this.pool = pool;
+        this.chunkSize = pool.bufferSize();
+        this.bufferCount = bufferCount;
+        this.freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+    }
+
+    /**
+     * Lit {@code size} octets du flux et les fait stocker sous le nom
+     * {@code fragmentName} sur {@code replicationFactor} sous-serveurs, pris dans
+     * l'ordre de {@code candidates} en sautant ceux qui sont injoignables. Rend
+     * la main dès que tout a été lu : les écritures se poursuivent pendant la
+     * lecture du fragment suivant.
+     */
+    public void sendFragment(DataInputStream in, String fragmentName, long size, List<SubServerInfo> candidates,
+            int replicationFactor) throws IOException {
+        Writer writer = writers.computeIfAbsent(candidates.get(0), Writer::new);
+        writer.queue.add(Item.start(fragmentName, size, candidates, replicationFactor));
+
+        long remaining = size;
+        while (remaining > 0) {
+            byte[] buffer = takeBuffer();
+            int bytesRead = in.read(buffer, 0, (int) Math.min(chunkSize, remaining));
+            if (bytesRead == -1) {
+                freeBuffers.add(buffer);
+                throw new EOFException("Fin prématurée du flux pour " + fragmentName);
+            }
+
+            writer.queue.add(Item.data(new Chunk(buffer, bytesRead)));
+            remaining -= bytesRead;
+        }
+
+        writer.queue.add(Item.END);
+    }
+
+    /**
+     * Commence l'envoi d'un fragment de {@code size} octets, comme
+     * {@link #sendFragment}, dont les octets sont fournis au fur et à mesure
+     * par {@link Stream#write}. Chaque fragment commencé ainsi a son propre
+     * thread d'écriture : plusieurs fragments peuvent être remplis en même
+     * temps, par exemple les morceaux d'une bande codée.
+     */
+    public Stream startFragment(String fragmentName, long size, List<SubServerInfo> candidates,
+            int replicationFactor) {
+        Writer writer = new Writer(candidates.get(0));
+        streamWriters.add(writer);
+        writer.queue.add(Item.start(fragmentName, size, candidates, replicationFactor));
+        return new Stream(writer, fragmentName, size);
+    }
+
+    /** Fragment commencé par {@link #startFragment}. */
+    public class Stream {
+        private final Writer writer;
+        private final String fragmentName;
+        private long remaining;
+
+        private Stream(Writer writer, String fragmentName, long size) {
+            this.writer = writer;
+            this.fragmentName = fragmentName;
+            this.remaining = size;
+        }
+
+        /** Copie des octets du fragment dans les tampons de l'envoi, en attendant qu'il s'en libère. */
+        public void write(byte[] data, int offset, int length) throws IOException {
+            if (length > remaining) {
+                throw new IOException("Trop d'octets pour " + fragmentName);
+            }
+            while (length > 0) {
+                byte[] buffer = takeBuffer();
+                int n = Math.min(chunkSize, length);
+                System.arraycopy(data, offset, buffer, 0, n);
+                writer.queue.add(Item.data(new Chunk(buffer, n)));
+                offset += n;
+                length -= n;
+                remaining -= n;
+            }
+        }
+
+        /** Termine le fragment, qui doit avoir reçu tous ses octets ; son thread d'écriture s'arrête ensuite. */
+        public void end() throws IOException {
+            if (remaining > 0) {
+                throw new EOFException("Fin prématurée du flux pour " + fragmentName);
+            }
+            writer.queue.add(Item.END);
+            writer.queue.add(Item.STOP);
+        }
+    }
+
+    /**
+     * Attend la fin de toutes les écritures et renvoie, pour chaque fragment,
+     * les sous-serveurs de sa chaîne qui l'ont reçu en entier.
+     */
+    public Map<String, List<SubServerInfo>> finish() throws IOException {
+        Map<String, List<SubServerInfo>> storedReplicas = new LinkedHashMap<>();
+        List<Writer> all = new ArrayList<>(writers.values());
+        all.addAll(streamWriters);
+        for (Writer writer : all) {
+            writer.queue.add(Item.STOP);
+        }
+        for (Writer writer : all) {
+            try {
+                writer.future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Envoi interrompu");
+            } catch (ExecutionException e) {
+                System.err.println("Erreur du thread d'envoi vers " + writer.target + " : " + e.getCause());
+            }
+            storedReplicas.putAll(writer.storedReplicas);
+        }
+        writers.clear();
+        streamWriters.clear();
+        byte[] buffer;
+        while ((buffer = freeBuffers.poll()) != null) {
+            pool.give(buffer);
+        }
+        takenBuffers = 0;
+        return storedReplicas;
+    }
+
+    private byte[] takeBuffer() throws InterruptedIOException {
+        byte[] buffer = freeBuffers.poll();
+        if (buffer != null) {
+            return buffer;
+        } else if (takenBuffers < bufferCount) {
+            takenBuffers++;
+            return pool.take();
+        }
+        try {
+            return freeBuffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Envoi interrompu");
+        }
+    }
+
+    private class Chunk {
+        final byte[] data;
+        final int length;
+
+        Chunk(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        void release() {
+            freeBuffers.add(data);
+        }
+    }
+
+    private static class Item {
+        static final Item END = new Item(null, 0, null, 0, null);
+        static final Item STOP = new Item(null, 0, null, 0, null);
+
+        final String fragmentName;
+        final long size;
+        final List<SubServerInfo> candidates;
+        final int replicationFactor;
+        final Chunk chunk;
+
+        private Item(String fragmentName, long size, List<SubServerInfo> candidates, int replicationFactor,
+                Chunk chunk) {
+            this.fragmentName = fragmentName;
+            this.size = size;
+            this.candidates = candidates;
+            this.replicationFactor = replicationFactor;
+            this.chunk = chunk;
+        }
+
+        static Item start(String fragmentName, long size, List<SubServerInfo> candidates, int replicationFactor) {
+            return new Item(fragmentName, size, candidates, replicationFactor, null);
+        }
+
+        static Item data(Chunk chunk) {
+            return new Item(null, 0, null, 0, chunk);
+        }
+    }
+
+    private class Writer implements Runnable {
+        final SubServerInfo target;
+        final BlockingQueue<Item> queue = new LinkedBlockingQueue<>();
+        final Map<String, List<SubServerInfo>> storedReplicas = new LinkedHashMap<>(); // Lue après la fin du thread
+        final Future<?> future;
+
+        Writer(SubServerInfo target) {
+            this.target = target;
+            this.future = WRITERS.submit(this);
+        }
+
+        @Override
+        public void run() {
+            Socket socket = null;
+            DataOutputStream dos = null;
+            SubServerInfo head = null;
+            String fragmentName = null;
+            Checksums checksums = null;
+            boolean failed = false;
+            int links = 1; // Maillons de la chaîne du fragment en cours
+            boolean inFlight = false; // Fragment commencé et pas encore acquitté, pour Metrics
+            long fragmentStart = 0;
+            long fragmentBytes = 0;
+
+            try {
+                while (true) {
+                    Item item = queue.take();
+                    if (item == Item.STOP) {
+                        break;
+                    } else if (item.chunk != null) {
+                        try {
+                            if (!failed) {
+                                DataTimeout.watch(socket, links);
+                                try {
+                                    dos.write(item.chunk.data, 0, item.chunk.length);
+                                } finally {
+                                    DataTimeout.done(socket);
+                                }
+                                checksums.update(item.chunk.data, 0, item.chunk.length);
+                                fragmentBytes += item.chunk.length;
+                            }
+                        } catch (IOException e) {
+                            failed = true;
+                            System.err.println("Erreur d'envoi de " + fragmentName + " vers " + head);
+                        } finally {
+                            item.chunk.release();
+                        }
+                    } else if (item == Item.END) {
+                        boolean stored = false;
+                        try {
+                            if (!failed) {
+                                // Chaque maillon compare ces sommes à celles des octets qu'il a reçus
+                                DataTimeout.watch(socket, links);
+                                try {
+                                    Checksums.write(dos, checksums.finish());
+                                    dos.flush();
+                                } finally {
+                                    DataTimeout.done(socket);
+                                }
+                                // Réponse attendue au plus data.timeout_ms après la fin de la chaîne en aval
+                                DataInputStream dis = new DataInputStream(socket.getInputStream());
+                                if ("OK".equals(dis.readUTF())) {
+                                    List<SubServerInfo> replicas = new ArrayList<>();
+                                    replicas.add(head);
+                                    replicas.addAll(SubServerInfo.readList(dis));
+                                    storedReplicas.put(fragmentName, replicas);
+                                    stored = true;
+                                    Metrics.trace("Fragment " + fragmentName + " stocké sur " + replicas);
+                                }
+                            }
+                        } catch (IOException e) {
+                            System.err.println("Erreur d'envoi de " + fragmentName + " vers " + head);
+                        } finally {
+                            closeQuietly(socket);
+                            socket = null;
+                            Metrics.decrement("envoi.fragments_en_cours");
+                            inFlight = false;
+                            Metrics.add(head, "octets_envoyes", fragmentBytes);
+                            Metrics.timer("sous-serveur." + head + ".STORE_CHAIN").record(fragmentStart, stored);
+                        }
+                    } else {
+                        fragmentName = item.fragmentName;
+                        checksums = new Checksums();
+                        failed = true;
+                        Metrics.increment("envoi.fragments_en_cours");
+                        inFlight = true;
+                        fragmentStart = System.nanoTime();
+                        fragmentBytes = 0;
+                        // Le premier candidat joignable devient la tête de la chaîne
+                        for (int i = 0; i < item.candidates.size() && failed; i++) {
+                            head = item.candidates.get(i);
+                            try {
+                                socket = new Socket();
+                                socket.connect(new InetSocketAddress(head.host, head.port), CONNECT_TIMEOUT_MILLIS);
+                                links = item.replicationFactor;
+                                DataTimeout.configure(socket, links);
+                                dos = new DataOutputStream(
+                                        new BufferedOutputStream(socket.getOutputStream(), chunkSize));
+                                dos.writeUTF("STORE_CHAIN");
+                                dos.writeUTF(fragmentName);
+                                dos.writeLong(item.size);
+                                dos.writeInt(item.replicationFactor - 1);
+                                SubServerInfo.writeList(dos, item.candidates.subList(i + 1, item.candidates.size()));
+                                failed = false;
+                                if (i > 0) {
+                                    Metrics.increment("envoi.basculements"); // Tête de chaîne remplacée
+                                }
+                            } catch (IOException e) {
+                                System.err.println("Sous-serveur inaccessible : " + head);
+                                closeQuietly(socket);
+                                socket = null;
+                            }
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeQuietly(socket);
+                if (inFlight) {
+                    Metrics.decrement("envoi.fragments_en_cours");
+                }
+                // Rendre les tampons encore en attente pour ne pas bloquer le lecteur
+                Item item;
+                while ((item = queue.poll()) != null) {
+                    if (item.chunk != null) {
+                        item.chunk.release();
+                    }
+                }
+            }
+        }
+
+        private void closeQuietly(Socket socket) {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
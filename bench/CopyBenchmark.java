@@ -0,0 +1,115 @@
+package bench;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Mesure la copie d'un fragment selon la taille des morceaux lus à chaque
+ * tour ({@code chunk_size} pour le relais du serveur principal).
+ *
+ * - {@code streamCopy} : boucle de copie par un tampon {@code byte[]}, comme
+ *   le relais des envois vers les sous-serveurs ;
+ * - {@code streamCopyWithChecksums} : la même boucle avec les sommes CRC32C
+ *   calculées au passage, comme {@code UploadPipeline} ;
+ * - {@code transferTo} : copie par le noyau, comme l'envoi d'un fragment par
+ *   un sous-serveur ({@code FileChannel.transferTo}), qui ne dépend pas de
+ *   {@code chunk_size}.
+ *
+ * Les fichiers sont dans le cache du système : c'est le coût des copies en
+ * mémoire qui est mesuré, pas celui du disque.
+ *
+ * Lancement : java -jar target/benchmarks.jar CopyBenchmark -p chunkSize=1024,65536
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CopyBenchmark {
+    private static final MethodHandle NEW_CHECKSUMS = Repo.constructor("Checksums");
+    private static final MethodHandle UPDATE_CHECKSUMS = Repo.virtualMethod("Checksums", "update", void.class,
+            byte[].class, int.class, int.class);
+    private static final MethodHandle FINISH_CHECKSUMS = Repo.virtualMethod("Checksums", "finish", int[].class);
+
+    /** Taille d'un fragment copié. */
+    @Param({"16777216"})
+    public int fragmentSize;
+
+    /** Taille du tampon de la boucle de copie ; 1024 est la valeur de chunk_size dans config.txt. */
+    @Param({"1024", "8192", "65536"})
+    public int chunkSize;
+
+    private Path directory;
+    private File source;
+    private File destination;
+    private byte[] buffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("copie");
+        source = directory.resolve("fragment.part0").toFile();
+        destination = directory.resolve("copie.part0").toFile();
+        byte[] data = new byte[fragmentSize];
+        new Random(42).nextBytes(data);
+        Files.write(source.toPath(), data);
+        buffer = new byte[chunkSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public long streamCopy() throws IOException {
+        long copied = 0;
+        try (InputStream in = new FileInputStream(source); OutputStream out = new FileOutputStream(destination)) {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+                copied += bytesRead;
+            }
+        }
+        return copied;
+    }
+
+    @Benchmark
+    public int[] streamCopyWithChecksums() throws Throwable {
+        Object checksums = NEW_CHECKSUMS.invoke();
+        try (InputStream in = new FileInputStream(source); OutputStream out = new FileOutputStream(destination)) {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                UPDATE_CHECKSUMS.invoke(checksums, buffer, 0, bytesRead);
+                out.write(buffer, 0, bytesRead);
+            }
+        }
+        return (int[]) FINISH_CHECKSUMS.invoke(checksums);
+    }
+
+    @Benchmark
+    public long transferTo() throws IOException {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(destination.toPath(), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            long size = in.size();
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            return position;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Mesure le traitement d'un fragment par le serveur principal, sans réseau :
+ * sommes de contrôle CRC32C par morceau de 64 Ko, compression et
+ * décompression par trames, choix des répliques.
+ *
+ * Lancement : java -jar target/benchmarks.jar FragmentBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FragmentBenchmark {
+    private static final MethodHandle CHECKSUMS = Repo.staticMethod("Checksums", "compute", int[].class,
+            byte[].class, int.class, int.class);
+    private static final MethodHandle COMPRESS = Repo.staticMethod("Compression", "compress", int[].class,
+            DataInputStream.class, long.class, OutputStream.class);
+    private static final MethodHandle DECODER = Repo.constructor("Compression$Decoder", OutputStream.class,
+            long.class, long.class, long.class);
+    private static final MethodHandle SUB_SERVER = Repo.constructor("SubServerInfo", String.class, int.class);
+    private static final MethodHandle RANK = Repo.staticMethod("Placement", "rank", List.class, String.class,
+            List.class);
+
+    /** Taille du fragment mesuré. */
+    @Param({"1048576"})
+    public int fragmentSize;
+
+    /** Contenu du fragment : texte compressible (journal CSV) ou octets aléatoires. */
+    @Param({"texte", "aleatoire"})
+    public String content;
+
+    /** Nombre de sous-serveurs parmi lesquels les répliques sont choisies. */
+    @Param({"3", "32"})
+    public int subServerCount;
+
+    private byte[] fragment;
+    private byte[] compressed;
+    private List<Object> subServers;
+    private int fragmentNumber;
+
+    @Setup
+    public void setUp() throws Throwable {
+        fragment = new byte[fragmentSize];
+        Random random = new Random(42);
+        if ("texte".equals(content)) {
+            StringBuilder lines = new StringBuilder();
+            while (lines.length() < fragmentSize) {
+                lines.append(1_700_000_000L + lines.length()).append(",client-").append(random.nextInt(500))
+                        .append(",GET,/fichiers/").append(random.nextInt(10_000)).append(",200,")
+                        .append(random.nextInt(1 << 20)).append('\n');
+            }
+            byte[] text = lines.toString().getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(text, 0, fragment, 0, fragmentSize);
+        } else {
+            random.nextBytes(fragment);
+        }
+        compressed = compress();
+
+        subServers = new ArrayList<>();
+        for (int i = 0; i < subServerCount; i++) {
+            subServers.add(SUB_SERVER.invoke("127.0.0.1", 12346 + i));
+        }
+    }
+
+    @Benchmark
+    public int[] checksums() throws Throwable {
+        return (int[]) CHECKSUMS.invoke(fragment, 0, fragment.length);
+    }
+
+    @Benchmark
+    public byte[] compress() throws Throwable {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(fragment));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(fragment.length);
+        COMPRESS.invoke(in, (long) fragment.length, (OutputStream) out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public void decompress(Blackhole blackhole) throws Throwable {
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+                blackhole.consume(b);
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int length) {
+                blackhole.consume(data);
+            }
+        };
+        try (OutputStream decoder = (OutputStream) DECODER.invoke(sink, 0L, 0L, (long) fragment.length)) {
+            decoder.write(compressed, 0, compressed.length);
+        }
+    }
+
+    @Benchmark
+    public Object placement() throws Throwable {
+        return RANK.invoke("fichier.bin.part" + (fragmentNumber++ & 1023), subServers);
+    }
+}
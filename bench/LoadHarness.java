@@ -0,0 +1,465 @@
+package bench;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Mesure de bout en bout : démarre le serveur principal dans ce processus et
+ * des sous-serveurs sur des ports locaux, puis envoie un mélange de PUT, GET,
+ * LS et RM depuis plusieurs clients en même temps. Affiche le débit et les
+ * latences p50/p99 de chaque commande.
+ *
+ * Les sous-serveurs sont lancés dans des processus à part : leur état (index
+ * des fragments, limites de transferts) est propre à chaque JVM, comme en
+ * production. Tout est rangé dans un répertoire de travail, effacé à la fin
+ * sauf s'il a été choisi avec {@code dir=}.
+ *
+ * Lancement, après mvn -Pbench package :
+ *   java -cp target/benchmarks.jar bench.LoadHarness clients=16 duration=60 mix=put=20,get=70,ls=5,rm=5
+ *
+ * Paramètres (cle=valeur) :
+ *   subservers  nombre de sous-serveurs (3)
+ *   clients     nombre de clients simultanés (8)
+ *   warmup      durée de chauffe non mesurée, en secondes (5)
+ *   duration    durée mesurée, en secondes (30)
+ *   size        taille des fichiers envoyés, en octets (1048576)
+ *   files       nombre de fichiers de chaque client (4)
+ *   mix         poids des commandes (put=30,get=50,ls=10,rm=10)
+ *   codec       compression demandée par les PUT : aucune ou deflate (aucune)
+ *   port        port du serveur principal ; les sous-serveurs prennent les suivants (22345)
+ *   dir         répertoire de travail (répertoire temporaire)
+ *   config      configuration de départ (config.txt)
+ *   config.*    remplace une clé de la configuration, par exemple config.chunk_size=65536
+ */
+public class LoadHarness {
+    private static final String HOST = "127.0.0.1";
+    private static final List<String> COMMANDS = List.of("PUT", "GET", "LS", "RM");
+    private static final long START_TIMEOUT_MILLIS = 15_000;
+
+    private final int port;
+    private final int clientCount;
+    private final byte[] payload;
+    private final String codec;
+    private final int fileCount;
+    private final Set<String> stored = ConcurrentHashMap.newKeySet();
+    private final int[] weights = new int[COMMANDS.size()];
+    private int totalWeight;
+
+    private LoadHarness(Map<String, String> options) {
+        port = Integer.parseInt(options.getOrDefault("port", "22345"));
+        clientCount = Integer.parseInt(options.getOrDefault("clients", "8"));
+        codec = options.getOrDefault("codec", "aucune");
+        payload = new byte[Integer.parseInt(options.getOrDefault("size", "1048576"))];
+        new Random(42).nextBytes(payload);
+        fileCount = Integer.parseInt(options.getOrDefault("files", "4"));
+        for (String weight : options.getOrDefault("mix", "put=30,get=50,ls=10,rm=10").split(",")) {
+            String[] parts = weight.split("=", 2);
+            int command = COMMANDS.indexOf(parts[0].trim().toUpperCase(Locale.ROOT));
+            if (command < 0 || parts.length != 2) {
+                throw new IllegalArgumentException("Mélange invalide : " + weight);
+            }
+            weights[command] = Integer.parseInt(parts[1].trim());
+            totalWeight += weights[command];
+        }
+        if (totalWeight <= 0) {
+            throw new IllegalArgumentException("Mélange vide");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            String[] parts = arg.split("=", 2);
+            if (parts.length != 2) {
+                System.err.println("Paramètre invalide : " + arg + " (attendu cle=valeur)");
+                System.exit(2);
+            }
+            options.put(parts[0], parts[1]);
+        }
+
+        boolean temporary = !options.containsKey("dir");
+        Path workDir = temporary ? Files.createTempDirectory("charge")
+                : Files.createDirectories(Path.of(options.get("dir")));
+        int port = Integer.parseInt(options.getOrDefault("port", "22345"));
+        int subServerCount = Integer.parseInt(options.getOrDefault("subservers", "3"));
+        Path configFile = writeConfig(workDir, options, port, subServerCount);
+
+        List<Process> subServers = new ArrayList<>();
+        PrintStream console = System.out;
+        int exitCode = 1;
+        try {
+            for (int i = 1; i <= subServerCount; i++) {
+                subServers.add(startSubServer(workDir, configFile, port + i));
+            }
+            for (int i = 1; i <= subServerCount; i++) {
+                awaitPort(port + i);
+            }
+
+            // Les journaux du serveur principal vont dans un fichier pour ne pas se mêler au rapport
+            PrintStream serverLog = new PrintStream(new FileOutputStream(workDir.resolve("main.log").toFile()),
+                    true, StandardCharsets.UTF_8);
+            System.setOut(serverLog);
+            System.setErr(serverLog);
+            System.setProperty("config.file", configFile.toString());
+            startMainServer();
+            awaitPort(port);
+
+            LoadHarness harness = new LoadHarness(options);
+            console.println("Répertoire de travail : " + workDir);
+            console.println(subServerCount + " sous-serveurs, " + harness.clientCount + " clients, fichiers de "
+                    + harness.payload.length + " octets");
+            harness.preload();
+            Report report = harness.run(Long.parseLong(options.getOrDefault("warmup", "5")) * 1000,
+                    Long.parseLong(options.getOrDefault("duration", "30")) * 1000);
+            report.print(console, harness.payload.length);
+            exitCode = 0;
+        } catch (Exception e) {
+            console.println("Échec de la mesure : " + e);
+            console.println("Journaux dans " + workDir);
+            temporary = false;
+        } finally {
+            for (Process subServer : subServers) {
+                subServer.destroy();
+            }
+            for (Process subServer : subServers) {
+                subServer.waitFor(5, TimeUnit.SECONDS);
+            }
+            if (temporary) {
+                deleteRecursively(workDir);
+            }
+        }
+        // Le serveur principal n'a pas de commande d'arrêt
+        System.exit(exitCode);
+    }
+
+    private static Path writeConfig(Path workDir, Map<String, String> options, int port, int subServerCount)
+            throws IOException {
+        Map<String, String> config = new LinkedHashMap<>();
+        Path base = Path.of(options.getOrDefault("config", "config.txt"));
+        if (Files.exists(base)) {
+            for (String line : Files.readAllLines(base, StandardCharsets.UTF_8)) {
+                String[] parts = line.split("=", 2);
+                if (parts.length == 2) {
+                    config.put(parts[0].trim(), parts[1].trim());
+                }
+            }
+        }
+        config.keySet().removeIf(key -> key.startsWith("sub_server.") && !key.equals("sub_server.max_transfers"));
+        config.putIfAbsent("chunk_size", "1024");
+        config.putIfAbsent("block_size", "67108864");
+        config.put("main_server.port", String.valueOf(port));
+        config.put("main_server.directory", workDir.resolve("server_directory").toString());
+        config.put("sub_server.directory", workDir.resolve("server_directory").toString());
+        config.put("sub_server.count", String.valueOf(subServerCount));
+        for (int i = 1; i <= subServerCount; i++) {
+            config.put("sub_server." + i + ".host", HOST);
+            config.put("sub_server." + i + ".port", String.valueOf(port + i));
+        }
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if (option.getKey().startsWith("config.")) {
+                config.put(option.getKey().substring("config.".length()), option.getValue());
+            }
+        }
+
+        Path configFile = workDir.resolve("config.txt");
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> entry : config.entrySet()) {
+            text.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        Files.writeString(configFile, text, StandardCharsets.UTF_8);
+        return configFile;
+    }
+
+    private static Process startSubServer(Path workDir, Path configFile, int port) throws IOException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        return new ProcessBuilder(java, "-Dconfig.file=" + configFile, "-Dfile.encoding=UTF-8",
+                "-cp", System.getProperty("java.class.path"), "SubServer", String.valueOf(port))
+                .redirectErrorStream(true)
+                .redirectOutput(workDir.resolve("sub_" + port + ".log").toFile())
+                .start();
+    }
+
+    private static void startMainServer() {
+        Thread mainServer = new Thread(() -> {
+            try {
+                Class.forName("MainServer").getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace();
+            }
+        }, "main-server");
+        mainServer.setDaemon(true);
+        mainServer.start();
+    }
+
+    private static void awaitPort(int port) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(HOST, port), 500);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Rien n'écoute sur le port " + port, e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Chaque client a ses propres fichiers : deux envois du même nom en même
+     * temps se disputeraient ses fragments sur les sous-serveurs.
+     */
+    private String fileName(int client, int file) {
+        return "charge-" + client + "-" + file + ".bin";
+    }
+
+    // Chaque fichier est envoyé une fois : les GET et RM trouvent des fichiers dès le début
+    private void preload() throws IOException {
+        for (int client = 0; client < clientCount; client++) {
+            for (int file = 0; file < fileCount; file++) {
+                String name = fileName(client, file);
+                String response = put(name);
+                if (!"OK".equals(response)) {
+                    throw new IOException("Envoi initial de " + name + " : " + response);
+                }
+                stored.add(name);
+            }
+        }
+    }
+
+    private Report run(long warmupMillis, long durationMillis) throws InterruptedException, ExecutionException {
+        long measureStart = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        long measureEnd = measureStart + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        ExecutorService clients = Executors.newFixedThreadPool(clientCount);
+        List<Future<Report>> results = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            int client = i;
+            results.add(clients.submit(() -> runClient(client, new Random(client), measureStart, measureEnd)));
+        }
+        Report report = new Report(TimeUnit.NANOSECONDS.toMillis(measureEnd - measureStart));
+        for (Future<Report> result : results) {
+            report.merge(result.get());
+        }
+        clients.shutdown();
+        return report;
+    }
+
+    private Report runClient(int client, Random random, long measureStart, long measureEnd) {
+        Report report = new Report(0);
+        long now;
+        while ((now = System.nanoTime()) < measureEnd) {
+            int command = pickCommand(random);
+            String name = fileName(client, random.nextInt(fileCount));
+            if ((command == 1 || command == 3) && !stored.contains(name)) {
+                command = 0; // Fichier supprimé : il est renvoyé pour que les GET aient de quoi lire
+            }
+
+            String response;
+            try {
+                switch (COMMANDS.get(command)) {
+                    case "PUT":
+                        response = put(name);
+                        if ("OK".equals(response)) {
+                            stored.add(name);
+                        }
+                        break;
+                    case "GET":
+                        response = get(name);
+                        break;
+                    case "LS":
+                        response = list();
+                        break;
+                    default:
+                        stored.remove(name);
+                        response = remove(name);
+                        break;
+                }
+            } catch (IOException e) {
+                response = "Échec : " + e.getMessage();
+            }
+
+            long end = System.nanoTime();
+            if (now >= measureStart && end <= measureEnd) {
+                report.record(command, end - now, response);
+            }
+        }
+        return report;
+    }
+
+    private int pickCommand(Random random) {
+        int pick = random.nextInt(totalWeight);
+        for (int command = 0; command < weights.length; command++) {
+            pick -= weights[command];
+            if (pick < 0) {
+                return command;
+            }
+        }
+        return 0;
+    }
+
+    // Même protocole que Client.sendFileFrom
+    private String put(String name) throws IOException {
+        try (Socket socket = new Socket(HOST, port);
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+                     64 * 1024));
+             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+            dos.writeUTF("ENVOYER_DEPUIS");
+            dos.writeUTF(name);
+            dos.writeLong(payload.length);
+            dos.writeLong(System.nanoTime()); // Une nouvelle version à chaque envoi
+            dos.writeUTF(codec);
+            dos.writeLong(0);
+            dos.flush();
+            String admission = dis.readUTF();
+            if (!"OK".equals(admission)) {
+                return admission;
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(payload, 0, payload.length);
+            dos.write(payload);
+            dos.writeInt((int) crc.getValue());
+            dos.flush();
+            return dis.readUTF();
+        }
+    }
+
+    // Même protocole que Client.receiveFileFrom ; le contenu est vérifié puis jeté
+    private String get(String name) throws IOException {
+        try (Socket socket = new Socket(HOST, port);
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream(),
+                     64 * 1024))) {
+            dos.writeUTF("RECEVOIR");
+            dos.writeUTF(name);
+            String status = dis.readUTF();
+            if (!"OK".equals(status)) {
+                return status.startsWith("OCCUPE") ? status : "Échec : " + dis.readUTF();
+            }
+            long remaining = dis.readLong();
+            byte[] buffer = new byte[64 * 1024];
+            CRC32C crc = new CRC32C();
+            while (remaining > 0) {
+                int bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    return "Échec : fin prématurée du flux";
+                }
+                crc.update(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+            return dis.readInt() == (int) crc.getValue() ? "OK" : "Échec : somme de contrôle";
+        }
+    }
+
+    private String list() throws IOException {
+        try (Socket socket = new Socket(HOST, port);
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+            dos.writeUTF("LISTER");
+            int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                dis.readUTF();
+            }
+            return "OK";
+        }
+    }
+
+    private String remove(String name) throws IOException {
+        try (Socket socket = new Socket(HOST, port);
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+            dos.writeUTF("RM");
+            dos.writeUTF(name);
+            return dis.readUTF();
+        }
+    }
+
+    /** Latences et réponses par commande. */
+    private static class Report {
+        private final long durationMillis;
+        private final long[][] latencies = new long[COMMANDS.size()][];
+        private final int[] counts = new int[COMMANDS.size()];
+        private final int[] refused = new int[COMMANDS.size()];
+        private final int[] failed = new int[COMMANDS.size()];
+        private String firstFailure; // Affichée avec le rapport pour comprendre les échecs
+
+        Report(long durationMillis) {
+            this.durationMillis = durationMillis;
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new long[1024];
+            }
+        }
+
+        void record(int command, long nanos, String response) {
+            if (response.startsWith("OCCUPE")) {
+                refused[command]++;
+                return;
+            } else if (!"OK".equals(response)) {
+                failed[command]++;
+                if (firstFailure == null) {
+                    firstFailure = COMMANDS.get(command) + " : " + response;
+                }
+                return;
+            }
+            if (counts[command] == latencies[command].length) {
+                latencies[command] = Arrays.copyOf(latencies[command], counts[command] * 2);
+            }
+            latencies[command][counts[command]++] = nanos;
+        }
+
+        void merge(Report other) {
+            for (int command = 0; command < latencies.length; command++) {
+                for (int i = 0; i < other.counts[command]; i++) {
+                    record(command, other.latencies[command][i], "OK");
+                }
+                refused[command] += other.refused[command];
+                failed[command] += other.failed[command];
+            }
+            if (firstFailure == null) {
+                firstFailure = other.firstFailure;
+            }
+        }
+
+        void print(PrintStream out, long fileSize) {
+            double seconds = durationMillis / 1000.0;
+            out.printf(Locale.ROOT, "%-4s %9s %10s %9s %10s %10s %10s %7s %7s%n", "", "réussies", "par s", "Mo/s",
+                    "p50 ms", "p99 ms", "max ms", "refus", "échecs");
+            for (int command = 0; command < latencies.length; command++) {
+                long[] sorted = Arrays.copyOf(latencies[command], counts[command]);
+                Arrays.sort(sorted);
+                boolean transfer = command <= 1; // PUT et GET transportent un fichier
+                out.printf(Locale.ROOT, "%-4s %9d %10.1f %9s %10.2f %10.2f %10.2f %7d %7d%n", COMMANDS.get(command),
+                        counts[command], counts[command] / seconds,
+                        transfer ? String.format(Locale.ROOT, "%.1f", counts[command] * fileSize / 1e6 / seconds)
+                                : "-",
+                        percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0),
+                        refused[command], failed[command]);
+            }
+            if (firstFailure != null) {
+                out.println("Premier échec : " + firstFailure);
+            }
+        }
+
+        private static double percentile(long[] sorted, double fraction) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(fraction * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+}
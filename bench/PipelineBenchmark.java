@@ -0,0 +1,168 @@
+package bench;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Mesure l'envoi d'un fichier par {@code UploadPipeline.sendFragment}, comme
+ * le fait le serveur principal : lecture du flux du client dans les tampons
+ * du pool, un thread d'écriture par tête de chaîne, sommes de contrôle et
+ * commande STORE_CHAIN sur une connexion locale par fragment.
+ *
+ * Les sous-serveurs sont remplacés par des puits sur des ports locaux : ils
+ * lisent la commande et les octets, puis acquittent sans rien écrire sur
+ * disque. C'est le coût du pipeline et des copies réseau locales qui est
+ * mesuré, pas celui du stockage ni de la réplication en aval.
+ *
+ * Lancement : java -jar target/benchmarks.jar PipelineBenchmark -p bufferCount=4,32
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+    private static final Class<?> BUFFER_POOL = Repo.type("BufferPool");
+    private static final MethodHandle NEW_BUFFER_POOL = Repo.constructor("BufferPool", int.class, int.class);
+    private static final MethodHandle NEW_PIPELINE = Repo.constructor("UploadPipeline", BUFFER_POOL, int.class);
+    private static final MethodHandle SEND_FRAGMENT = Repo.virtualMethod("UploadPipeline", "sendFragment",
+            void.class, DataInputStream.class, String.class, long.class, List.class, int.class);
+    private static final MethodHandle FINISH = Repo.virtualMethod("UploadPipeline", "finish", Map.class);
+    private static final MethodHandle SUB_SERVER = Repo.constructor("SubServerInfo", String.class, int.class);
+
+    /** Taille d'un fragment (block_size). */
+    @Param({"1048576"})
+    public int fragmentSize;
+
+    /** Fragments du fichier envoyé à chaque opération. */
+    @Param({"16"})
+    public int fragmentCount;
+
+    /** Taille des tampons du pool (chunk_size). */
+    @Param({"65536"})
+    public int chunkSize;
+
+    /** Tampons en vol par envoi (upload.buffer_count) : au-delà, la lecture du client attend. */
+    @Param({"4", "32"})
+    public int bufferCount;
+
+    /** Nombre de puits, têtes de chaîne des fragments à tour de rôle. */
+    @Param({"3"})
+    public int subServerCount;
+
+    private byte[] file;
+    private Object pool;
+    private List<ServerSocket> sinks;
+    private List<List<Object>> candidates;
+
+    @Setup
+    public void setUp() throws Throwable {
+        file = new byte[fragmentSize * fragmentCount];
+        new Random(42).nextBytes(file);
+        pool = NEW_BUFFER_POOL.invoke(chunkSize, 4 * bufferCount);
+
+        sinks = new ArrayList<>();
+        List<Object> subServers = new ArrayList<>();
+        for (int i = 0; i < subServerCount; i++) {
+            ServerSocket sink = new ServerSocket();
+            sink.bind(new InetSocketAddress("127.0.0.1", 0));
+            sinks.add(sink);
+            subServers.add(SUB_SERVER.invoke("127.0.0.1", sink.getLocalPort()));
+            Thread acceptor = new Thread(() -> accept(sink), "puits-" + sink.getLocalPort());
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        // Chaque fragment a sa tête de chaîne, comme avec le placement par hachage
+        candidates = new ArrayList<>();
+        for (int i = 0; i < fragmentCount; i++) {
+            List<Object> ranking = new ArrayList<>();
+            for (int j = 0; j < subServerCount; j++) {
+                ranking.add(subServers.get((i + j) % subServerCount));
+            }
+            candidates.add(ranking);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (ServerSocket sink : sinks) {
+            sink.close();
+        }
+    }
+
+    @Benchmark
+    public Object upload() throws Throwable {
+        Object pipeline = NEW_PIPELINE.invoke(pool, bufferCount);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(file));
+        for (int i = 0; i < fragmentCount; i++) {
+            SEND_FRAGMENT.invoke(pipeline, in, "fichier.bin.part" + i, (long) fragmentSize, candidates.get(i), 1);
+        }
+        Map<?, ?> stored = (Map<?, ?>) FINISH.invoke(pipeline);
+        if (stored.size() != fragmentCount) {
+            throw new IllegalStateException(stored.size() + "/" + fragmentCount + " fragments acquittés");
+        }
+        return stored;
+    }
+
+    private static void accept(ServerSocket sink) {
+        while (!sink.isClosed()) {
+            try {
+                Socket socket = sink.accept();
+                Thread connection = new Thread(() -> drain(socket), "puits");
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                return; // Puits fermé à la fin de la mesure
+            }
+        }
+    }
+
+    // Même protocole que SubServer pour STORE_CHAIN, sans stockage ni relais
+    private static void drain(Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+             DataOutputStream out = new DataOutputStream(s.getOutputStream())) {
+            while (true) {
+                try {
+                    in.readUTF(); // STORE_CHAIN
+                } catch (EOFException e) {
+                    return;
+                }
+                in.readUTF();
+                long remaining = in.readLong();
+                in.readInt();
+                int candidateCount = in.readInt();
+                for (int i = 0; i < candidateCount; i++) {
+                    in.readUTF();
+                    in.readInt();
+                }
+                byte[] buffer = new byte[64 * 1024];
+                while (remaining > 0) {
+                    int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (n == -1) {
+                        return;
+                    }
+                    remaining -= n;
+                }
+                int checksumCount = in.readInt();
+                in.skipBytes(4 * checksumCount);
+                out.writeUTF("OK");
+                out.writeInt(0); // Aucune réplique en aval
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Connexion fermée par le pipeline
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Accès aux classes du projet, qui sont dans le paquet par défaut.
+ *
+ * JMH refuse les mesures placées dans le paquet par défaut, et Java interdit
+ * d'importer une classe de ce paquet depuis un autre : les mesures appellent
+ * donc le code du projet par des {@link MethodHandle}. Gardés dans des champs
+ * {@code static final}, ils sont intégrés par le compilateur JIT comme un appel
+ * direct.
+ */
+final class Repo {
+    private Repo() {
+    }
+
+    static Class<?> type(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Classe du projet introuvable : " + className, e);
+        }
+    }
+
+    static MethodHandle staticMethod(String className, String name, Class<?> returnType, Class<?>... parameters) {
+        Class<?> owner = type(className);
+        try {
+            return lookup(owner).findStatic(owner, name, MethodType.methodType(returnType, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Méthode introuvable : " + className + "." + name, e);
+        }
+    }
+
+    static MethodHandle virtualMethod(String className, String name, Class<?> returnType, Class<?>... parameters) {
+        Class<?> owner = type(className);
+        try {
+            return lookup(owner).findVirtual(owner, name, MethodType.methodType(returnType, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Méthode introuvable : " + className + "." + name, e);
+        }
+    }
+
+    static MethodHandle constructor(String className, Class<?>... parameters) {
+        Class<?> owner = type(className);
+        try {
+            return lookup(owner).findConstructor(owner, MethodType.methodType(void.class, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Constructeur introuvable : " + className, e);
+        }
+    }
+
+    // Tout est dans le module anonyme : les méthodes privées sont accessibles aussi
+    private static MethodHandles.Lookup lookup(Class<?> owner) throws IllegalAccessException {
+        return MethodHandles.privateLookupIn(owner, MethodHandles.lookup());
+    }
+}
@@ -0,0 +1,54 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.CRC32C;
+import org.junit.jupiter.api.Test;
+
+class ChecksumsTest {
+    @Test
+    void oneChecksumPerChunk() {
+        byte[] data = content(2 * Checksums.CHUNK_SIZE + 100);
+        int[] values = Checksums.compute(data, 0, data.length);
+
+        assertEquals(3, values.length);
+        for (int i = 0; i < values.length; i++) {
+            CRC32C crc = new CRC32C();
+            int start = i * Checksums.CHUNK_SIZE;
+            crc.update(data, start, Math.min(Checksums.CHUNK_SIZE, data.length - start));
+            assertEquals((int) crc.getValue(), values[i], "morceau " + i);
+        }
+    }
+
+    @Test
+    void sameChecksumsWhateverTheWriteSizes() {
+        byte[] data = content(5 * Checksums.CHUNK_SIZE + 17);
+        int[] expected = Checksums.compute(data, 0, data.length);
+
+        // Des écritures à cheval sur les morceaux, comme dans les boucles de copie
+        Checksums fromArrays = new Checksums();
+        Checksums fromBuffers = new Checksums();
+        Random random = new Random(3);
+        for (int offset = 0; offset < data.length; ) {
+            int length = Math.min(1 + random.nextInt(100_000), data.length - offset);
+            fromArrays.update(data, offset, length);
+            fromBuffers.update(ByteBuffer.wrap(data, offset, length));
+            offset += length;
+        }
+
+        assertArrayEquals(expected, fromArrays.finish());
+        assertArrayEquals(expected, fromBuffers.finish());
+    }
+
+    @Test
+    void noChecksumForAnEmptyFragment() {
+        assertEquals(0, Checksums.compute(new byte[0], 0, 0).length);
+    }
+
+    private static byte[] content(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,71 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class CompressionTest {
+    @Test
+    void decodesWholeFragment() throws IOException {
+        byte[] original = content(3 * Compression.INDEX_SPACING + 12345);
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        Compression.compress(new DataInputStream(new ByteArrayInputStream(original)), original.length, stored);
+
+        assertArrayEquals(original, decode(stored.toByteArray(), 0, 0, original.length));
+    }
+
+    @Test
+    void decodesRangeFromRecordedFramePositions() throws IOException {
+        byte[] original = content(3 * Compression.INDEX_SPACING + 12345);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] frames = Compression.compress(new DataInputStream(new ByteArrayInputStream(original)),
+                original.length, out);
+        byte[] stored = out.toByteArray();
+        assertEquals(Compression.indexLength(original.length), frames.length);
+
+        // Seules les trames des tranches 1 et 2 sont lues pour une plage qui commence dans la 1
+        long from = Compression.INDEX_SPACING + 1000;
+        long to = 2 * Compression.INDEX_SPACING + 5;
+        byte[] frameBytes = Arrays.copyOfRange(stored, frames[1], frames[3]);
+        byte[] decoded = decode(frameBytes, Compression.INDEX_SPACING, from, to);
+
+        assertArrayEquals(Arrays.copyOfRange(original, (int) from, (int) to), decoded);
+    }
+
+    @Test
+    void keepsIncompressibleFramesAsIs() throws IOException {
+        byte[] original = new byte[Compression.FRAME_SIZE + 10];
+        new Random(5).nextBytes(original);
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        Compression.compress(new DataInputStream(new ByteArrayInputStream(original)), original.length, stored);
+
+        assertEquals(original.length + 2 * 8, stored.size(), "deux trames gardées telles quelles");
+        assertArrayEquals(original, decode(stored.toByteArray(), 0, 0, original.length));
+    }
+
+    private static byte[] decode(byte[] stored, long start, long from, long to) throws IOException {
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        try (OutputStream decoder = new Compression.Decoder(decoded, start, from, to)) {
+            decoder.write(stored, 0, stored.length);
+        }
+        return decoded.toByteArray();
+    }
+
+    // Texte de journal : compressible, mais pas uniforme
+    private static byte[] content(int length) {
+        StringBuilder lines = new StringBuilder();
+        Random random = new Random(length);
+        while (lines.length() < length) {
+            lines.append(lines.length()).append(",client-").append(random.nextInt(500)).append(",GET,/fichiers/")
+                    .append(random.nextInt(10_000)).append('\n');
+        }
+        return lines.substring(0, length).getBytes(StandardCharsets.US_ASCII);
+    }
+}
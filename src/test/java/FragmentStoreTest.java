@@ -0,0 +1,42 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FragmentStoreTest {
+    @TempDir
+    File directory;
+
+    @Test
+    void deletesOnlyTheFragmentsOfTheNamedFile() throws IOException {
+        FragmentStore store = new FileStore(directory);
+        // "x" est un préfixe de "x.party" : effacer l'un ne doit pas toucher l'autre
+        for (String name : List.of("x.part0", "x.part1", "x.part12", "x.part3.z", "x.part4.s2", "x.party.part0",
+                "x.party.part1.z", "x.part0.sha256")) {
+            store(store, name);
+        }
+
+        assertEquals(Set.of("x.part0", "x.part1", "x.part12", "x.part3.z", "x.part4.s2"),
+                new TreeSet<>(store.fragmentsOf("x")));
+        assertEquals(Set.of("x.party.part0", "x.party.part1.z"), new TreeSet<>(store.fragmentsOf("x.party")));
+
+        for (String fragment : store.fragmentsOf("x")) {
+            assertTrue(store.delete(fragment));
+        }
+        assertEquals(Set.of("x.party.part0", "x.party.part1.z", "x.part0.sha256"), new TreeSet<>(store.names()));
+    }
+
+    private static void store(FragmentStore store, String name) throws IOException {
+        byte[] data = name.getBytes();
+        FragmentStore.Writer writer = store.create(name, data.length);
+        writer.write(ByteBuffer.wrap(data), 0);
+        writer.commit(Checksums.compute(data, 0, data.length));
+    }
+}
@@ -0,0 +1,143 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MetadataCatalogTest {
+    private static final List<SubServerInfo> REPLICAS = List.of(new SubServerInfo("127.0.0.1", 12346),
+            new SubServerInfo("127.0.0.1", 12347));
+
+    @TempDir
+    File directory;
+
+    @Test
+    void replaysJournalUpToTornRecord() throws IOException {
+        File journal = new File(directory, "catalog.journal");
+        MetadataCatalog catalog = new MetadataCatalog(journal);
+        catalog.put(entry("a.txt", 10));
+        catalog.put(entry("b.txt", 20));
+        catalog.sync();
+        long intact = journal.length();
+        catalog.put(entry("c.txt", 30));
+        catalog.sync();
+        // Arrêt brutal pendant l'écriture du dernier enregistrement
+        try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+            file.setLength(journal.length() - 5);
+        }
+
+        MetadataCatalog replayed = new MetadataCatalog(journal);
+
+        assertEquals(10, replayed.get("a.txt").size);
+        assertEquals(20, replayed.get("b.txt").size);
+        assertEquals(REPLICAS.size(), replayed.get("b.txt").fragments.get(0).replicas.size());
+        assertNull(replayed.get("c.txt"));
+        assertEquals(intact, journal.length(), "enregistrement incomplet tronqué");
+    }
+
+    @Test
+    void replaysJournalUpToCorruptRecord() throws IOException {
+        File journal = new File(directory, "catalog.journal");
+        MetadataCatalog catalog = new MetadataCatalog(journal);
+        catalog.put(entry("a.txt", 10));
+        catalog.sync();
+        long intact = journal.length();
+        catalog.put(entry("b.txt", 20));
+        catalog.sync();
+        // Un octet du dernier enregistrement abîmé : son CRC ne correspond plus
+        try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+            file.seek(intact + 6);
+            int value = file.read();
+            file.seek(intact + 6);
+            file.write(value ^ 0xFF);
+        }
+
+        MetadataCatalog replayed = new MetadataCatalog(journal);
+
+        assertEquals(10, replayed.get("a.txt").size);
+        assertNull(replayed.get("b.txt"));
+        assertEquals(intact, journal.length());
+    }
+
+    @Test
+    void compactsJournalAtRuntime() throws IOException {
+        File journal = new File(directory, "catalog.journal");
+        MetadataCatalog catalog = new MetadataCatalog(journal);
+        catalog.put(entry("a.txt", 0));
+        catalog.sync();
+        long oneRecord = journal.length();
+        for (int size = 1; size <= 500; size++) {
+            catalog.put(entry("a.txt", size));
+            catalog.sync();
+        }
+        long version = catalog.get("a.txt").version;
+
+        assertTrue(journal.length() < 200 * oneRecord, "journal réécrit : " + journal.length() + " octets");
+        MetadataCatalog replayed = new MetadataCatalog(journal);
+        assertEquals(500, replayed.get("a.txt").size);
+        assertEquals(version, replayed.get("a.txt").version);
+    }
+
+    @Test
+    void returnsPrivateFragmentsThatTheNewVersionDrops() throws IOException {
+        File journal = new File(directory, "catalog.journal");
+        MetadataCatalog catalog = new MetadataCatalog(journal);
+        SubServerInfo first = REPLICAS.get(0);
+        SubServerInfo second = REPLICAS.get(1);
+        catalog.put(new MetadataCatalog.FileEntry("a.txt", 20, List.of(
+                new MetadataCatalog.FragmentEntry("a.txt.part0", 10, REPLICAS),
+                new MetadataCatalog.FragmentEntry("a.txt.part1", 10, REPLICAS))));
+        catalog.addFragmentTombstone("a.txt.part0", List.of(second));
+
+        // Un seul bloc, gardé sur le second sous-serveur seulement
+        List<MetadataCatalog.FragmentEntry> orphans = catalog.put(new MetadataCatalog.FileEntry("a.txt", 10,
+                List.of(new MetadataCatalog.FragmentEntry("a.txt.part0", 10, List.of(second)))));
+
+        Map<String, List<SubServerInfo>> dropped = new HashMap<>();
+        for (MetadataCatalog.FragmentEntry orphan : orphans) {
+            dropped.put(orphan.name, orphan.replicas);
+        }
+        assertEquals(Map.of("a.txt.part0", List.of(first), "a.txt.part1", REPLICAS), dropped);
+        assertFalse(catalog.hasFragmentTombstone(second, "a.txt.part0"), "fragment réécrit, plus à effacer");
+
+        // Les pierres tombales des fragments survivent au redémarrage
+        catalog.addFragmentTombstone("a.txt.part1", REPLICAS);
+        catalog.clearFragmentTombstone("a.txt.part1", List.of(first));
+        catalog.sync();
+        MetadataCatalog replayed = new MetadataCatalog(journal);
+        assertEquals(List.of("a.txt.part1"), replayed.getFragmentTombstones(second));
+        assertTrue(replayed.getFragmentTombstones(first).isEmpty());
+        assertTrue(replayed.getTombstones(second).isEmpty(), "pas un effacement de fichier");
+    }
+
+    @Test
+    void returnsFragmentsOfAReplacedUpload() throws IOException {
+        MetadataCatalog catalog = new MetadataCatalog(new File(directory, "catalog.journal"));
+        catalog.putUpload(new MetadataCatalog.UploadEntry("a.txt", 20, 1, Compression.NONE,
+                List.of(new MetadataCatalog.FragmentEntry("a.txt.part0", 10, REPLICAS))));
+
+        // Autre version du fichier, compressée : le fragment change de nom
+        List<MetadataCatalog.FragmentEntry> orphans = catalog.putUpload(new MetadataCatalog.UploadEntry("a.txt",
+                20, 2, Compression.DEFLATE, List.of(new MetadataCatalog.FragmentEntry("a.txt.part0.z", 10, 4,
+                        REPLICAS))));
+
+        assertEquals(1, orphans.size());
+        assertEquals("a.txt.part0", orphans.get(0).name);
+        assertEquals(REPLICAS, orphans.get(0).replicas);
+        assertTrue(catalog.put(new MetadataCatalog.FileEntry("a.txt", 20, Compression.DEFLATE,
+                List.of(new MetadataCatalog.FragmentEntry("a.txt.part0.z", 10, 4, REPLICAS)))).isEmpty());
+    }
+
+    private static MetadataCatalog.FileEntry entry(String name, long size) {
+        return new MetadataCatalog.FileEntry(name, size,
+                List.of(new MetadataCatalog.FragmentEntry(name + ".part0", size, REPLICAS)));
+    }
+}
@@ -0,0 +1,100 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class PlacementTest {
+    private static final int FRAGMENTS = 2000;
+    private static final int REPLICAS = 2;
+
+    @Test
+    void ranksEverySubServerTheSameWayEachTime() {
+        List<SubServerInfo> subServers = subServers(5);
+        List<SubServerInfo> reversed = new ArrayList<>(subServers);
+        Collections.reverse(reversed);
+
+        List<SubServerInfo> ranking = Placement.rank("fichier.bin.part3", subServers);
+
+        assertEquals(new HashSet<>(subServers), new HashSet<>(ranking));
+        assertEquals(subServers.size(), ranking.size());
+        assertEquals(ranking, Placement.rank("fichier.bin.part3", subServers));
+        assertEquals(ranking, Placement.rank("fichier.bin.part3", reversed), "indépendant de l'ordre de la liste");
+    }
+
+    @Test
+    void addingASubServerMovesOnlyTheFragmentsItTakes() {
+        List<SubServerInfo> before = subServers(4);
+        List<SubServerInfo> after = subServers(5);
+        SubServerInfo added = after.get(4);
+
+        int moved = 0;
+        for (int i = 0; i < FRAGMENTS; i++) {
+            String fragment = "fichier" + i + ".bin.part" + (i % 7);
+            List<SubServerInfo> oldReplicas = Placement.rank(fragment, before).subList(0, REPLICAS);
+            List<SubServerInfo> newReplicas = Placement.rank(fragment, after).subList(0, REPLICAS);
+            if (!newReplicas.contains(added)) {
+                assertEquals(oldReplicas, newReplicas, fragment);
+            } else {
+                // Le nouveau sous-serveur remplace une seule réplique
+                moved++;
+                assertTrue(oldReplicas.containsAll(without(newReplicas, added)), fragment);
+            }
+        }
+        // Environ REPLICAS / 5 des fragments reviennent au nouveau sous-serveur
+        double share = (double) moved / FRAGMENTS;
+        assertTrue(share > 0.3 && share < 0.5, "part déplacée : " + share);
+    }
+
+    @Test
+    void removingASubServerMovesOnlyItsFragments() {
+        List<SubServerInfo> before = subServers(5);
+        SubServerInfo removed = before.get(2);
+        List<SubServerInfo> after = new ArrayList<>(before);
+        after.remove(removed);
+
+        for (int i = 0; i < FRAGMENTS; i++) {
+            String fragment = "fichier" + i + ".bin.part0";
+            List<SubServerInfo> oldReplicas = Placement.rank(fragment, before).subList(0, REPLICAS);
+            List<SubServerInfo> newReplicas = Placement.rank(fragment, after).subList(0, REPLICAS);
+            if (!oldReplicas.contains(removed)) {
+                assertEquals(oldReplicas, newReplicas, fragment);
+            } else {
+                assertTrue(newReplicas.containsAll(without(oldReplicas, removed)), fragment);
+            }
+        }
+    }
+
+    @Test
+    void givesEachShardOfAStripeItsOwnSubServer() {
+        List<SubServerInfo> ranking = Placement.rank("fichier.bin.part0", subServers(8));
+        int width = 6;
+
+        List<SubServerInfo> heads = new ArrayList<>();
+        for (int shard = 0; shard < width; shard++) {
+            List<SubServerInfo> candidates = Placement.shardCandidates(ranking, shard, width);
+            assertEquals(new HashSet<>(ranking), new HashSet<>(candidates));
+            heads.add(candidates.get(0));
+            // Les sous-serveurs hors de la bande passent avant ceux qui portent un autre morceau
+            assertEquals(ranking.subList(width, ranking.size()), candidates.subList(1, 1 + ranking.size() - width));
+        }
+        assertEquals(ranking.subList(0, width), heads);
+    }
+
+    private static List<SubServerInfo> without(List<SubServerInfo> replicas, SubServerInfo subServer) {
+        List<SubServerInfo> others = new ArrayList<>(replicas);
+        others.remove(subServer);
+        return others;
+    }
+
+    private static List<SubServerInfo> subServers(int count) {
+        List<SubServerInfo> subServers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            subServers.add(new SubServerInfo("127.0.0.1", 12346 + i));
+        }
+        return subServers;
+    }
+}
@@ -0,0 +1,69 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class ReedSolomonTest {
+    private static final int DATA_SHARDS = 4;
+    private static final int PARITY_SHARDS = 2;
+    // Plusieurs tranches de 256 Ko, la dernière incomplète
+    private static final int LENGTH = 2 * 256 * 1024 + 1234;
+
+    @Test
+    void reconstructsUpToParityShardsErasures() {
+        byte[][] encoded = encode(new Random(42));
+        int width = DATA_SHARDS + PARITY_SHARDS;
+        for (int first = 0; first < width; first++) {
+            for (int second = first; second < width; second++) {
+                byte[][] shards = copy(encoded);
+                boolean[] present = new boolean[width];
+                Arrays.fill(present, true);
+                erase(shards, present, first);
+                erase(shards, present, second);
+
+                new ReedSolomon(DATA_SHARDS, PARITY_SHARDS).reconstruct(shards, present, LENGTH);
+
+                for (int i = 0; i < width; i++) {
+                    assertArrayEquals(encoded[i], shards[i], "morceau " + i + " après perte de " + first + " et "
+                            + second);
+                }
+            }
+        }
+    }
+
+    @Test
+    void refusesMoreErasuresThanParityShards() {
+        byte[][] shards = encode(new Random(7));
+        boolean[] present = new boolean[DATA_SHARDS + PARITY_SHARDS];
+        Arrays.fill(present, true);
+        for (int i = 0; i <= PARITY_SHARDS; i++) {
+            erase(shards, present, i);
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> new ReedSolomon(DATA_SHARDS, PARITY_SHARDS).reconstruct(shards, present, LENGTH));
+    }
+
+    private static byte[][] encode(Random random) {
+        byte[][] shards = new byte[DATA_SHARDS + PARITY_SHARDS][LENGTH];
+        for (int i = 0; i < DATA_SHARDS; i++) {
+            random.nextBytes(shards[i]);
+        }
+        new ReedSolomon(DATA_SHARDS, PARITY_SHARDS).encodeParity(shards, LENGTH);
+        return shards;
+    }
+
+    private static byte[][] copy(byte[][] shards) {
+        byte[][] copy = new byte[shards.length][];
+        for (int i = 0; i < shards.length; i++) {
+            copy[i] = shards[i].clone();
+        }
+        return copy;
+    }
+
+    private static void erase(byte[][] shards, boolean[] present, int index) {
+        Arrays.fill(shards[index], (byte) 0);
+        present[index] = false;
+    }
+}
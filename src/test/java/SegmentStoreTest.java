@@ -0,0 +1,84 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SegmentStoreTest {
+    @TempDir
+    File directory;
+
+    @Test
+    void dropsFragmentWithTornTrailer() throws IOException {
+        SegmentStore store = new SegmentStore(directory);
+        byte[] first = content(1, 100_000);
+        byte[] second = content(2, 70_000);
+        store(store, "a.bin.part0", first);
+        store(store, "b.bin.part0", second);
+        // Arrêt brutal pendant l'écriture de la fin du dernier enregistrement
+        File segment = onlySegment();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(segment.length() - 3);
+        }
+
+        SegmentStore recovered = new SegmentStore(directory);
+
+        assertTrue(recovered.names().contains("a.bin.part0"));
+        assertFalse(recovered.names().contains("b.bin.part0"));
+        assertNull(recovered.open("b.bin.part0"));
+        assertArrayEquals(first, read(recovered, "a.bin.part0"));
+    }
+
+    @Test
+    void keepsFragmentsCommittedAfterAnUnfinishedOne() throws IOException {
+        SegmentStore store = new SegmentStore(directory);
+        byte[] unfinished = content(3, 50_000);
+        byte[] committed = content(4, 80_000);
+        // Deux fragments reçus en même temps : le premier n'est jamais validé
+        FragmentStore.Writer pending = store.create("a.bin.part0", unfinished.length);
+        pending.write(ByteBuffer.wrap(unfinished, 0, 20_000), 0);
+        store(store, "b.bin.part0", committed);
+
+        SegmentStore recovered = new SegmentStore(directory);
+
+        assertFalse(recovered.names().contains("a.bin.part0"));
+        assertArrayEquals(committed, read(recovered, "b.bin.part0"));
+        assertEquals(committed.length, recovered.size("b.bin.part0"));
+    }
+
+    private static void store(FragmentStore store, String name, byte[] data) throws IOException {
+        FragmentStore.Writer writer = store.create(name, data.length);
+        writer.write(ByteBuffer.wrap(data), 0);
+        writer.commit(Checksums.compute(data, 0, data.length));
+    }
+
+    private static byte[] read(FragmentStore store, String name) throws IOException {
+        try (FragmentStore.StoredFragment fragment = store.open(name)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) fragment.size);
+            while (buffer.hasRemaining()) {
+                fragment.channel.read(buffer, fragment.start + buffer.position());
+            }
+            return buffer.array();
+        }
+    }
+
+    private static byte[] content(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private File onlySegment() {
+        File[] segments = directory.listFiles((dir, name) -> name.endsWith(".log"));
+        assertEquals(1, segments.length);
+        return segments[0];
+    }
+}
@@ -0,0 +1,170 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Envois vers de vrais sous-serveurs lancés sur des ports locaux, chacun
+ * dans son processus comme en production.
+ */
+class UploadPipelineTest {
+    private static final int SUB_SERVERS = 3;
+    private static final int FRAGMENT_SIZE = 300 * 1024 + 17; // Plusieurs tampons, le dernier incomplet
+
+    @TempDir
+    static File directory;
+    private static final List<Process> processes = new ArrayList<>();
+    private static final List<SubServerInfo> subServers = new ArrayList<>();
+
+    @BeforeAll
+    static void startSubServers() throws Exception {
+        File config = new File(directory, "config.txt");
+        Files.writeString(config.toPath(), "sub_server.directory=" + directory.getAbsolutePath() + "\n"
+                + "data.timeout_ms=5000\n");
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        for (int i = 0; i < SUB_SERVERS; i++) {
+            int port = freePort();
+            processes.add(new ProcessBuilder(java, "-Dconfig.file=" + config, "-cp",
+                    System.getProperty("java.class.path"), "SubServer", String.valueOf(port))
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(directory, "sub_" + port + ".log"))
+                    .start());
+            subServers.add(new SubServerInfo("127.0.0.1", port));
+        }
+        for (SubServerInfo subServer : subServers) {
+            awaitListening(subServer);
+        }
+    }
+
+    @AfterAll
+    static void stopSubServers() {
+        for (Process process : processes) {
+            process.destroy();
+        }
+    }
+
+    @Test
+    void replicatesAlongTheChain() throws IOException {
+        byte[][] fragments = fragments(3, 1);
+        UploadPipeline pipeline = new UploadPipeline(new BufferPool(64 * 1024, 8), 4);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(concat(fragments)));
+        for (int i = 0; i < fragments.length; i++) {
+            pipeline.sendFragment(in, "chaine.bin.part" + i, FRAGMENT_SIZE, subServers, 2);
+        }
+
+        Map<String, List<SubServerInfo>> stored = pipeline.finish();
+
+        for (int i = 0; i < fragments.length; i++) {
+            String name = "chaine.bin.part" + i;
+            assertEquals(subServers.subList(0, 2), stored.get(name));
+            assertArrayEquals(fragments[i], read(subServers.get(0), name));
+            assertArrayEquals(fragments[i], read(subServers.get(1), name));
+            assertFalse(stored(subServers.get(2), name), "une seule copie de trop serait un gaspillage");
+        }
+    }
+
+    @Test
+    void skipsUnreachableSubServersAtTheHeadAndInsideTheChain() throws IOException {
+        SubServerInfo unreachable = new SubServerInfo("127.0.0.1", freePort());
+        byte[][] fragments = fragments(2, 2);
+        UploadPipeline pipeline = new UploadPipeline(new BufferPool(64 * 1024, 8), 4);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(concat(fragments)));
+
+        pipeline.sendFragment(in, "bascule.bin.part0", FRAGMENT_SIZE,
+                List.of(unreachable, subServers.get(1), subServers.get(2)), 2);
+        pipeline.sendFragment(in, "bascule.bin.part1", FRAGMENT_SIZE,
+                List.of(subServers.get(0), unreachable, subServers.get(2)), 2);
+        Map<String, List<SubServerInfo>> stored = pipeline.finish();
+
+        assertEquals(List.of(subServers.get(1), subServers.get(2)), stored.get("bascule.bin.part0"));
+        assertEquals(List.of(subServers.get(0), subServers.get(2)), stored.get("bascule.bin.part1"));
+        assertArrayEquals(fragments[0], read(subServers.get(2), "bascule.bin.part0"));
+        assertArrayEquals(fragments[1], read(subServers.get(2), "bascule.bin.part1"));
+    }
+
+    @Test
+    void fillsStreamedFragmentsSideBySide() throws IOException {
+        byte[][] fragments = fragments(2, 3);
+        UploadPipeline pipeline = new UploadPipeline(new BufferPool(64 * 1024, 8), 4);
+        UploadPipeline.Stream first = pipeline.startFragment("bande.bin.part0.s0", FRAGMENT_SIZE,
+                List.of(subServers.get(0)), 1);
+        UploadPipeline.Stream second = pipeline.startFragment("bande.bin.part0.s1", FRAGMENT_SIZE,
+                List.of(subServers.get(1)), 1);
+        // Tranches entrelacées, comme les morceaux d'une bande codée
+        for (int offset = 0; offset < FRAGMENT_SIZE; offset += 10_000) {
+            int length = Math.min(10_000, FRAGMENT_SIZE - offset);
+            first.write(fragments[0], offset, length);
+            second.write(fragments[1], offset, length);
+        }
+        first.end();
+        second.end();
+
+        Map<String, List<SubServerInfo>> stored = pipeline.finish();
+
+        assertEquals(List.of(subServers.get(0)), stored.get("bande.bin.part0.s0"));
+        assertEquals(List.of(subServers.get(1)), stored.get("bande.bin.part0.s1"));
+        assertArrayEquals(fragments[0], read(subServers.get(0), "bande.bin.part0.s0"));
+        assertArrayEquals(fragments[1], read(subServers.get(1), "bande.bin.part0.s1"));
+    }
+
+    private static byte[] read(SubServerInfo subServer, String fragmentName) throws IOException {
+        return Files.readAllBytes(fragmentFile(subServer, fragmentName).toPath());
+    }
+
+    private static boolean stored(SubServerInfo subServer, String fragmentName) {
+        return fragmentFile(subServer, fragmentName).exists();
+    }
+
+    private static File fragmentFile(SubServerInfo subServer, String fragmentName) {
+        return new File(new File(directory, "sub_server_directory_" + subServer.port), fragmentName);
+    }
+
+    private static byte[][] fragments(int count, long seed) {
+        Random random = new Random(seed);
+        byte[][] fragments = new byte[count][FRAGMENT_SIZE];
+        for (byte[] fragment : fragments) {
+            random.nextBytes(fragment);
+        }
+        return fragments;
+    }
+
+    private static byte[] concat(byte[][] fragments) {
+        byte[] all = new byte[fragments.length * FRAGMENT_SIZE];
+        for (int i = 0; i < fragments.length; i++) {
+            System.arraycopy(fragments[i], 0, all, i * FRAGMENT_SIZE, FRAGMENT_SIZE);
+        }
+        return all;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitListening(SubServerInfo subServer) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket socket = new Socket(subServer.host, subServer.port)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Sous-serveur pas démarré : " + subServer);
+    }
+}